@@ -29,37 +29,89 @@
  */
 package leshan.bootstrap;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import leshan.bootstrap.ConfigurationChecker.ConfigurationException;
 import leshan.server.bootstrap.BootstrapConfig;
 import leshan.server.bootstrap.BootstrapStore;
 
+import org.apache.commons.io.Charsets;
 import org.apache.commons.lang.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
 /**
  * Simple bootstrap store implementation storing bootstrap information in memory
+ * <p>
+ * A configuration is either dedicated to an endpoint or is a named template shared by many endpoints. The endpoints
+ * are mapped to a template by their exact name or by a prefix of their name (the longest matching prefix wins). A
+ * dedicated configuration takes precedence over the exact mapping, which takes precedence over the prefix ones.
+ * </p>
+ * <p>
+ * Every change is appended to a journal file instead of rewriting the whole store. The journal is compacted when it
+ * mostly contains overridden changes.
+ * </p>
  */
 public class BootstrapStoreImpl implements BootstrapStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(BootstrapStoreImpl.class);
 
     // default location for persistence
-    private static final String DEFAULT_FILE = "data/bootstrap.data";
+    private static final String DEFAULT_FILE = "data/bootstrap.journal";
+
+    // the journal is not compacted below this number of records
+    private static final int COMPACTION_MIN_RECORDS = 10_000;
+
+    private static final String OP_CONFIG = "config";
+    private static final String OP_DELETE_CONFIG = "-config";
+    private static final String OP_TEMPLATE = "template";
+    private static final String OP_DELETE_TEMPLATE = "-template";
+    private static final String OP_ENDPOINT = "endpoint";
+    private static final String OP_DELETE_ENDPOINT = "-endpoint";
+    private static final String OP_PREFIX = "prefix";
+    private static final String OP_DELETE_PREFIX = "-prefix";
 
     private final String filename;
 
+    private final Gson gson = new Gson();
+
+    private Map<String, BootstrapConfig> bootstrapByEndpoint = new ConcurrentHashMap<>();
+
+    private final Map<String, BootstrapConfig> templates = new ConcurrentHashMap<>();
+
+    private final Map<String, String> templateByEndpoint = new ConcurrentHashMap<>();
+
+    private final EndpointPrefixTrie<String> templateByPrefix = new EndpointPrefixTrie<>();
+
+    private final ReadWriteLock prefixLock = new ReentrantReadWriteLock();
+
+    // serializes the changes so that they are journaled in the order they are applied
+    private final Object writeLock = new Object();
+
+    private FileOutputStream journalFile;
+
+    private Writer journal;
+
+    private int journalRecords;
+
     public BootstrapStoreImpl() {
         this(DEFAULT_FILE);
     }
@@ -74,18 +126,32 @@ public class BootstrapStoreImpl implements BootstrapStore {
         this.loadFromFile();
     }
 
-    private Map<String, BootstrapConfig> bootstrapByEndpoint = new ConcurrentHashMap<>();
-
     @Override
     public BootstrapConfig getBootstrap(String endpoint) {
-        return bootstrapByEndpoint.get(endpoint);
+        BootstrapConfig config = bootstrapByEndpoint.get(endpoint);
+        if (config != null) {
+            return config;
+        }
+
+        String template = templateByEndpoint.get(endpoint);
+        if (template == null) {
+            prefixLock.readLock().lock();
+            try {
+                template = templateByPrefix.longestPrefixMatch(endpoint);
+            } finally {
+                prefixLock.readLock().unlock();
+            }
+        }
+        return template == null ? null : templates.get(template);
     }
 
     public void addConfig(String endpoint, BootstrapConfig config) throws ConfigurationException {
         ConfigurationChecker.verify(config);
         // check the configuration
-        bootstrapByEndpoint.put(endpoint, config);
-        saveToFile();
+        synchronized (writeLock) {
+            bootstrapByEndpoint.put(endpoint, config);
+            append(new JournalRecord(OP_CONFIG, endpoint, null, config));
+        }
     }
 
     public Map<String, BootstrapConfig> getBootstrapConfigs() {
@@ -93,46 +159,281 @@ public class BootstrapStoreImpl implements BootstrapStore {
     }
 
     public boolean deleteConfig(String enpoint) {
-        BootstrapConfig res = bootstrapByEndpoint.remove(enpoint);
-        saveToFile();
-        return res != null;
+        synchronized (writeLock) {
+            BootstrapConfig res = bootstrapByEndpoint.remove(enpoint);
+            append(new JournalRecord(OP_DELETE_CONFIG, enpoint, null, null));
+            return res != null;
+        }
+    }
+
+    /**
+     * Adds or replaces a configuration template.
+     * 
+     * @param name the template name
+     * @param config the configuration shared by the endpoints mapped to this template
+     */
+    public void addTemplate(String name, BootstrapConfig config) throws ConfigurationException {
+        Validate.notEmpty(name);
+        ConfigurationChecker.verify(config);
+        synchronized (writeLock) {
+            templates.put(name, config);
+            append(new JournalRecord(OP_TEMPLATE, name, null, config));
+        }
+    }
+
+    /**
+     * Deletes a configuration template. The endpoints still mapped to it get no configuration until a template with
+     * the same name is added.
+     */
+    public boolean deleteTemplate(String name) {
+        synchronized (writeLock) {
+            BootstrapConfig res = templates.remove(name);
+            append(new JournalRecord(OP_DELETE_TEMPLATE, name, null, null));
+            return res != null;
+        }
+    }
+
+    public Map<String, BootstrapConfig> getTemplates() {
+        return Collections.unmodifiableMap(templates);
+    }
+
+    /**
+     * Maps an endpoint to a template.
+     */
+    public void mapEndpoint(String endpoint, String template) {
+        Validate.notEmpty(endpoint);
+        Validate.isTrue(templates.containsKey(template), "unknown template ", template);
+        synchronized (writeLock) {
+            templateByEndpoint.put(endpoint, template);
+            append(new JournalRecord(OP_ENDPOINT, endpoint, template, null));
+        }
+    }
+
+    public boolean unmapEndpoint(String endpoint) {
+        synchronized (writeLock) {
+            String res = templateByEndpoint.remove(endpoint);
+            append(new JournalRecord(OP_DELETE_ENDPOINT, endpoint, null, null));
+            return res != null;
+        }
+    }
+
+    /**
+     * Maps all the endpoints whose name starts with the given prefix to a template.
+     */
+    public void mapEndpointPrefix(String prefix, String template) {
+        Validate.notNull(prefix);
+        Validate.isTrue(templates.containsKey(template), "unknown template ", template);
+        synchronized (writeLock) {
+            putPrefix(prefix, template);
+            append(new JournalRecord(OP_PREFIX, prefix, template, null));
+        }
+    }
+
+    public boolean unmapEndpointPrefix(String prefix) {
+        synchronized (writeLock) {
+            String res = removePrefix(prefix);
+            append(new JournalRecord(OP_DELETE_PREFIX, prefix, null, null));
+            return res != null;
+        }
+    }
+
+    /**
+     * @return a copy of the template names by endpoint prefix
+     */
+    public Map<String, String> getEndpointPrefixes() {
+        prefixLock.readLock().lock();
+        try {
+            return templateByPrefix.toMap();
+        } finally {
+            prefixLock.readLock().unlock();
+        }
+    }
+
+    private void putPrefix(String prefix, String template) {
+        prefixLock.writeLock().lock();
+        try {
+            templateByPrefix.put(prefix, template);
+        } finally {
+            prefixLock.writeLock().unlock();
+        }
+    }
+
+    private String removePrefix(String prefix) {
+        prefixLock.writeLock().lock();
+        try {
+            return templateByPrefix.remove(prefix);
+        } finally {
+            prefixLock.writeLock().unlock();
+        }
     }
 
     // /////// File persistence
 
-    @SuppressWarnings("unchecked")
+    /**
+     * A change of the store, as written in the journal (one JSON object per line).
+     */
+    private static class JournalRecord {
+        String op;
+        String key;
+        String template;
+        BootstrapConfig config;
+
+        JournalRecord(String op, String key, String template, BootstrapConfig config) {
+            this.op = op;
+            this.key = key;
+            this.template = template;
+            this.config = config;
+        }
+    }
+
+    private void apply(JournalRecord record) {
+        switch (record.op) {
+        case OP_CONFIG:
+            bootstrapByEndpoint.put(record.key, record.config);
+            break;
+        case OP_DELETE_CONFIG:
+            bootstrapByEndpoint.remove(record.key);
+            break;
+        case OP_TEMPLATE:
+            templates.put(record.key, record.config);
+            break;
+        case OP_DELETE_TEMPLATE:
+            templates.remove(record.key);
+            break;
+        case OP_ENDPOINT:
+            templateByEndpoint.put(record.key, record.template);
+            break;
+        case OP_DELETE_ENDPOINT:
+            templateByEndpoint.remove(record.key);
+            break;
+        case OP_PREFIX:
+            putPrefix(record.key, record.template);
+            break;
+        case OP_DELETE_PREFIX:
+            removePrefix(record.key);
+            break;
+        default:
+            throw new JsonParseException("unknown operation " + record.op);
+        }
+    }
+
     private void loadFromFile() {
+        File file = new File(filename);
+        // create parents if needed
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
 
+        if (file.exists()) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    Charsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        JournalRecord record = gson.fromJson(line, JournalRecord.class);
+                        if (record == null || record.op == null || record.key == null) {
+                            throw new JsonParseException("incomplete record");
+                        }
+                        apply(record);
+                        journalRecords++;
+                    } catch (JsonParseException e) {
+                        // typically the last record of a crashed server
+                        LOG.warn("Ignoring the end of the bootstrap journal: invalid record {}", line);
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Could not load bootstrap infos from file", e);
+            }
+        }
+
+        // rewrite the journal so that it ends with a complete record
+        synchronized (writeLock) {
+            compact();
+        }
+    }
+
+    private void append(JournalRecord record) {
+        if (journal == null) {
+            return;
+        }
         try {
-            File file = new File(filename);
+            journal.write(gson.toJson(record));
+            journal.write('\n');
+            journal.flush();
+            journalFile.getFD().sync();
+            journalRecords++;
+        } catch (IOException e) {
+            LOG.error("Could not save bootstrap infos to file", e);
+        }
 
-            if (!file.exists()) {
-                // create parents if needed
-                File parent = file.getParentFile();
-                if (parent != null) {
-                    parent.mkdirs();
-                }
-                file.createNewFile();
+        int live = bootstrapByEndpoint.size() + templates.size() + templateByEndpoint.size() + templateByPrefix.size();
+        if (journalRecords > COMPACTION_MIN_RECORDS && journalRecords > 2 * live) {
+            compact();
+        }
+    }
 
-            } else {
+    /**
+     * Replaces the journal by the records of the current state. The write lock must be held.
+     */
+    private void compact() {
+        closeJournal();
 
-                try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
-                    bootstrapByEndpoint.putAll((Map<String, BootstrapConfig>) in.readObject());
+        File file = new File(filename);
+        File tmp = new File(filename + ".tmp");
+        int records = 0;
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp);
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8))) {
+                for (Map.Entry<String, BootstrapConfig> e : templates.entrySet()) {
+                    records += write(writer, new JournalRecord(OP_TEMPLATE, e.getKey(), null, e.getValue()));
+                }
+                for (Map.Entry<String, BootstrapConfig> e : bootstrapByEndpoint.entrySet()) {
+                    records += write(writer, new JournalRecord(OP_CONFIG, e.getKey(), null, e.getValue()));
+                }
+                for (Map.Entry<String, String> e : templateByEndpoint.entrySet()) {
+                    records += write(writer, new JournalRecord(OP_ENDPOINT, e.getKey(), e.getValue(), null));
+                }
+                for (Map.Entry<String, String> e : getEndpointPrefixes().entrySet()) {
+                    records += write(writer, new JournalRecord(OP_PREFIX, e.getKey(), e.getValue(), null));
                 }
+                writer.flush();
+                out.getFD().sync();
             }
-        } catch (FileNotFoundException e) {
-            // fine
-        } catch (Exception e) {
-            LOG.debug("Could not load bootstrap infos from file", e);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            journalRecords = records;
+        } catch (IOException e) {
+            LOG.error("Could not compact the bootstrap journal", e);
+        }
+
+        try {
+            journalFile = new FileOutputStream(file, true);
+            journal = new BufferedWriter(new OutputStreamWriter(journalFile, Charsets.UTF_8));
+        } catch (IOException e) {
+            LOG.error("Could not open the bootstrap journal, the changes will not be saved", e);
         }
     }
 
-    private void saveToFile() {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(filename))) {
-            Map<String, BootstrapConfig> copy = new HashMap<>(bootstrapByEndpoint);
-            out.writeObject(copy);
-        } catch (Exception e) {
-            LOG.debug("Could not save bootstrap infos to file", e);
+    private int write(Writer writer, JournalRecord record) throws IOException {
+        writer.write(gson.toJson(record));
+        writer.write('\n');
+        return 1;
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close the bootstrap journal", e);
+            }
+            journal = null;
+            journalFile = null;
         }
     }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.bootstrap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A trie mapping endpoint name prefixes to values, looked up by longest matching prefix in O(endpoint length).
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ */
+class EndpointPrefixTrie<V> {
+
+    private static class Node<V> {
+        // most of the nodes have a single child
+        private Map<Character, Node<V>> children;
+        private V value;
+
+        Node<V> child(char c) {
+            return children == null ? null : children.get(c);
+        }
+    }
+
+    private final Node<V> root = new Node<>();
+
+    private int size;
+
+    /**
+     * Associates a value to a prefix.
+     * 
+     * @return the value previously associated to the prefix or <code>null</code>
+     */
+    V put(String prefix, V value) {
+        Node<V> node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            Node<V> child = node.child(c);
+            if (child == null) {
+                if (node.children == null) {
+                    node.children = new HashMap<>(2);
+                }
+                child = new Node<>();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        V previous = node.value;
+        node.value = value;
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    /**
+     * Removes the value associated to a prefix. The nodes left without value nor children are pruned.
+     * 
+     * @return the removed value or <code>null</code>
+     */
+    V remove(String prefix) {
+        return remove(root, prefix, 0);
+    }
+
+    private V remove(Node<V> node, String prefix, int depth) {
+        if (depth == prefix.length()) {
+            V previous = node.value;
+            node.value = null;
+            if (previous != null) {
+                size--;
+            }
+            return previous;
+        }
+        Node<V> child = node.child(prefix.charAt(depth));
+        if (child == null) {
+            return null;
+        }
+        V previous = remove(child, prefix, depth + 1);
+        if (child.value == null && (child.children == null || child.children.isEmpty())) {
+            node.children.remove(prefix.charAt(depth));
+        }
+        return previous;
+    }
+
+    /**
+     * @return the value of the longest prefix of the given endpoint or <code>null</code> if none matches
+     */
+    V longestPrefixMatch(String endpoint) {
+        Node<V> node = root;
+        V match = root.value;
+        for (int i = 0; i < endpoint.length() && node != null; i++) {
+            node = node.child(endpoint.charAt(i));
+            if (node != null && node.value != null) {
+                match = node.value;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Copies all the prefixes and their values to a map.
+     */
+    Map<String, V> toMap() {
+        Map<String, V> map = new HashMap<>();
+        collect(root, new StringBuilder(), map);
+        return map;
+    }
+
+    private void collect(Node<V> node, StringBuilder prefix, Map<String, V> map) {
+        if (node.value != null) {
+            map.put(prefix.toString(), node.value);
+        }
+        if (node.children != null) {
+            for (Map.Entry<Character, Node<V>> e : node.children.entrySet()) {
+                prefix.append(e.getKey());
+                collect(e.getValue(), prefix, map);
+                prefix.setLength(prefix.length() - 1);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+}
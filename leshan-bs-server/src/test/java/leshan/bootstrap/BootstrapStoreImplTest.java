@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.bootstrap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import leshan.server.bootstrap.BootstrapConfig;
+import leshan.server.bootstrap.SecurityMode;
+
+import org.apache.commons.io.Charsets;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BootstrapStoreImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String file;
+
+    private BootstrapStoreImpl store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "bootstrap.journal").getPath();
+        store = new BootstrapStoreImpl(file);
+    }
+
+    @Test
+    public void endpoints_are_mapped_to_templates() throws Exception {
+        BootstrapConfig sensors = config("coap://sensors");
+        BootstrapConfig meters = config("coap://meters");
+        store.addTemplate("sensors", sensors);
+        store.addTemplate("meters", meters);
+
+        store.mapEndpointPrefix("urn:", "sensors");
+        store.mapEndpointPrefix("urn:meter:", "meters");
+
+        Assert.assertSame(sensors, store.getBootstrap("urn:sensor:1"));
+        Assert.assertSame(meters, store.getBootstrap("urn:meter:1"));
+        Assert.assertNull(store.getBootstrap("other"));
+
+        // exact mapping wins over prefixes, dedicated configuration wins over templates
+        store.mapEndpoint("urn:meter:2", "sensors");
+        Assert.assertSame(sensors, store.getBootstrap("urn:meter:2"));
+        BootstrapConfig dedicated = config("coap://dedicated");
+        store.addConfig("urn:meter:2", dedicated);
+        Assert.assertSame(dedicated, store.getBootstrap("urn:meter:2"));
+
+        store.unmapEndpointPrefix("urn:meter:");
+        Assert.assertSame(sensors, store.getBootstrap("urn:meter:1"));
+    }
+
+    @Test
+    public void changes_are_restored() throws Exception {
+        store.addTemplate("sensors", config("coap://sensors"));
+        store.mapEndpointPrefix("urn:sensor:", "sensors");
+        store.mapEndpoint("dev1", "sensors");
+        store.addConfig("dev2", config("coap://dev2"));
+        store.addConfig("dev3", config("coap://dev3"));
+        store.deleteConfig("dev3");
+
+        BootstrapStoreImpl restored = new BootstrapStoreImpl(file);
+
+        Assert.assertEquals("coap://sensors", restored.getBootstrap("urn:sensor:1").security.get(0).uri);
+        Assert.assertEquals("coap://sensors", restored.getBootstrap("dev1").security.get(0).uri);
+        Assert.assertEquals("coap://dev2", restored.getBootstrap("dev2").security.get(0).uri);
+        Assert.assertNull(restored.getBootstrap("dev3"));
+    }
+
+    @Test
+    public void truncated_journal_is_tolerated() throws Exception {
+        store.addConfig("dev1", config("coap://dev1"));
+
+        // a crash while writing a record
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("{\"op\":\"config\",\"key\":\"dev2\",\"con".getBytes(Charsets.UTF_8));
+        }
+
+        BootstrapStoreImpl restored = new BootstrapStoreImpl(file);
+        Assert.assertEquals("coap://dev1", restored.getBootstrap("dev1").security.get(0).uri);
+        Assert.assertNull(restored.getBootstrap("dev2"));
+
+        // the journal is usable again
+        restored.addConfig("dev2", config("coap://dev2"));
+        Assert.assertNotNull(new BootstrapStoreImpl(file).getBootstrap("dev2"));
+    }
+
+    private static BootstrapConfig config(String uri) {
+        BootstrapConfig config = new BootstrapConfig();
+        BootstrapConfig.ServerSecurity security = new BootstrapConfig.ServerSecurity();
+        security.uri = uri;
+        security.bootstrapServer = true;
+        security.securityMode = SecurityMode.NO_SEC;
+        config.security.put(0, security);
+        return config;
+    }
+}
@@ -43,15 +43,21 @@ import leshan.util.StringUtils;
  */
 public class LinkObject {
 
+    private static final Pattern PATH_PATTERN = Pattern.compile("(/(\\d+))(/(\\d+))?(/(\\d+))?");
+
+    // marks an absent path segment
+    private static final int NONE = -1;
+
     private final String url;
 
     private final Map<String, Object> attributes;
 
-    private final Integer objectId;
+    // the path segments are kept as primitives, a client may register thousands of links
+    private final int objectId;
 
-    private final Integer objectInstanceId;
+    private final int objectInstanceId;
 
-    private final Integer resourceId;
+    private final int resourceId;
 
     /**
      * Creates a new link object without attributes.
@@ -70,25 +76,41 @@ public class LinkObject {
      */
     public LinkObject(String url, Map<String, ?> attributes) {
         this.url = url;
-        if (attributes != null) {
-            this.attributes = Collections.unmodifiableMap(new HashMap<String, Object>(attributes));
-        } else {
-            this.attributes = Collections.unmodifiableMap(new HashMap<String, Object>());
-        }
+        this.attributes = copyOf(attributes);
 
-        Matcher mat = Pattern.compile("(/(\\d+))(/(\\d+))?(/(\\d+))?").matcher(url);
+        Matcher mat = PATH_PATTERN.matcher(url);
 
         if (mat.find()) {
-            objectId = mat.group(2) == null ? null : new Integer(mat.group(2));
-            objectInstanceId = mat.group(4) == null ? null : new Integer(mat.group(4));
-            resourceId = mat.group(6) == null ? null : new Integer(mat.group(6));
+            objectId = toInt(mat.group(2));
+            objectInstanceId = toInt(mat.group(4));
+            resourceId = toInt(mat.group(6));
+        } else {
+            objectId = NONE;
+            objectInstanceId = NONE;
+            resourceId = NONE;
+        }
+    }
+
+    private static Map<String, Object> copyOf(Map<String, ?> attributes) {
+        // most of the links have no or a single attribute: avoid allocating a hash map for them
+        if (attributes == null || attributes.isEmpty()) {
+            return Collections.emptyMap();
+        } else if (attributes.size() == 1) {
+            Map.Entry<String, ?> attribute = attributes.entrySet().iterator().next();
+            return Collections.<String, Object> singletonMap(attribute.getKey(), attribute.getValue());
         } else {
-            objectId = null;
-            objectInstanceId = null;
-            resourceId = null;
+            return Collections.unmodifiableMap(new HashMap<String, Object>(attributes));
         }
     }
 
+    private static int toInt(String segment) {
+        return segment == null ? NONE : Integer.parseInt(segment);
+    }
+
+    private static Integer toInteger(int segment) {
+        return segment == NONE ? null : Integer.valueOf(segment);
+    }
+
     public String getUrl() {
         return url;
     }
@@ -104,15 +126,15 @@ public class LinkObject {
 
     public String getPath() {
         StringBuilder sb = new StringBuilder("/");
-        if (objectId != null) {
+        if (objectId != NONE) {
             sb.append(objectId);
         }
 
-        if (objectInstanceId != null) {
+        if (objectInstanceId != NONE) {
             sb.append("/").append(objectInstanceId);
         }
 
-        if (resourceId != null) {
+        if (resourceId != NONE) {
             sb.append("/").append(resourceId);
         }
 
@@ -125,15 +147,15 @@ public class LinkObject {
     }
 
     public Integer getObjectId() {
-        return objectId;
+        return toInteger(objectId);
     }
 
     public Integer getObjectInstanceId() {
-        return objectInstanceId;
+        return toInteger(objectInstanceId);
     }
 
     public Integer getResourceId() {
-        return resourceId;
+        return toInteger(resourceId);
     }
 
     public static LinkObject[] parse(byte[] content) {
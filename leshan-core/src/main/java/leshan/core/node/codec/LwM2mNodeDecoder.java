@@ -42,9 +42,9 @@ import leshan.core.objectspec.ResourceSpec;
 import leshan.core.objectspec.Resources;
 import leshan.core.objectspec.ResourceSpec.Type;
 import leshan.core.request.ContentFormat;
-import leshan.tlv.Tlv;
-import leshan.tlv.TlvDecoder;
+import leshan.tlv.Tlv.TlvType;
 import leshan.tlv.TlvException;
+import leshan.tlv.TlvReader;
 import leshan.util.Charsets;
 import leshan.util.Validate;
 
@@ -65,6 +65,21 @@ public class LwM2mNodeDecoder {
      * @throws InvalidValueException
      */
     public static LwM2mNode decode(byte[] content, ContentFormat format, LwM2mPath path) throws InvalidValueException {
+        return decode(ByteBuffer.wrap(content), format, path);
+    }
+
+    /**
+     * Deserializes the remaining bytes of a buffer into a {@link LwM2mNode}. The TLV values are read straight from the
+     * buffer, whose state is not modified.
+     *
+     * @param content the content
+     * @param format the content format
+     * @param path the path of the node to build
+     * @return the resulting node
+     * @throws InvalidValueException
+     */
+    public static LwM2mNode decode(ByteBuffer content, ContentFormat format, LwM2mPath path)
+            throws InvalidValueException {
         LOG.debug("Decoding value for path {} and format {}: {}", path, format, content);
 
         Validate.notNull(path);
@@ -91,7 +106,7 @@ public class LwM2mNodeDecoder {
             Validate.notNull(path.getResourceId());
             ResourceSpec rDesc = Resources.getResourceSpec(path.getObjectId(), path.getResourceId());
 
-            String strValue = new String(content, Charsets.UTF_8);
+            String strValue = decodeString(content);
             Value<?> value = null;
             if (rDesc != null) {
                 value = parseTextValue(strValue, rDesc.type, path);
@@ -103,8 +118,7 @@ public class LwM2mNodeDecoder {
 
         case TLV:
             try {
-                Tlv[] tlvs = TlvDecoder.decode(ByteBuffer.wrap(content));
-                return parseTlv(tlvs, path);
+                return parseTlv(new TlvReader(content), path);
             } catch (TlvException e) {
                 throw new InvalidValueException("Unable to decode tlv.", path, e);
             }
@@ -117,6 +131,16 @@ public class LwM2mNodeDecoder {
 
     }
 
+    private static String decodeString(ByteBuffer content) {
+        if (content.hasArray()) {
+            return new String(content.array(), content.arrayOffset() + content.position(), content.remaining(),
+                    Charsets.UTF_8);
+        }
+        byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
     private static Value<?> parseTextValue(String value, Type type, LwM2mPath path) throws InvalidValueException {
         LOG.trace("TEXT value for path {} and expected type {}: {}", path, type, value);
 
@@ -168,116 +192,131 @@ public class LwM2mNodeDecoder {
         }
     }
 
-    private static LwM2mNode parseTlv(Tlv[] tlvs, LwM2mPath path) throws InvalidValueException {
-        LOG.trace("Parsing TLV content for path {}: {}", path, tlvs);
+    private static LwM2mNode parseTlv(TlvReader reader, LwM2mPath path) throws TlvException,
+            InvalidValueException {
+        LOG.trace("Parsing TLV content for path {}", path);
+
+        // the readers of the nested entries, reused for all the instances and resources
+        TlvReader resources = new TlvReader();
+        TlvReader values = new TlvReader();
 
         if (path.isObject()) {
             // object level request
-            LwM2mObjectInstance[] instances = new LwM2mObjectInstance[tlvs.length];
-            for (int i = 0; i < tlvs.length; i++) {
-                instances[i] = parseObjectInstancesTlv(tlvs[i], path.getObjectId());
+            LwM2mObjectInstance[] instances = new LwM2mObjectInstance[reader.count()];
+            for (int i = 0; reader.next(); i++) {
+                instances[i] = parseObjectInstanceTlv(reader, path.getObjectId(), resources, values);
             }
             return new LwM2mObject(path.getObjectId(), instances);
 
         } else if (path.isObjectInstance()) {
             // object instance level request
-            LwM2mResource[] resources = new LwM2mResource[tlvs.length];
-            for (int i = 0; i < tlvs.length; i++) {
-                resources[i] = parseResourceTlv(tlvs[i], path.getObjectId(), path.getObjectInstanceId());
+            LwM2mResource[] instanceResources = new LwM2mResource[reader.count()];
+            for (int i = 0; reader.next(); i++) {
+                instanceResources[i] = parseResourceTlv(reader, path.getObjectId(), path.getObjectInstanceId(),
+                        values);
             }
-            return new LwM2mObjectInstance(path.getObjectInstanceId(), resources);
+            return new LwM2mObjectInstance(path.getObjectInstanceId(), instanceResources);
 
         } else {
             // resource level request
-            if (tlvs.length == 1) {
-                switch (tlvs[0].getType()) {
+            int count = reader.count();
+            if (count == 1) {
+                reader.next();
+                switch (reader.getType()) {
                 case RESOURCE_VALUE:
                     // single value
-                    return new LwM2mResource(tlvs[0].getIdentifier(), parseTlvValue(tlvs[0].getValue(), path));
+                    return new LwM2mResource(reader.getIdentifier(), parseTlvValue(reader, path));
                 case MULTIPLE_RESOURCE:
                     // supported but not compliant with the TLV specification
-                    return parseResourceTlv(tlvs[0], path.getObjectId(), path.getObjectInstanceId());
+                    return parseResourceTlv(reader, path.getObjectId(), path.getObjectInstanceId(), values);
 
                 default:
-                    throw new InvalidValueException("Invalid TLV type: " + tlvs[0].getType(), path);
+                    throw new InvalidValueException("Invalid TLV type: " + reader.getType(), path);
                 }
             } else {
                 // array of values
-                Value<?>[] values = new Value[tlvs.length];
-                for (int j = 0; j < tlvs.length; j++) {
-                    values[j] = parseTlvValue(tlvs[j].getValue(), path);
+                Value<?>[] resourceValues = new Value[count];
+                for (int j = 0; reader.next(); j++) {
+                    resourceValues[j] = parseTlvValue(reader, path);
                 }
-                return new LwM2mResource(path.getResourceId(), values);
+                return new LwM2mResource(path.getResourceId(), resourceValues);
             }
         }
     }
 
-    private static LwM2mObjectInstance parseObjectInstancesTlv(Tlv tlv, int objectId) throws InvalidValueException {
+    private static LwM2mObjectInstance parseObjectInstanceTlv(TlvReader instance, int objectId,
+            TlvReader resources, TlvReader values) throws TlvException, InvalidValueException {
+        if (instance.getType() != TlvType.OBJECT_INSTANCE) {
+            throw new InvalidValueException("Invalid TLV type: " + instance.getType(), new LwM2mPath(objectId));
+        }
+
         // read resources
-        LwM2mResource[] resources = new LwM2mResource[tlv.getChildren().length];
-        for (int i = 0; i < tlv.getChildren().length; i++) {
-            resources[i] = parseResourceTlv(tlv.getChildren()[i], objectId, tlv.getIdentifier());
+        instance.children(resources);
+        LwM2mResource[] instanceResources = new LwM2mResource[resources.count()];
+        for (int i = 0; resources.next(); i++) {
+            instanceResources[i] = parseResourceTlv(resources, objectId, instance.getIdentifier(), values);
         }
-        return new LwM2mObjectInstance(tlv.getIdentifier(), resources);
+        return new LwM2mObjectInstance(instance.getIdentifier(), instanceResources);
     }
 
-    private static LwM2mResource parseResourceTlv(Tlv tlv, int objectId, int objectInstanceId)
-            throws InvalidValueException {
-        LwM2mPath rscPath = new LwM2mPath(objectId, objectInstanceId, tlv.getIdentifier());
-        switch (tlv.getType()) {
+    private static LwM2mResource parseResourceTlv(TlvReader resource, int objectId, int objectInstanceId,
+            TlvReader values) throws TlvException, InvalidValueException {
+        LwM2mPath rscPath = new LwM2mPath(objectId, objectInstanceId, resource.getIdentifier());
+        switch (resource.getType()) {
         case MULTIPLE_RESOURCE:
             // read values
-            Value<?>[] values = new Value[tlv.getChildren().length];
-            for (int j = 0; j < tlv.getChildren().length; j++) {
-                values[j] = parseTlvValue(tlv.getChildren()[j].getValue(), rscPath);
+            resource.children(values);
+            Value<?>[] resourceValues = new Value[values.count()];
+            for (int j = 0; values.next(); j++) {
+                resourceValues[j] = parseTlvValue(values, rscPath);
             }
-            return new LwM2mResource(tlv.getIdentifier(), values);
+            return new LwM2mResource(resource.getIdentifier(), resourceValues);
         case RESOURCE_VALUE:
-            return new LwM2mResource(tlv.getIdentifier(), parseTlvValue(tlv.getValue(), rscPath));
+            return new LwM2mResource(resource.getIdentifier(), parseTlvValue(resource, rscPath));
         default:
             throw new InvalidValueException("Invalid TLV value", rscPath);
         }
     }
 
-    private static Value<?> parseTlvValue(byte[] value, LwM2mPath rscPath) throws InvalidValueException {
+    private static Value<?> parseTlvValue(TlvReader value, LwM2mPath rscPath) throws InvalidValueException {
 
         ResourceSpec rscDesc = Resources.getResourceSpec(rscPath.getObjectId(), rscPath.getResourceId());
         if (rscDesc == null) {
-            LOG.trace("TLV value for path {} and unknown type: {}", rscPath, value);
+            LOG.trace("TLV value for path {} and unknown type", rscPath);
             // no resource description... opaque
-            return Value.newBinaryValue(value);
+            return Value.newBinaryValue(value.getValueAsBytes());
         }
 
-        LOG.trace("TLV value for path {} and expected type {}: {}", rscPath, rscDesc.type, value);
+        LOG.trace("TLV value for path {} and expected type {}", rscPath, rscDesc.type);
         try {
             switch (rscDesc.type) {
             case STRING:
-                return Value.newStringValue(TlvDecoder.decodeString(value));
+                return Value.newStringValue(value.getValueAsString());
             case INTEGER:
-                Number intNb = TlvDecoder.decodeInteger(value);
-                if (value.length < 8) {
-                    return Value.newIntegerValue(intNb.intValue());
+                long intNb = value.getValueAsLong();
+                if (value.getLength() < 8) {
+                    return Value.newIntegerValue((int) intNb);
                 } else {
-                    return Value.newLongValue(intNb.longValue());
+                    return Value.newLongValue(intNb);
                 }
 
             case BOOLEAN:
-                return Value.newBooleanValue(TlvDecoder.decodeBoolean(value));
+                return Value.newBooleanValue(value.getValueAsBoolean());
 
             case FLOAT:
-                Number floatNb = TlvDecoder.decodeFloat(value);
-                if (value.length < 8) {
-                    return Value.newFloatValue(floatNb.floatValue());
+                double floatNb = value.getValueAsDouble();
+                if (value.getLength() < 8) {
+                    return Value.newFloatValue((float) floatNb);
                 } else {
-                    return Value.newDoubleValue(floatNb.doubleValue());
+                    return Value.newDoubleValue(floatNb);
                 }
 
             case TIME:
-                return Value.newDateValue(TlvDecoder.decodeDate(value));
+                return Value.newDateValue(value.getValueAsDate());
 
             case OPAQUE:
             default:
-                return Value.newBinaryValue(value);
+                return Value.newBinaryValue(value.getValueAsBytes());
             }
         } catch (TlvException e) {
             throw new InvalidValueException("Invalid content for type " + rscDesc.type, rscPath, e);
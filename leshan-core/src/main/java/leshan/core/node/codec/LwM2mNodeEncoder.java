@@ -29,8 +29,6 @@
  */
 package leshan.core.node.codec;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Map.Entry;
@@ -47,9 +45,8 @@ import leshan.core.objectspec.ResourceSpec;
 import leshan.core.objectspec.Resources;
 import leshan.core.objectspec.ResourceSpec.Type;
 import leshan.core.request.ContentFormat;
-import leshan.tlv.Tlv;
 import leshan.tlv.Tlv.TlvType;
-import leshan.tlv.TlvEncoder;
+import leshan.tlv.TlvWriter;
 import leshan.util.Charsets;
 import leshan.util.StringUtils;
 import leshan.util.Validate;
@@ -103,7 +100,7 @@ public class LwM2mNodeEncoder {
 
         int objectId;
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TlvWriter out = new TlvWriter();
 
         @Override
         public void visit(LwM2mObject object) {
@@ -128,44 +125,42 @@ public class LwM2mNodeEncoder {
             ResourceSpec rSpec = Resources.getResourceSpec(objectId, resource.getId());
             Type expectedType = rSpec != null ? rSpec.type : null;
 
-            Tlv rTlv = null;
+            // the values are written straight into the output
             if (resource.isMultiInstances()) {
-                Tlv[] instances = new Tlv[resource.getValues().length];
+                out.startContainer(TlvType.MULTIPLE_RESOURCE, resource.getId());
                 for (int i = 0; i < resource.getValues().length; i++) {
-                    instances[i] = new Tlv(TlvType.RESOURCE_INSTANCE, null, this.encodeTlvValue(convertValue(
-                            resource.getValues()[i], expectedType)), i);
+                    writeTlvValue(TlvType.RESOURCE_INSTANCE, i, convertValue(resource.getValues()[i], expectedType));
                 }
-                rTlv = new Tlv(TlvType.MULTIPLE_RESOURCE, instances, null, resource.getId());
+                out.endContainer();
             } else {
-                rTlv = new Tlv(TlvType.RESOURCE_VALUE, null, this.encodeTlvValue(convertValue(resource.getValue(),
-                        expectedType)), resource.getId());
-            }
-
-            try {
-                out.write(TlvEncoder.encode(new Tlv[] { rTlv }).array());
-            } catch (IOException e) {
-                // should not occur
-                throw new RuntimeException(e);
+                writeTlvValue(TlvType.RESOURCE_VALUE, resource.getId(),
+                        convertValue(resource.getValue(), expectedType));
             }
         }
 
-        private byte[] encodeTlvValue(Value<?> value) {
+        private void writeTlvValue(TlvType type, int identifier, Value<?> value) {
             LOG.trace("Encoding value {} in TLV", value);
             switch (value.type) {
             case STRING:
-                return TlvEncoder.encodeString((String) value.value);
+                out.writeString(type, identifier, (String) value.value);
+                break;
             case INTEGER:
             case LONG:
-                return TlvEncoder.encodeInteger((Number) value.value);
+                out.writeInteger(type, identifier, (Number) value.value);
+                break;
             case FLOAT:
             case DOUBLE:
-                return TlvEncoder.encodeFloat((Number) value.value);
+                out.writeFloat(type, identifier, (Number) value.value);
+                break;
             case BOOLEAN:
-                return TlvEncoder.encodeBoolean((Boolean) value.value);
+                out.writeBoolean(type, identifier, (Boolean) value.value);
+                break;
             case TIME:
-                return TlvEncoder.encodeDate((Date) value.value);
+                out.writeDate(type, identifier, (Date) value.value);
+                break;
             case OPAQUE:
-                return (byte[]) value.value;
+                out.writeValue(type, identifier, (byte[]) value.value);
+                break;
             default:
                 throw new IllegalArgumentException("Invalid value type: " + value.type);
             }
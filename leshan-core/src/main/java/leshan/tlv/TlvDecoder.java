@@ -30,7 +30,6 @@
 package leshan.tlv;
 
 import java.math.BigInteger;
-import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -106,7 +105,7 @@ public class TlvDecoder {
                     break;
                 case 0b0001_1000:
                     // 24 bit length
-                    length = ((input.get() & 0xFF) << 16) + input.getShort() & 0xFFFF;
+                    length = ((input.get() & 0xFF) << 16) + (input.getShort() & 0xFFFF);
                     break;
                 default:
                     throw new TlvException("unknown length type : " + (typeByte & 0b0001_1000));
@@ -121,7 +120,7 @@ public class TlvDecoder {
                     byte[] payload = new byte[length];
                     input.get(payload);
                     tlvs.add(new Tlv(type, null, payload, identifier));
-                } catch (BufferOverflowException e) {
+                } catch (BufferUnderflowException e) {
                     throw new TlvException("Invalild 'value' length", e);
                 }
             } else {
@@ -30,7 +30,6 @@
 package leshan.tlv;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Date;
 
 import leshan.util.Charsets;
@@ -46,23 +45,12 @@ public class TlvEncoder {
      * Encodes an array of TLV.
      */
     public static ByteBuffer encode(Tlv[] tlvs) {
-        int size = 0;
-
-        LOG.trace("start");
-        for (Tlv tlv : tlvs) {
-
-            int length = tlvEncodedLength(tlv);
-            size += tlvEncodedSize(tlv, length);
-            LOG.trace("tlv size : {}", size);
-        }
-        LOG.trace("done, size : {}", size);
-        ByteBuffer b = ByteBuffer.allocate(size);
-        b.order(ByteOrder.BIG_ENDIAN);
+        TlvWriter writer = new TlvWriter();
         for (Tlv tlv : tlvs) {
-            encode(tlv, b);
+            writer.write(tlv);
         }
-        b.flip();
-        return b;
+        LOG.trace("done, size : {}", writer.size());
+        return ByteBuffer.wrap(writer.toByteArray());
     }
 
     /**
@@ -125,115 +113,4 @@ public class TlvEncoder {
         tBuf.putInt((int) (value.getTime() / 1000L));
         return tBuf.array();
     }
-
-    private static int tlvEncodedSize(Tlv tlv, int length) {
-        int size = 1 /* HEADER */;
-        size += (tlv.getIdentifier() < 65_536) ? 1 : 2; /* 8 bits or 16 bits identifiers */
-
-        if (length < 8) {
-            size += 0;
-        } else if (length < 256) {
-            size += 1;
-        } else if (length < 65_536) {
-            size += 2;
-        } else if (length < 16_777_216) {
-            size += 3;
-        } else {
-            throw new IllegalArgumentException("length should fit in max 24bits");
-        }
-
-        size += length;
-        return size;
-    }
-
-    private static int tlvEncodedLength(Tlv tlv) {
-        int length;
-        switch (tlv.getType()) {
-        case RESOURCE_VALUE:
-        case RESOURCE_INSTANCE:
-            length = tlv.getValue().length;
-            break;
-        default:
-            length = 0;
-            for (Tlv child : tlv.getChildren()) {
-                int subLength = tlvEncodedLength(child);
-                length += tlvEncodedSize(child, subLength);
-            }
-        }
-
-        return length;
-    }
-
-    private static void encode(Tlv tlv, ByteBuffer b) {
-        int length;
-        length = tlvEncodedLength(tlv);
-        int typeByte;
-
-        switch (tlv.getType()) {
-        case OBJECT_INSTANCE:
-            typeByte = 0b00_000000;
-            break;
-        case RESOURCE_INSTANCE:
-            typeByte = 0b01_000000;
-            break;
-        case MULTIPLE_RESOURCE:
-            typeByte = 0b10_000000;
-            break;
-        case RESOURCE_VALUE:
-            // encode the value
-            typeByte = 0b11_000000;
-            break;
-        default:
-            throw new IllegalArgumentException("unknown TLV type : '" + tlv.getType() + "'");
-        }
-
-        // encode identifier length
-        typeByte |= (tlv.getIdentifier() < 65_536) ? 0b00_0000 : 0b10_0000;
-
-        // type of length
-        if (length < 8) {
-            typeByte |= length;
-        } else if (length < 256) {
-            typeByte |= 0b0000_1000;
-        } else if (length < 65_536) {
-            typeByte |= 0b0001_0000;
-        } else {
-            typeByte |= 0b0001_1000;
-        }
-
-        // fill the buffer
-        b.put((byte) typeByte);
-        if (tlv.getIdentifier() < 65_536) {
-            b.put((byte) tlv.getIdentifier());
-        } else {
-            b.putShort((short) tlv.getIdentifier());
-        }
-
-        // write length
-
-        if (length >= 8) {
-            if (length < 256) {
-                b.put((byte) length);
-            } else if (length < 65_536) {
-                b.putShort((short) length);
-            } else {
-                int msb = (length & 0xFF_00_00) >> 16;
-                b.put((byte) msb);
-                b.putShort((short) (length & 0xFF_FF));
-                typeByte |= 0b0001_1000;
-            }
-        }
-
-        switch (tlv.getType()) {
-        case RESOURCE_VALUE:
-        case RESOURCE_INSTANCE:
-            b.put(tlv.getValue());
-            break;
-        default:
-            for (Tlv child : tlv.getChildren()) {
-                encode(child, b);
-            }
-            break;
-        }
-    }
 }
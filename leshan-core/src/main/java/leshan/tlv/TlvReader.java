@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.tlv;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import leshan.tlv.Tlv.TlvType;
+import leshan.util.Charsets;
+import leshan.util.Validate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cursor over the TLV entries of a buffer, decoding them in place.
+ * <p>
+ * Unlike {@link TlvDecoder#decode(ByteBuffer)}, no object is created per entry: {@link #next()} moves the cursor to
+ * the next entry and exposes its type, identifier, value offset and length. The values are read straight from the
+ * buffer, and the entries contained in an object instance or a multiple resource are walked by another reader
+ * positioned with {@link #children(TlvReader)}, so that a few readers allocated once can decode a whole payload.
+ * </p>
+ * <p>
+ * The state of the buffer (position, limit, byte order) is never modified, the entries are always read in network
+ * byte order. A reader is not thread-safe.
+ * </p>
+ */
+public class TlvReader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TlvReader.class);
+
+    // indexed by the 2 most significant bits of the type byte
+    private static final TlvType[] TYPES = { TlvType.OBJECT_INSTANCE, TlvType.RESOURCE_INSTANCE,
+            TlvType.MULTIPLE_RESOURCE, TlvType.RESOURCE_VALUE };
+
+    private ByteBuffer buffer;
+    private int start;
+    private int limit;
+
+    // the offset of the next entry
+    private int position;
+
+    // the current entry
+    private TlvType type;
+    private int identifier;
+    private int valueOffset;
+    private int length;
+
+    /**
+     * Creates a reader to be positioned with {@link #reset(ByteBuffer)} or {@link #children(TlvReader)}.
+     */
+    public TlvReader() {
+    }
+
+    /**
+     * Creates a reader over the remaining bytes of a buffer.
+     */
+    public TlvReader(ByteBuffer buffer) {
+        reset(buffer);
+    }
+
+    /**
+     * Positions the reader before the first entry of the remaining bytes of a buffer.
+     * 
+     * @return this reader
+     */
+    public TlvReader reset(ByteBuffer buffer) {
+        Validate.notNull(buffer);
+        return reset(buffer, buffer.position(), buffer.limit());
+    }
+
+    private TlvReader reset(ByteBuffer buffer, int start, int limit) {
+        this.buffer = buffer;
+        this.start = start;
+        this.limit = limit;
+        rewind();
+        return this;
+    }
+
+    /**
+     * Positions the reader before the first entry.
+     */
+    public void rewind() {
+        position = start;
+        type = null;
+    }
+
+    /**
+     * Moves to the next entry.
+     * 
+     * @return <code>false</code> if there is no more entry
+     * @throws TlvException if the entry is truncated
+     */
+    public boolean next() throws TlvException {
+        if (position >= limit) {
+            type = null;
+            return false;
+        }
+        int offset = position;
+
+        // decode type
+        int typeByte = buffer.get(offset++) & 0xFF;
+        TlvType nextType = TYPES[(typeByte & 0b1100_0000) >>> 6];
+
+        // decode identifier
+        int nextIdentifier;
+        if ((typeByte & 0b0010_0000) == 0) {
+            checkAvailable(offset, 1, "identifier");
+            nextIdentifier = buffer.get(offset) & 0xFF;
+            offset += 1;
+        } else {
+            checkAvailable(offset, 2, "identifier");
+            nextIdentifier = readUnsigned(offset, 2);
+            offset += 2;
+        }
+
+        // decode length
+        int nextLength;
+        switch (typeByte & 0b0001_1000) {
+        case 0b0000_0000:
+            // 3 bit length
+            nextLength = typeByte & 0b0000_0111;
+            break;
+        case 0b0000_1000:
+            // 8 bit length
+            checkAvailable(offset, 1, "length");
+            nextLength = buffer.get(offset) & 0xFF;
+            offset += 1;
+            break;
+        case 0b0001_0000:
+            // 16 bit length
+            checkAvailable(offset, 2, "length");
+            nextLength = readUnsigned(offset, 2);
+            offset += 2;
+            break;
+        default:
+            // 24 bit length
+            checkAvailable(offset, 3, "length");
+            nextLength = readUnsigned(offset, 3);
+            offset += 3;
+            break;
+        }
+
+        // the value or the children
+        checkAvailable(offset, nextLength, "value");
+
+        type = nextType;
+        identifier = nextIdentifier;
+        valueOffset = offset;
+        length = nextLength;
+        position = offset + nextLength;
+        return true;
+    }
+
+    /**
+     * Counts the entries from the start, without moving the cursor.
+     * 
+     * @throws TlvException if an entry is truncated
+     */
+    public int count() throws TlvException {
+        TlvType currentType = type;
+        int currentIdentifier = identifier;
+        int currentValueOffset = valueOffset;
+        int currentLength = length;
+        int currentPosition = position;
+
+        rewind();
+        int count = 0;
+        try {
+            while (next()) {
+                count++;
+            }
+        } finally {
+            type = currentType;
+            identifier = currentIdentifier;
+            valueOffset = currentValueOffset;
+            length = currentLength;
+            position = currentPosition;
+        }
+        return count;
+    }
+
+    /**
+     * Positions a reader before the first entry contained in the current object instance or multiple resource.
+     * 
+     * @param reader the reader to position, reused to avoid allocations
+     * @return the given reader
+     */
+    public TlvReader children(TlvReader reader) {
+        if (type != TlvType.OBJECT_INSTANCE && type != TlvType.MULTIPLE_RESOURCE) {
+            throw new IllegalStateException("a " + type + " has no children");
+        }
+        return reader.reset(buffer, valueOffset, valueOffset + length);
+    }
+
+    /**
+     * @return the type of the current entry, <code>null</code> before the first call to {@link #next()} or at the end
+     */
+    public TlvType getType() {
+        return type;
+    }
+
+    public int getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return the absolute offset of the value of the current entry in the buffer
+     */
+    public int getValueOffset() {
+        return valueOffset;
+    }
+
+    /**
+     * @return the length of the value of the current entry
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return a copy of the value of the current entry
+     */
+    public byte[] getValueAsBytes() {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = buffer.get(valueOffset + i);
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the value of the current entry as an UTF-8 string.
+     */
+    public String getValueAsString() {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + valueOffset, length, Charsets.UTF_8);
+        }
+        return new String(getValueAsBytes(), Charsets.UTF_8);
+    }
+
+    /**
+     * Decodes the value of the current entry as a boolean, like {@link TlvDecoder#decodeBoolean(byte[])}.
+     */
+    public boolean getValueAsBoolean() throws TlvException {
+        if (length == 1) {
+            byte value = buffer.get(valueOffset);
+            if (value == 0) {
+                return false;
+            } else if (value == 1) {
+                return true;
+            } else {
+                LOG.warn("Boolean value should be encoded as integer with value 0 or 1, not {}", value);
+                return false;
+            }
+        }
+        throw new TlvException("Invalid length for a boolean value: " + length);
+    }
+
+    /**
+     * Decodes the value of the current entry as a signed integer of 1 to 8 bytes.
+     */
+    public long getValueAsLong() throws TlvException {
+        if (length == 0 || length > 8) {
+            throw new TlvException("Invalid length for an integer value: " + length);
+        }
+        // sign extension from the first byte
+        long value = buffer.get(valueOffset);
+        for (int i = 1; i < length; i++) {
+            value = value << 8 | buffer.get(valueOffset + i) & 0xFF;
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the value of the current entry as a float (4 bytes) or a double (8 bytes).
+     */
+    public double getValueAsDouble() throws TlvException {
+        if (length == 4) {
+            return Float.intBitsToFloat(readUnsigned(valueOffset, 4));
+        } else if (length == 8) {
+            return Double.longBitsToDouble(getValueAsLong());
+        } else {
+            throw new TlvException("Invalid length for a float value: " + length);
+        }
+    }
+
+    /**
+     * Decodes the value of the current entry as a date, encoded as a number of seconds since 1970/1/1.
+     */
+    public Date getValueAsDate() throws TlvException {
+        if (length == 0 || length > 8) {
+            throw new TlvException("Invalid length for a time value: " + length);
+        }
+        return new Date(getValueAsLong() * 1000L);
+    }
+
+    private int readUnsigned(int offset, int size) {
+        int value = 0;
+        for (int i = 0; i < size; i++) {
+            value = value << 8 | buffer.get(offset + i) & 0xFF;
+        }
+        return value;
+    }
+
+    private void checkAvailable(int offset, int size, String field) throws TlvException {
+        if (offset + size > limit) {
+            throw new TlvException("Invalild '" + field + "' length");
+        }
+    }
+}
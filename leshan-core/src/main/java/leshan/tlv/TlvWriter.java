@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.tlv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+import leshan.tlv.Tlv.TlvType;
+import leshan.util.Charsets;
+import leshan.util.Validate;
+
+/**
+ * Encodes TLV entries in a single pass, straight into a byte array.
+ * <p>
+ * The values are written as they come, without building a {@link Tlv} tree. The length of an object instance or a
+ * multiple resource is not known when it is started: room is reserved for the largest length field and the content
+ * is moved back over the unused bytes when the container is ended, so that the output is identical to
+ * {@link TlvEncoder#encode(Tlv[])}.
+ * </p>
+ * <p>
+ * The buffer grows as needed. A writer can be reused with {@link #reset()} to keep its buffer. It is not thread-safe.
+ * </p>
+ */
+public class TlvWriter {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // the room reserved for the length of the containers (24 bits)
+    private static final int MAX_LENGTH_SIZE = 3;
+
+    private byte[] buffer;
+    private int size;
+
+    // the offsets of the headers of the open containers
+    private int[] containers = new int[4];
+    private int depth;
+
+    public TlvWriter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity the initial size of the buffer
+     */
+    public TlvWriter(int initialCapacity) {
+        this(new byte[initialCapacity]);
+    }
+
+    /**
+     * Creates a writer starting with a given buffer, replaced by a larger copy if the content does not fit.
+     *
+     * @param buffer the buffer to write into
+     */
+    public TlvWriter(byte[] buffer) {
+        Validate.notNull(buffer);
+        this.buffer = buffer;
+    }
+
+    /**
+     * Starts an object instance or a multiple resource: the next entries are its children until
+     * {@link #endContainer()} is called.
+     */
+    public void startContainer(TlvType type, int identifier) {
+        if (type != TlvType.OBJECT_INSTANCE && type != TlvType.MULTIPLE_RESOURCE) {
+            throw new IllegalArgumentException("a " + type + " is not a container");
+        }
+        if (depth == containers.length) {
+            containers = Arrays.copyOf(containers, depth * 2);
+        }
+        containers[depth++] = size;
+
+        // the length is set when the container is ended
+        writeHeader(type, identifier, 0);
+        ensureCapacity(MAX_LENGTH_SIZE);
+        size += MAX_LENGTH_SIZE;
+    }
+
+    /**
+     * Ends the last started container.
+     */
+    public void endContainer() {
+        if (depth == 0) {
+            throw new IllegalStateException("no container started");
+        }
+        int header = containers[--depth];
+        int lengthOffset = header + 1 + identifierSize(buffer[header]);
+        int contentOffset = lengthOffset + MAX_LENGTH_SIZE;
+        int length = size - contentOffset;
+
+        // move the content over the unused bytes of the length field
+        int lengthSize = lengthSize(length);
+        int unused = MAX_LENGTH_SIZE - lengthSize;
+        if (unused > 0) {
+            System.arraycopy(buffer, contentOffset, buffer, contentOffset - unused, length);
+            size -= unused;
+        }
+        buffer[header] |= lengthType(length);
+        writeLength(lengthOffset, length, lengthSize);
+    }
+
+    /**
+     * Writes a resource value or a resource instance.
+     */
+    public void writeValue(TlvType type, int identifier, byte[] value) {
+        if (type != TlvType.RESOURCE_VALUE && type != TlvType.RESOURCE_INSTANCE) {
+            throw new IllegalArgumentException("a " + type + " can't have a value");
+        }
+        writeHeader(type, identifier, value.length);
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, buffer, size, value.length);
+        size += value.length;
+    }
+
+    /**
+     * Writes a string value, like {@link TlvEncoder#encodeString(String)}.
+     */
+    public void writeString(TlvType type, int identifier, String value) {
+        writeValue(type, identifier, value.getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * Writes an integer value on the smallest number of bytes, like {@link TlvEncoder#encodeInteger(Number)}.
+     */
+    public void writeInteger(TlvType type, int identifier, Number value) {
+        long lValue = value.longValue();
+        if (lValue >= Byte.MIN_VALUE && lValue <= Byte.MAX_VALUE) {
+            writeNumber(type, identifier, lValue, 1);
+        } else if (lValue >= Short.MIN_VALUE && lValue <= Short.MAX_VALUE) {
+            writeNumber(type, identifier, lValue, 2);
+        } else if (lValue >= Integer.MIN_VALUE && lValue <= Integer.MAX_VALUE) {
+            writeNumber(type, identifier, lValue, 4);
+        } else {
+            writeNumber(type, identifier, lValue, 8);
+        }
+    }
+
+    /**
+     * Writes a floating point value, like {@link TlvEncoder#encodeFloat(Number)}.
+     */
+    public void writeFloat(TlvType type, int identifier, Number value) {
+        double dValue = value.doubleValue();
+        if (dValue >= Float.MIN_VALUE && dValue <= Float.MAX_VALUE) {
+            writeNumber(type, identifier, Float.floatToIntBits((float) dValue), 4);
+        } else {
+            writeNumber(type, identifier, Double.doubleToLongBits(dValue), 8);
+        }
+    }
+
+    /**
+     * Writes a boolean value, like {@link TlvEncoder#encodeBoolean(boolean)}.
+     */
+    public void writeBoolean(TlvType type, int identifier, boolean value) {
+        writeNumber(type, identifier, value ? 1 : 0, 1);
+    }
+
+    /**
+     * Writes a date value, like {@link TlvEncoder#encodeDate(Date)}.
+     */
+    public void writeDate(TlvType type, int identifier, Date value) {
+        writeNumber(type, identifier, (int) (value.getTime() / 1000L), 4);
+    }
+
+    /**
+     * Writes a TLV and its children.
+     */
+    public void write(Tlv tlv) {
+        switch (tlv.getType()) {
+        case RESOURCE_VALUE:
+        case RESOURCE_INSTANCE:
+            writeValue(tlv.getType(), tlv.getIdentifier(), tlv.getValue());
+            break;
+        default:
+            startContainer(tlv.getType(), tlv.getIdentifier());
+            for (Tlv child : tlv.getChildren()) {
+                write(child);
+            }
+            endContainer();
+        }
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a copy of the bytes written
+     */
+    public byte[] toByteArray() {
+        checkComplete();
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * @return a view of the bytes written, valid until the writer is reset
+     */
+    public ByteBuffer toByteBuffer() {
+        checkComplete();
+        return ByteBuffer.wrap(buffer, 0, size);
+    }
+
+    /**
+     * Discards the bytes written, keeping the buffer.
+     */
+    public void reset() {
+        size = 0;
+        depth = 0;
+    }
+
+    /**
+     * @return the current size of the buffer
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    private void writeNumber(TlvType type, int identifier, long value, int length) {
+        if (type != TlvType.RESOURCE_VALUE && type != TlvType.RESOURCE_INSTANCE) {
+            throw new IllegalArgumentException("a " + type + " can't have a value");
+        }
+        writeHeader(type, identifier, length);
+        ensureCapacity(length);
+        for (int i = length - 1; i >= 0; i--) {
+            buffer[size++] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    private void writeHeader(TlvType type, int identifier, int length) {
+        if (identifier < 0 || identifier > 0xFFFF) {
+            throw new IllegalArgumentException("identifier should fit in 16 bits: " + identifier);
+        }
+        int lengthSize = lengthSize(length);
+        ensureCapacity(1 + 2 + lengthSize);
+
+        int typeByte;
+        switch (type) {
+        case OBJECT_INSTANCE:
+            typeByte = 0b00_000000;
+            break;
+        case RESOURCE_INSTANCE:
+            typeByte = 0b01_000000;
+            break;
+        case MULTIPLE_RESOURCE:
+            typeByte = 0b10_000000;
+            break;
+        default:
+            typeByte = 0b11_000000;
+            break;
+        }
+        if (identifier > 0xFF) {
+            typeByte |= 0b0010_0000;
+        }
+        typeByte |= lengthType(length);
+
+        buffer[size++] = (byte) typeByte;
+        if (identifier > 0xFF) {
+            buffer[size++] = (byte) (identifier >>> 8);
+        }
+        buffer[size++] = (byte) identifier;
+        writeLength(size, length, lengthSize);
+        size += lengthSize;
+    }
+
+    private void writeLength(int offset, int length, int lengthSize) {
+        for (int i = 0; i < lengthSize; i++) {
+            buffer[offset + i] = (byte) (length >>> ((lengthSize - 1 - i) * 8));
+        }
+    }
+
+    private static int lengthSize(int length) {
+        if (length < 8) {
+            return 0;
+        } else if (length < 256) {
+            return 1;
+        } else if (length < 65_536) {
+            return 2;
+        } else if (length < 16_777_216) {
+            return 3;
+        } else {
+            throw new IllegalArgumentException("length should fit in max 24bits");
+        }
+    }
+
+    private static int lengthType(int length) {
+        switch (lengthSize(length)) {
+        case 0:
+            return length;
+        case 1:
+            return 0b0000_1000;
+        case 2:
+            return 0b0001_0000;
+        default:
+            return 0b0001_1000;
+        }
+    }
+
+    private static int identifierSize(byte typeByte) {
+        return (typeByte & 0b0010_0000) == 0 ? 1 : 2;
+    }
+
+    private void ensureCapacity(int length) {
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+        }
+    }
+
+    private void checkComplete() {
+        if (depth > 0) {
+            throw new IllegalStateException(depth + " container(s) not ended");
+        }
+    }
+}
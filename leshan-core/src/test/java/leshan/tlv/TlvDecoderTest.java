@@ -32,6 +32,8 @@ package leshan.tlv;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import leshan.tlv.Tlv.TlvType;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -57,6 +59,24 @@ public class TlvDecoderTest {
         Assert.assertTrue(Arrays.equals(bytes, buff.array()));
     }
 
+    @Test
+    public void decode_24_bit_length() throws TlvException {
+        for (int length : new int[] { 65_535, 65_536, 70_000 }) {
+            TlvWriter writer = new TlvWriter();
+            writer.writeValue(TlvType.RESOURCE_VALUE, 1, new byte[length]);
+
+            Tlv[] tlv = TlvDecoder.decode(writer.toByteBuffer());
+            Assert.assertEquals(1, tlv.length);
+            Assert.assertEquals(length, tlv[0].getValue().length);
+        }
+    }
+
+    @Test(expected = TlvException.class)
+    public void decode_truncated_value() throws TlvException {
+        // resource 1, announced length 6, only 3 bytes of value
+        TlvDecoder.decode(ByteBuffer.wrap(new byte[] { (byte) 0xC6, 0x01, 0x01, 0x02, 0x03 }));
+    }
+
     protected byte[] hexStringToByteArray(String hexString) {
 
         if (hexString.length() % 2 > 0) {
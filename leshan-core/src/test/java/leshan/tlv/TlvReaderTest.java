@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.tlv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import leshan.tlv.Tlv.TlvType;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link TlvReader}
+ */
+public class TlvReaderTest {
+
+    @Test
+    public void walks_the_entries_in_place() throws TlvException {
+        Tlv[] tlvs = new Tlv[] {
+                                new Tlv(TlvType.RESOURCE_VALUE, null, "Leshan".getBytes(), 0),
+                                new Tlv(TlvType.MULTIPLE_RESOURCE, new Tlv[] {
+                                                        new Tlv(TlvType.RESOURCE_INSTANCE, null, new byte[] { 1 }, 0),
+                                                        new Tlv(TlvType.RESOURCE_INSTANCE, null, new byte[] { -2, 0 },
+                                                                200) }, null, 6) };
+        ByteBuffer buffer = TlvEncoder.encode(tlvs);
+        int position = buffer.position();
+
+        TlvReader reader = new TlvReader(buffer);
+        assertEquals(2, reader.count());
+
+        assertTrue(reader.next());
+        assertEquals(TlvType.RESOURCE_VALUE, reader.getType());
+        assertEquals(0, reader.getIdentifier());
+        assertEquals(6, reader.getLength());
+        assertEquals("Leshan", reader.getValueAsString());
+
+        assertTrue(reader.next());
+        assertEquals(TlvType.MULTIPLE_RESOURCE, reader.getType());
+        assertEquals(6, reader.getIdentifier());
+
+        TlvReader children = reader.children(new TlvReader());
+        assertEquals(2, children.count());
+        assertTrue(children.next());
+        assertEquals(1, children.getValueAsLong());
+        assertTrue(children.next());
+        assertEquals(200, children.getIdentifier());
+        assertEquals(-512, children.getValueAsLong());
+        assertArrayEquals(new byte[] { -2, 0 }, children.getValueAsBytes());
+        assertFalse(children.next());
+
+        assertFalse(reader.next());
+        assertEquals(position, buffer.position());
+    }
+
+    @Test
+    public void decodes_same_as_tlv_decoder() throws TlvException {
+        byte[] bytes = new TlvDecoderTest()
+                .hexStringToByteArray("C800144F70656E204D6F62696C6520416C6C69616E6365C801164C69676874776569676874204D324D20436C69656E74C80209333435303030313233C303312E30860641000141010588070842000ED842011388870841007D42010384C10964C10A0F830B410000C40D5182428FC60E2B30323A3030C10F55");
+        Tlv[] tlvs = TlvDecoder.decode(ByteBuffer.wrap(bytes));
+
+        // the byte order of the buffer is ignored
+        TlvReader reader = new TlvReader(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN));
+        TlvReader children = new TlvReader();
+        assertEquals(tlvs.length, reader.count());
+        for (Tlv tlv : tlvs) {
+            assertTrue(reader.next());
+            assertEquals(tlv.getType(), reader.getType());
+            assertEquals(tlv.getIdentifier(), reader.getIdentifier());
+            if (tlv.getValue() != null) {
+                assertArrayEquals(tlv.getValue(), reader.getValueAsBytes());
+            } else {
+                reader.children(children);
+                for (Tlv child : tlv.getChildren()) {
+                    assertTrue(children.next());
+                    assertEquals(child.getIdentifier(), children.getIdentifier());
+                    assertArrayEquals(child.getValue(), children.getValueAsBytes());
+                }
+                assertFalse(children.next());
+            }
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void decodes_the_numbers() throws TlvException {
+        ByteBuffer buffer = TlvEncoder.encode(new Tlv[] {
+                                new Tlv(TlvType.RESOURCE_VALUE, null, TlvEncoder.encodeFloat(1.5f), 0),
+                                new Tlv(TlvType.RESOURCE_VALUE, null, TlvEncoder.encodeFloat(-2.25d), 1),
+                                new Tlv(TlvType.RESOURCE_VALUE, null, TlvEncoder.encodeInteger(Long.MIN_VALUE), 2) });
+
+        TlvReader reader = new TlvReader(buffer);
+        reader.next();
+        assertEquals(1.5, reader.getValueAsDouble(), 0);
+        reader.next();
+        assertEquals(-2.25, reader.getValueAsDouble(), 0);
+        reader.next();
+        assertEquals(Long.MIN_VALUE, reader.getValueAsLong());
+    }
+
+    @Test
+    public void truncated_value_is_rejected() {
+        // a resource value of 4 bytes with only 2 bytes
+        TlvReader reader = new TlvReader(ByteBuffer.wrap(new byte[] { (byte) 0b1100_0100, 0, 1, 2 }));
+        try {
+            reader.next();
+            fail();
+        } catch (TlvException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void decodes_16_bit_identifier_and_24_bit_length() throws TlvException {
+        byte[] bytes = new byte[6 + 70_000];
+        bytes[0] = (byte) 0b1111_1000;
+        bytes[1] = 0x01;
+        bytes[2] = 0x2C;
+        bytes[3] = 0x01;
+        bytes[4] = 0x11;
+        bytes[5] = 0x70;
+
+        TlvReader reader = new TlvReader(ByteBuffer.wrap(bytes));
+        assertTrue(reader.next());
+        assertEquals(300, reader.getIdentifier());
+        assertEquals(6, reader.getValueOffset());
+        assertEquals(70_000, reader.getLength());
+        assertFalse(reader.next());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.tlv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import leshan.tlv.Tlv.TlvType;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link TlvWriter}
+ */
+public class TlvWriterTest {
+
+    @Test
+    public void container_lengths_are_back_patched() throws TlvException {
+        for (int valueLength : new int[] { 0, 5, 6, 250, 70_000 }) {
+            TlvWriter writer = new TlvWriter(16);
+            writer.startContainer(TlvType.OBJECT_INSTANCE, 1);
+            writer.writeValue(TlvType.RESOURCE_VALUE, 2, new byte[valueLength]);
+            writer.endContainer();
+
+            TlvReader reader = new TlvReader(writer.toByteBuffer());
+            assertTrue(reader.next());
+            assertEquals(TlvType.OBJECT_INSTANCE, reader.getType());
+            assertEquals(writer.size(), reader.getValueOffset() + reader.getLength());
+
+            TlvReader children = reader.children(new TlvReader());
+            assertTrue(children.next());
+            assertEquals(2, children.getIdentifier());
+            assertEquals(valueLength, children.getLength());
+            assertFalse(children.next());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void write_device_object() {
+        // the /3/0 instance from liblwm2m, see TlvDecoderTest
+        byte[] expected = new TlvDecoderTest()
+                .hexStringToByteArray("C800144F70656E204D6F62696C6520416C6C69616E6365C801164C69676874776569676874204D"
+                        + "324D20436C69656E74C80209333435303030313233C303312E30860641000141010588070842000ED84201138887"
+                        + "0841007D42010384C10964C10A0F830B410000C40D5182428FC60E2B30323A3030C10F55");
+
+        TlvWriter writer = new TlvWriter();
+        writer.writeString(TlvType.RESOURCE_VALUE, 0, "Open Mobile Alliance");
+        writer.writeString(TlvType.RESOURCE_VALUE, 1, "Lightweight M2M Client");
+        writer.writeString(TlvType.RESOURCE_VALUE, 2, "345000123");
+        writer.writeString(TlvType.RESOURCE_VALUE, 3, "1.0");
+        writer.startContainer(TlvType.MULTIPLE_RESOURCE, 6);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 0, 1);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 1, 5);
+        writer.endContainer();
+        writer.startContainer(TlvType.MULTIPLE_RESOURCE, 7);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 0, 3800);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 1, 5000);
+        writer.endContainer();
+        writer.startContainer(TlvType.MULTIPLE_RESOURCE, 8);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 0, 125);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 1, 900);
+        writer.endContainer();
+        writer.writeInteger(TlvType.RESOURCE_VALUE, 9, 100);
+        writer.writeInteger(TlvType.RESOURCE_VALUE, 10, 15);
+        writer.startContainer(TlvType.MULTIPLE_RESOURCE, 11);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 0, 0);
+        writer.endContainer();
+        writer.writeDate(TlvType.RESOURCE_VALUE, 13, new Date(1367491215000L));
+        writer.writeString(TlvType.RESOURCE_VALUE, 14, "+02:00");
+        writer.writeString(TlvType.RESOURCE_VALUE, 15, "U");
+
+        assertArrayEquals(expected, writer.toByteArray());
+        assertEquals(ByteBuffer.wrap(expected), writer.toByteBuffer());
+    }
+
+    @Test
+    public void write_float_and_boolean_values() {
+        TlvWriter writer = new TlvWriter();
+        writer.startContainer(TlvType.OBJECT_INSTANCE, 0);
+        writer.writeFloat(TlvType.RESOURCE_VALUE, 1, 1.5);
+        writer.writeBoolean(TlvType.RESOURCE_VALUE, 2, true);
+        writer.endContainer();
+
+        // 32-bit float, 1 byte boolean
+        assertArrayEquals(new byte[] { 0x08, 0x00, 0x09, (byte) 0xC4, 0x01, 0x3F, (byte) 0xC0, 0x00, 0x00,
+                                (byte) 0xC1, 0x02, 0x01 }, writer.toByteArray());
+    }
+
+    @Test
+    public void large_identifiers_are_written_on_16_bits() throws TlvException {
+        TlvWriter writer = new TlvWriter();
+        writer.writeInteger(TlvType.RESOURCE_VALUE, 300, -1);
+
+        assertArrayEquals(new byte[] { (byte) 0b1110_0001, 0x01, 0x2C, (byte) 0xFF }, writer.toByteArray());
+    }
+
+    @Test
+    public void writer_is_reusable() {
+        byte[] buffer = new byte[4];
+        TlvWriter writer = new TlvWriter(buffer);
+        writer.writeString(TlvType.RESOURCE_VALUE, 1, "a longer value than the buffer");
+        int capacity = writer.capacity();
+        assertTrue(capacity > buffer.length);
+
+        writer.reset();
+        writer.writeBoolean(TlvType.RESOURCE_VALUE, 1, false);
+        assertArrayEquals(new byte[] { (byte) 0b1100_0001, 1, 0 }, writer.toByteArray());
+        assertEquals(capacity, writer.capacity());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unended_container_is_rejected() {
+        TlvWriter writer = new TlvWriter();
+        writer.startContainer(TlvType.MULTIPLE_RESOURCE, 1);
+        writer.toByteArray();
+    }
+}
@@ -34,14 +34,21 @@ import java.net.InetSocketAddress;
 import java.util.HashSet;
 import java.util.Set;
 
+import leshan.ResponseCode;
 import leshan.core.objectspec.Resources;
 import leshan.core.response.ClientResponse;
 import leshan.core.response.ExceptionConsumer;
 import leshan.core.response.ResponseConsumer;
+import leshan.core.response.ValueResponse;
 import leshan.server.LwM2mServer;
 import leshan.server.californium.impl.CaliforniumLwM2mRequestSender;
+import leshan.server.californium.impl.ClientCircuitBreaker;
+import leshan.server.californium.impl.LinkObjectCache;
 import leshan.server.californium.impl.LwM2mPskStore;
+import leshan.server.californium.impl.OutboundRequestQueue;
 import leshan.server.californium.impl.RegisterResource;
+import leshan.server.californium.impl.RegistrationAdmissionControl;
+import leshan.server.californium.impl.RttEstimator;
 import leshan.server.californium.impl.SecureEndpoint;
 import leshan.server.client.Client;
 import leshan.server.client.ClientRegistry;
@@ -49,9 +56,16 @@ import leshan.server.client.ClientRegistryListener;
 import leshan.server.impl.ClientRegistryImpl;
 import leshan.server.impl.ObservationRegistryImpl;
 import leshan.server.impl.SecurityRegistryImpl;
+import leshan.server.metrics.Instrumentation;
+import leshan.server.metrics.NoOpInstrumentation;
 import leshan.server.observation.ObservationRegistry;
 import leshan.server.request.LwM2mRequest;
+import leshan.server.request.LwM2mRequestSender;
+import leshan.server.request.ReadRequest;
+import leshan.server.request.ResponseFuture;
 import leshan.server.security.SecurityRegistry;
+import leshan.server.shadow.DeviceShadow;
+import leshan.server.shadow.ShadowValue;
 import leshan.util.Validate;
 
 import org.eclipse.californium.core.CoapServer;
@@ -91,6 +105,8 @@ public class LeshanServer implements LwM2mServer {
 
     private final SecurityRegistry securityRegistry;
 
+    private final DeviceShadow shadow;
+
     /**
      * Initialize a server which will bind to default UDP port for CoAP (5684).
      */
@@ -125,18 +141,68 @@ public class LeshanServer implements LwM2mServer {
      */
     public LeshanServer(final InetSocketAddress localAddress, final InetSocketAddress localAddressSecure,
             final ClientRegistry clientRegistry, final SecurityRegistry securityRegistry, final ObservationRegistry observationRegistry) {
+        this(localAddress, localAddressSecure, clientRegistry, securityRegistry, observationRegistry, null);
+    }
+
+    /**
+     * Initialize a server which will bind to the specified address and port.
+     *
+     * @param localAddress the address to bind the CoAP server.
+     * @param localAddressSecure the address to bind the CoAP server for DTLS connection.
+     * @param admissionControl the limits applied to the registration requests, <code>null</code> to accept all of them.
+     */
+    public LeshanServer(final InetSocketAddress localAddress, final InetSocketAddress localAddressSecure,
+            final ClientRegistry clientRegistry, final SecurityRegistry securityRegistry,
+            final ObservationRegistry observationRegistry, final RegistrationAdmissionControl admissionControl) {
+        this(localAddress, localAddressSecure, clientRegistry, securityRegistry, observationRegistry, admissionControl,
+                null);
+    }
+
+    /**
+     * Initialize a server which will bind to the specified address and port.
+     *
+     * @param localAddress the address to bind the CoAP server.
+     * @param localAddressSecure the address to bind the CoAP server for DTLS connection.
+     * @param admissionControl the limits applied to the registration requests, <code>null</code> to accept all of them.
+     * @param shadow the last known values of the clients resources, used by {@link #read(ReadRequest, long)}.
+     *        <code>null</code> to always read the clients.
+     */
+    public LeshanServer(final InetSocketAddress localAddress, final InetSocketAddress localAddressSecure,
+            final ClientRegistry clientRegistry, final SecurityRegistry securityRegistry,
+            final ObservationRegistry observationRegistry, final RegistrationAdmissionControl admissionControl,
+            final DeviceShadow shadow) {
+        this(localAddress, localAddressSecure, clientRegistry, securityRegistry, observationRegistry, admissionControl,
+                shadow, NoOpInstrumentation.INSTANCE);
+    }
+
+    /**
+     * Initialize a server which will bind to the specified address and port.
+     *
+     * @param localAddress the address to bind the CoAP server.
+     * @param localAddressSecure the address to bind the CoAP server for DTLS connection.
+     * @param admissionControl the limits applied to the registration requests, <code>null</code> to accept all of them.
+     * @param shadow the last known values of the clients resources, used by {@link #read(ReadRequest, long)}.
+     *        <code>null</code> to always read the clients.
+     * @param instrumentation receives the measures of the requests, the round-trip times, the registrations and the
+     *        observations. The registries given as parameters are not instrumented, only the default ones.
+     */
+    public LeshanServer(final InetSocketAddress localAddress, final InetSocketAddress localAddressSecure,
+            final ClientRegistry clientRegistry, final SecurityRegistry securityRegistry,
+            final ObservationRegistry observationRegistry, final RegistrationAdmissionControl admissionControl,
+            final DeviceShadow shadow, final Instrumentation instrumentation) {
         Validate.notNull(localAddress, "IP address cannot be null");
         Validate.notNull(localAddressSecure, "Secure IP address cannot be null");
+        Validate.notNull(instrumentation);
 
         // init registry
         if (clientRegistry == null) {
-			this.clientRegistry = new ClientRegistryImpl();
+			this.clientRegistry = new ClientRegistryImpl(ClientRegistryImpl.DEFAULT_CLEANUP_BATCH_SIZE, instrumentation);
 		} else {
 			this.clientRegistry = clientRegistry;
 		}
 
         if (observationRegistry == null) {
-			this.observationRegistry = new ObservationRegistryImpl();
+			this.observationRegistry = new ObservationRegistryImpl(instrumentation);
 		} else {
 			this.observationRegistry = observationRegistry;
 		}
@@ -177,14 +243,34 @@ public class LeshanServer implements LwM2mServer {
         coapServer.addEndpoint(secureEndpoint);
 
         // define /rd resource
-        final RegisterResource rdResource = new RegisterResource(this.clientRegistry, this.securityRegistry);
+        final RegisterResource rdResource = new RegisterResource(this.clientRegistry, this.securityRegistry,
+                new LinkObjectCache(RegisterResource.DEFAULT_LINK_CACHE_SIZE), admissionControl, instrumentation);
         coapServer.add(rdResource);
 
         // create sender
         final Set<Endpoint> endpoints = new HashSet<>();
         endpoints.add(endpoint);
         endpoints.add(secureEndpoint);
-        requestSender = new CaliforniumLwM2mRequestSender(endpoints, this.observationRegistry);
+        final RttEstimator rttEstimator = new RttEstimator(RttEstimator.DEFAULT_TIMEOUT_FACTOR,
+                RttEstimator.DEFAULT_MIN_TIMEOUT_MILLIS, RttEstimator.DEFAULT_MAX_TIMEOUT_MILLIS, instrumentation);
+        final OutboundRequestQueue outboundQueue = new OutboundRequestQueue(OutboundRequestQueue.DEFAULT_MAX_IN_FLIGHT,
+                OutboundRequestQueue.DEFAULT_MAX_QUEUE_SIZE, OutboundRequestQueue.DEFAULT_MAX_AGE_MILLIS,
+                OutboundRequestQueue.DEFAULT_AWAKE_WINDOW_MILLIS, rttEstimator);
+        requestSender = new CaliforniumLwM2mRequestSender(endpoints, this.observationRegistry,
+                CaliforniumLwM2mRequestSender.DEFAULT_TIMEOUT_MILLIS, outboundQueue, shadow,
+                new ClientCircuitBreaker(), instrumentation);
+
+        // flush the requests held for the clients in queue mode when they update their registration, forget the
+        // round-trip time of the clients which de-register, reset their circuit
+        this.clientRegistry.addListener(requestSender.getOutboundQueue());
+        this.clientRegistry.addListener(requestSender.getOutboundQueue().getRttEstimator());
+        this.clientRegistry.addListener(requestSender.getCircuitBreaker());
+
+        // forget the values of the clients which (de-)register
+        this.shadow = shadow;
+        if (shadow != null) {
+            this.clientRegistry.addListener(shadow);
+        }
     }
 
     /**
@@ -233,6 +319,12 @@ public class LeshanServer implements LwM2mServer {
                 LOG.info("LW-M2M server started");
             }
         }
+
+        if (securityRegistry instanceof SecurityRegistryImpl) {
+            ((SecurityRegistryImpl) securityRegistry).stop();
+        }
+
+        requestSender.destroy();
     }
 
     @Override
@@ -250,6 +342,20 @@ public class LeshanServer implements LwM2mServer {
         return this.securityRegistry;
     }
 
+    /**
+     * @return the last known values of the clients resources, <code>null</code> if disabled
+     */
+    public DeviceShadow getShadow() {
+        return this.shadow;
+    }
+
+    /**
+     * @return the sender used by this server, e.g. to build a {@link leshan.server.request.BulkRequestExecutor}
+     */
+    public LwM2mRequestSender getRequestSender() {
+        return this.requestSender;
+    }
+
     @Override
     public <T extends ClientResponse> T send(final LwM2mRequest<T> request) {
         return requestSender.send(request);
@@ -260,4 +366,21 @@ public class LeshanServer implements LwM2mServer {
             final ExceptionConsumer errorCallback) {
         requestSender.send(request, responseCallback, errorCallback);
     }
+
+    @Override
+    public ValueResponse read(final ReadRequest request, final long maxAgeMillis) {
+        if (shadow != null && maxAgeMillis > 0) {
+            final ShadowValue value = shadow.get(request.getClient().getEndpoint(), request.getPath(), maxAgeMillis);
+            if (value != null) {
+                return new ValueResponse(ResponseCode.CONTENT, value.getNode());
+            }
+        }
+        return requestSender.send(request);
+    }
+
+    @Override
+    public <T extends ClientResponse> ResponseFuture<T> sendAsync(final LwM2mRequest<T> request,
+            final long timeoutMillis) {
+        return requestSender.sendAsync(request, timeoutMillis);
+    }
 }
@@ -29,22 +29,33 @@
  */
 package leshan.server.californium.impl;
 
-import java.nio.ByteBuffer;
+import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import leshan.server.bootstrap.BootstrapConfig;
 import leshan.server.bootstrap.BootstrapConfig.ServerConfig;
 import leshan.server.bootstrap.BootstrapConfig.ServerSecurity;
 import leshan.server.bootstrap.BootstrapStore;
-import leshan.tlv.Tlv;
 import leshan.tlv.Tlv.TlvType;
-import leshan.tlv.TlvEncoder;
+import leshan.tlv.TlvWriter;
+import leshan.util.Validate;
 
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Endpoint;
@@ -52,17 +63,88 @@ import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * The bootstrap resource ("/bs").
+ * <p>
+ * Once a bootstrap request is acknowledged, the configuration is pushed to the client by a sequence of requests (delete
+ * "/", write "/0", write "/1"). Each request is sent when the response to the previous one is received, so that no
+ * thread is blocked while waiting for the client.
+ * </p>
+ */
 public class BootstrapResource extends CoapResource {
 
     private static final Logger LOG = LoggerFactory.getLogger(BootstrapResource.class);
     private static final String QUERY_PARAM_ENDPOINT = "ep=";
     private static final int TIMEOUT_MILLI = 20_000;
+    private static final int DEFAULT_MAX_RETRIES = 2;
+    private static final int DEFAULT_MAX_SESSIONS = 1000;
 
     private BootstrapStore store;
 
+    private final long stepTimeout;
+
+    private final int maxRetries;
+
+    // the number of bootstrap sessions which can still be started
+    private final Semaphore sessions;
+
+    private final ScheduledExecutorService timer;
+
+    // the encoded payloads by configuration instance (BootstrapConfig has identity equality): a configuration added
+    // to or removed from the store is a new instance or is no longer returned, the weak keys let the stale entries go
+    private final Map<BootstrapConfig, EncodedConfig> encodedConfigs = Collections
+            .synchronizedMap(new WeakHashMap<BootstrapConfig, EncodedConfig>());
+
     public BootstrapResource(BootstrapStore store) {
+        this(store, DEFAULT_MAX_SESSIONS, TIMEOUT_MILLI, DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * @param store the bootstrap configurations
+     * @param maxSessions the maximum number of bootstrap sequences in progress, the bootstrap requests received above
+     *        this limit are answered with a 5.03 (Service Unavailable)
+     * @param stepTimeout the time (in milliseconds) to wait for the response to each request of the sequence
+     * @param maxRetries the number of times a request is sent again after a time-out before giving up
+     */
+    public BootstrapResource(BootstrapStore store, int maxSessions, long stepTimeout, int maxRetries) {
         super("bs");
+        Validate.isTrue(maxSessions > 0, "max sessions must be positive");
+        Validate.isTrue(stepTimeout > 0, "step timeout must be positive");
+        Validate.isTrue(maxRetries >= 0, "max retries must not be negative");
+
         this.store = store;
+        this.sessions = new Semaphore(maxSessions);
+        this.stepTimeout = stepTimeout;
+        this.maxRetries = maxRetries;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = delegate.newThread(r);
+                thread.setName("BootstrapTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // most of the time-outs are cancelled by a response
+        executor.setRemoveOnCancelPolicy(true);
+        this.timer = executor;
+    }
+
+    /**
+     * Stops the timer of the bootstrap sequences, the sequences in progress are abandoned.
+     */
+    public void destroy() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * @return the number of bootstrap sequences which can still be started
+     */
+    public int getAvailableSessions() {
+        return sessions.availablePermits();
     }
 
     @Override
@@ -97,121 +179,232 @@ public class BootstrapResource extends CoapResource {
             exchange.respond(ResponseCode.BAD_REQUEST);
             return;
         }
-        exchange.respond(ResponseCode.CHANGED);
 
-        // now push the config
+        // the config to push
+        EncodedConfig encoded = encode(cfg);
+        List<Step> steps = new ArrayList<>(3);
 
         // first delete everything
+        steps.add(new Step("delete", "/", null));
 
-        Endpoint e = exchange.advanced().getEndpoint();
-        Request deleteAll = Request.newDelete();
-        deleteAll.getOptions().addURIPath("/");
-        deleteAll.setConfirmable(true);
-        deleteAll.setDestination(exchange.getSourceAddress());
-        deleteAll.setDestinationPort(exchange.getSourcePort());
-
-        try {
-            Response response = deleteAll.send(e).waitForResponse(TIMEOUT_MILLI);
-            if (response == null) {
-                LOG.error("Bootstrap {} delete timeout", endpoint);
-                return;
-            }
-            LOG.debug("Bootstrap delete {} return code {}", endpoint, response.getCode());
-        } catch (InterruptedException e1) {
-            // get out!the server is stopping
+        // send security elements
+        steps.add(new Step("security", "/0", encoded.security));
+
+        // send the server settings
+        steps.add(new Step("server list", "/1", encoded.servers));
+
+        if (!sessions.tryAcquire()) {
+            LOG.warn("Too many bootstrap sessions in progress, bootstrap of {} rejected", endpoint);
+            exchange.respond(ResponseCode.SERVICE_UNAVAILABLE);
             return;
         }
-        // send security elements
+        exchange.respond(ResponseCode.CHANGED);
+
+        // now push the config, without waiting for the responses
+        new BootstrapSession(endpoint, exchange.advanced().getEndpoint(), exchange.getSourceAddress(),
+                exchange.getSourcePort(), steps).next();
+    }
+
+    /**
+     * Gets the TLV payloads of a configuration, encoded once per configuration instance.
+     */
+    private EncodedConfig encode(BootstrapConfig cfg) {
+        EncodedConfig encoded = encodedConfigs.get(cfg);
+        if (encoded != null) {
+            return encoded;
+        }
 
         // 1st encode them into a juicy TLV binary
-        Tlv[] secuInstances = new Tlv[cfg.security.size()];
-        int idx = 0;
+        TlvWriter writer = new TlvWriter(256);
         for (Map.Entry<Integer, BootstrapConfig.ServerSecurity> entry : cfg.security.entrySet()) {
-            // create the security entry for this server
-            secuInstances[idx++] = tlvEncode(entry.getKey(), entry.getValue());
-        }
-        ByteBuffer encoded = TlvEncoder.encode(secuInstances);
-
-        Request postSecurity = Request.newPost();
-        postSecurity.getOptions().addURIPath("/0");
-        postSecurity.setConfirmable(true);
-        postSecurity.setDestination(exchange.getSourceAddress());
-        postSecurity.setDestinationPort(exchange.getSourcePort());
-        postSecurity.setPayload(encoded.array());
-
-        try {
-            Response response = postSecurity.send(e).waitForResponse(TIMEOUT_MILLI);
-            if (response == null) {
-                LOG.error("security bootstrap of {} timeout", endpoint);
-                return;
-            }
-            LOG.debug("Security bootstrap of {} returned code {}", endpoint, response.getCode());
-        } catch (InterruptedException e1) {
-            // get out!the server is stopping
-            return;
+            // write the security entry for this server
+            tlvEncode(writer, entry.getKey(), entry.getValue());
         }
+        byte[] security = writer.toByteArray();
 
-        // send the server settings
-        Tlv[] serverInstances = new Tlv[cfg.servers.size()];
-        idx = 0;
+        // the buffer is reused for the servers
+        writer.reset();
         for (Map.Entry<Integer, BootstrapConfig.ServerConfig> entry : cfg.servers.entrySet()) {
-            // create the security entry for this server
-            serverInstances[idx++] = tlvEncode(entry.getKey(), entry.getValue());
-        }
-        encoded = TlvEncoder.encode(serverInstances);
-
-        Request postServer = Request.newPost();
-        postServer.getOptions().addURIPath("/1");
-        postServer.setConfirmable(true);
-        postServer.setDestination(exchange.getSourceAddress());
-        postServer.setDestinationPort(exchange.getSourcePort());
-        postServer.setPayload(encoded.array());
-
-        try {
-            Response response = postServer.send(e).waitForResponse(TIMEOUT_MILLI);
-            if (response == null) {
-                LOG.error("server list bootstrap of {} timeout", endpoint);
+            tlvEncode(writer, entry.getKey(), entry.getValue());
+        }
+
+        encoded = new EncodedConfig(security, writer.toByteArray());
+        encodedConfigs.put(cfg, encoded);
+        return encoded;
+    }
+
+    /**
+     * The security (/0) and server (/1) payloads of a configuration.
+     */
+    private static class EncodedConfig {
+        final byte[] security;
+        final byte[] servers;
+
+        EncodedConfig(byte[] security, byte[] servers) {
+            this.security = security;
+            this.servers = servers;
+        }
+    }
+
+    /**
+     * A request of the bootstrap sequence.
+     */
+    private static class Step {
+        final String name;
+        final String path;
+        // null for a delete
+        final byte[] payload;
+
+        Step(String name, String path, byte[] payload) {
+            this.name = name;
+            this.path = path;
+            this.payload = payload;
+        }
+
+        Request newRequest() {
+            Request request = payload == null ? Request.newDelete() : Request.newPost();
+            request.getOptions().addURIPath(path);
+            request.setConfirmable(true);
+            if (payload != null) {
+                request.setPayload(payload);
+            }
+            return request;
+        }
+    }
+
+    /**
+     * The state of the bootstrap sequence of a client: the requests are chained by the response callbacks.
+     */
+    private class BootstrapSession {
+        private final String endpoint;
+        private final Endpoint coapEndpoint;
+        private final InetAddress address;
+        private final int port;
+        private final List<Step> steps;
+
+        // only accessed by the thread handling the outcome of the current attempt
+        private int current = -1;
+        private int retries;
+
+        BootstrapSession(String endpoint, Endpoint coapEndpoint, InetAddress address, int port, List<Step> steps) {
+            this.endpoint = endpoint;
+            this.coapEndpoint = coapEndpoint;
+            this.address = address;
+            this.port = port;
+            this.steps = steps;
+        }
+
+        /**
+         * Sends the next request of the sequence or completes the session.
+         */
+        void next() {
+            current++;
+            retries = 0;
+            if (current < steps.size()) {
+                send();
+            } else {
+                LOG.debug("Bootstrap of {} done", endpoint);
+                sessions.release();
+            }
+        }
+
+        private void send() {
+            final Step step = steps.get(current);
+            final Request request = step.newRequest();
+            request.setDestination(address);
+            request.setDestinationPort(port);
+
+            // each attempt is completed once, by a response, a time-out or a rejection
+            final AtomicBoolean completed = new AtomicBoolean();
+            final ScheduledFuture<?> timeout;
+            try {
+                timeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (completed.compareAndSet(false, true)) {
+                            request.cancel();
+                            timedOut(step);
+                        }
+                    }
+                }, stepTimeout, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                // the timer is stopped, the server is stopping
+                sessions.release();
                 return;
             }
-            LOG.debug("Server list bootstrap of {} returned code {}", endpoint, response.getCode());
-        } catch (InterruptedException e1) {
-            // get out!the server is stopping
-            return;
+
+            request.addMessageObserver(new MessageObserverAdapter() {
+                @Override
+                public void onResponse(Response response) {
+                    if (completed.compareAndSet(false, true)) {
+                        timeout.cancel(false);
+                        LOG.debug("{} bootstrap of {} returned code {}", step.name, endpoint, response.getCode());
+                        next();
+                    }
+                }
+
+                @Override
+                public void onTimeout() {
+                    if (completed.compareAndSet(false, true)) {
+                        timeout.cancel(false);
+                        timedOut(step);
+                    }
+                }
+
+                @Override
+                public void onReject() {
+                    if (completed.compareAndSet(false, true)) {
+                        timeout.cancel(false);
+                        LOG.error("{} bootstrap of {} rejected", step.name, endpoint);
+                        sessions.release();
+                    }
+                }
+            });
+            request.send(coapEndpoint);
+        }
+
+        private void timedOut(Step step) {
+            if (retries < maxRetries) {
+                retries++;
+                LOG.debug("{} bootstrap of {} timeout, retry {}/{}", step.name, endpoint, retries, maxRetries);
+                send();
+            } else {
+                LOG.error("{} bootstrap of {} timeout", step.name, endpoint);
+                sessions.release();
+            }
         }
     }
 
-    private Tlv tlvEncode(int key, ServerSecurity value) {
-        Tlv[] resources = new Tlv[12];
-        resources[0] = new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeString(value.uri), 0);
-        resources[1] = new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeBoolean(value.bootstrapServer), 1);
-        resources[2] = new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeInteger(value.securityMode.code), 2);
-        resources[3] = new Tlv(TlvType.RESOURCE_INSTANCE, null, value.publicKeyOrId, 3);
-        resources[4] = new Tlv(TlvType.RESOURCE_INSTANCE, null, value.serverPublicKeyOrId, 4);
-        resources[5] = new Tlv(TlvType.RESOURCE_INSTANCE, null, value.secretKey, 5);
-        resources[6] = new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeInteger(value.smsSecurityMode.code), 6);
-        resources[7] = new Tlv(TlvType.RESOURCE_INSTANCE, null, value.smsBindingKeyParam, 7);
-        resources[8] = new Tlv(TlvType.RESOURCE_INSTANCE, null, value.smsBindingKeySecret, 8);
-        resources[9] = new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeString(value.serverSmsNumber), 9);
-        resources[10] = new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeInteger(value.serverId), 10);
-        resources[11] = new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeInteger(value.clientOldOffTime), 11);
-        return new Tlv(TlvType.OBJECT_INSTANCE, resources, null, key);
+    private void tlvEncode(TlvWriter writer, int key, ServerSecurity value) {
+        writer.startContainer(TlvType.OBJECT_INSTANCE, key);
+        writer.writeString(TlvType.RESOURCE_INSTANCE, 0, value.uri);
+        writer.writeBoolean(TlvType.RESOURCE_INSTANCE, 1, value.bootstrapServer);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 2, value.securityMode.code);
+        writer.writeValue(TlvType.RESOURCE_INSTANCE, 3, value.publicKeyOrId);
+        writer.writeValue(TlvType.RESOURCE_INSTANCE, 4, value.serverPublicKeyOrId);
+        writer.writeValue(TlvType.RESOURCE_INSTANCE, 5, value.secretKey);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 6, value.smsSecurityMode.code);
+        writer.writeValue(TlvType.RESOURCE_INSTANCE, 7, value.smsBindingKeyParam);
+        writer.writeValue(TlvType.RESOURCE_INSTANCE, 8, value.smsBindingKeySecret);
+        writer.writeString(TlvType.RESOURCE_INSTANCE, 9, value.serverSmsNumber);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 10, value.serverId);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 11, value.clientOldOffTime);
+        writer.endContainer();
     }
 
-    private Tlv tlvEncode(int key, ServerConfig value) {
-        List<Tlv> resources = new ArrayList<Tlv>();
-        resources.add(new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeInteger(value.shortId), 0));
-        resources.add(new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeInteger(value.lifetime), 1));
-        resources.add(new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeInteger(value.defaultMinPeriod), 2));
+    private void tlvEncode(TlvWriter writer, int key, ServerConfig value) {
+        writer.startContainer(TlvType.OBJECT_INSTANCE, key);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 0, value.shortId);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 1, value.lifetime);
+        writer.writeInteger(TlvType.RESOURCE_INSTANCE, 2, value.defaultMinPeriod);
         if (value.defaultMaxPeriod != null) {
-            resources
-                    .add(new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeInteger(value.defaultMaxPeriod), 3));
+            writer.writeInteger(TlvType.RESOURCE_INSTANCE, 3, value.defaultMaxPeriod);
         }
         if (value.disableTimeout != null) {
-            resources.add(new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeInteger(value.disableTimeout), 5));
+            writer.writeInteger(TlvType.RESOURCE_INSTANCE, 5, value.disableTimeout);
         }
-        resources.add(new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeBoolean(value.notifIfDisabled), 6));
-        resources.add(new Tlv(TlvType.RESOURCE_INSTANCE, null, TlvEncoder.encodeString(value.binding.name()), 7));
-
-        return new Tlv(TlvType.OBJECT_INSTANCE, resources.toArray(new Tlv[] {}), null, key);
+        writer.writeBoolean(TlvType.RESOURCE_INSTANCE, 6, value.notifIfDisabled);
+        writer.writeString(TlvType.RESOURCE_INSTANCE, 7, value.binding.name());
+        writer.endContainer();
     }
 }
@@ -30,26 +30,50 @@
 package leshan.server.californium.impl;
 
 import java.net.InetSocketAddress;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import leshan.core.node.LwM2mPath;
 import leshan.core.response.ClientResponse;
 import leshan.core.response.ExceptionConsumer;
 import leshan.core.response.ResponseConsumer;
+import leshan.core.response.ValueResponse;
 import leshan.server.client.Client;
+import leshan.server.metrics.Instrumentation;
+import leshan.server.metrics.NoOpInstrumentation;
+import leshan.server.metrics.RequestOutcome;
 import leshan.server.observation.ObservationRegistry;
+import leshan.server.request.AbstractLwM2mRequest;
+import leshan.server.request.ClientUnavailableException;
+import leshan.server.request.CreateRequest;
+import leshan.server.request.DeleteRequest;
 import leshan.server.request.LwM2mRequest;
 import leshan.server.request.LwM2mRequestSender;
+import leshan.server.request.ReadRequest;
 import leshan.server.request.RejectionException;
 import leshan.server.request.RequestTimeoutException;
 import leshan.server.request.ResourceAccessException;
+import leshan.server.request.ResponseFuture;
+import leshan.server.request.WriteRequest;
+import leshan.server.shadow.DeviceShadow;
 import leshan.util.Validate;
 
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MessageObserver;
 import org.eclipse.californium.core.coap.MessageObserverAdapter;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
@@ -60,49 +84,189 @@ import org.slf4j.LoggerFactory;
 public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender {
 
     private static final Logger LOG = LoggerFactory.getLogger(CaliforniumLwM2mRequestSender.class);
-    private static final int COAP_REQUEST_TIMEOUT_MILLIS = 5000;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
 
     private final Set<Endpoint> endpoints;
     private final ObservationRegistry observationRegistry;
     private final long timeoutMillis;
 
+    private final OutboundRequestQueue outboundQueue;
+    private final DeviceShadow shadow;
+    private final ClientCircuitBreaker circuitBreaker;
+    private final Instrumentation instrumentation;
+
+    // the operation name of each kind of request, for the instrumentation
+    private static final ConcurrentMap<Class<?>, String> OPERATIONS = new ConcurrentHashMap<>();
+
+    // the reads in flight, identical reads share the same CoAP exchange
+    private final ConcurrentMap<ReadKey, SharedRead> inFlightReads = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedReads = new AtomicLong();
+
+    // enforces the timeout of the asynchronous requests and purges the outbound queue
+    private final ScheduledExecutorService timer;
+
     /**
      * @param endpoints the CoAP endpoints to use for sending requests
      * @param observationRegistry the registry for keeping track of observed resources
      */
     public CaliforniumLwM2mRequestSender(final Set<Endpoint> endpoints, final ObservationRegistry observationRegistry) {
-        this(endpoints, observationRegistry, COAP_REQUEST_TIMEOUT_MILLIS);
+        this(endpoints, observationRegistry, DEFAULT_TIMEOUT_MILLIS);
     }
 
     /**
      * @param endpoints the CoAP endpoints to use for sending requests
      * @param observationRegistry the registry for keeping track of observed resources
-     * @param timeoutMillis timeout for synchronously sending of CoAP request
+     * @param timeoutMillis timeout for synchronously sending of CoAP request, until the round-trip time of the
+     *        client is measured
      */
     public CaliforniumLwM2mRequestSender(final Set<Endpoint> endpoints, final ObservationRegistry observationRegistry,
             final long timeoutMillis) {
+        this(endpoints, observationRegistry, timeoutMillis, new OutboundRequestQueue());
+    }
+
+    /**
+     * @param endpoints the CoAP endpoints to use for sending requests
+     * @param observationRegistry the registry for keeping track of observed resources
+     * @param timeoutMillis timeout for synchronously sending of CoAP request, until the round-trip time of the
+     *        client is measured
+     * @param outboundQueue the queue holding the requests until the clients can receive them, it must listen to the
+     *        client registry (see {@link #getOutboundQueue()})
+     */
+    public CaliforniumLwM2mRequestSender(final Set<Endpoint> endpoints, final ObservationRegistry observationRegistry,
+            final long timeoutMillis, final OutboundRequestQueue outboundQueue) {
+        this(endpoints, observationRegistry, timeoutMillis, outboundQueue, null);
+    }
+
+    /**
+     * @param endpoints the CoAP endpoints to use for sending requests
+     * @param observationRegistry the registry for keeping track of observed resources
+     * @param timeoutMillis timeout for synchronously sending of CoAP request, until the round-trip time of the
+     *        client is measured
+     * @param outboundQueue the queue holding the requests until the clients can receive them, it must listen to the
+     *        client registry (see {@link #getOutboundQueue()})
+     * @param shadow the last known values of the clients resources, <code>null</code> to disable it
+     */
+    public CaliforniumLwM2mRequestSender(final Set<Endpoint> endpoints, final ObservationRegistry observationRegistry,
+            final long timeoutMillis, final OutboundRequestQueue outboundQueue, final DeviceShadow shadow) {
+        this(endpoints, observationRegistry, timeoutMillis, outboundQueue, shadow, new ClientCircuitBreaker());
+    }
+
+    /**
+     * @param endpoints the CoAP endpoints to use for sending requests
+     * @param observationRegistry the registry for keeping track of observed resources
+     * @param timeoutMillis timeout for synchronously sending of CoAP request, until the round-trip time of the
+     *        client is measured
+     * @param outboundQueue the queue holding the requests until the clients can receive them, it must listen to the
+     *        client registry (see {@link #getOutboundQueue()})
+     * @param shadow the last known values of the clients resources, <code>null</code> to disable it
+     * @param circuitBreaker rejects the requests to the clients which do not answer, it must listen to the client
+     *        registry (see {@link #getCircuitBreaker()})
+     */
+    public CaliforniumLwM2mRequestSender(final Set<Endpoint> endpoints, final ObservationRegistry observationRegistry,
+            final long timeoutMillis, final OutboundRequestQueue outboundQueue, final DeviceShadow shadow,
+            final ClientCircuitBreaker circuitBreaker) {
+        this(endpoints, observationRegistry, timeoutMillis, outboundQueue, shadow, circuitBreaker,
+                NoOpInstrumentation.INSTANCE);
+    }
+
+    /**
+     * @param endpoints the CoAP endpoints to use for sending requests
+     * @param observationRegistry the registry for keeping track of observed resources
+     * @param timeoutMillis timeout for synchronously sending of CoAP request, until the round-trip time of the
+     *        client is measured
+     * @param outboundQueue the queue holding the requests until the clients can receive them, it must listen to the
+     *        client registry (see {@link #getOutboundQueue()})
+     * @param shadow the last known values of the clients resources, <code>null</code> to disable it
+     * @param circuitBreaker rejects the requests to the clients which do not answer, it must listen to the client
+     *        registry (see {@link #getCircuitBreaker()})
+     * @param instrumentation receives the latency and the outcome of the requests
+     */
+    public CaliforniumLwM2mRequestSender(final Set<Endpoint> endpoints, final ObservationRegistry observationRegistry,
+            final long timeoutMillis, final OutboundRequestQueue outboundQueue, final DeviceShadow shadow,
+            final ClientCircuitBreaker circuitBreaker, final Instrumentation instrumentation) {
         Validate.notNull(endpoints);
         Validate.notNull(observationRegistry);
+        Validate.notNull(outboundQueue);
+        Validate.notNull(circuitBreaker);
+        Validate.notNull(instrumentation);
         this.observationRegistry = observationRegistry;
         this.endpoints = endpoints;
         this.timeoutMillis = timeoutMillis;
+        this.outboundQueue = outboundQueue;
+        this.shadow = shadow;
+        this.circuitBreaker = circuitBreaker;
+        this.instrumentation = instrumentation;
+
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "RequestTimeout");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // most of the time-outs are cancelled by a response
+        executor.setRemoveOnCancelPolicy(true);
+        this.timer = executor;
+
+        // cancel the requests held for too long
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                outboundQueue.purge();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the round-trip time estimated for a client, or <code>null</code> if none was measured yet
+     */
+    public RttEstimate getRttEstimate(final String endpoint) {
+        return outboundQueue.getRttEstimator().getEstimate(endpoint);
+    }
+
+    /**
+     * @return the queue of the outbound requests
+     */
+    public OutboundRequestQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * @return the circuit breaker of the clients
+     */
+    public ClientCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Stops the timer of the asynchronous requests.
+     */
+    public void destroy() {
+        timer.shutdownNow();
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <T extends ClientResponse> T send(final LwM2mRequest<T> request) {
+        // wait according to the round-trip time of the client
+        final long timeout = outboundQueue.getRttEstimator().getTimeout(request.getClient().getEndpoint(),
+                timeoutMillis);
+        if (request instanceof ReadRequest) {
+            return (T) waitForRead(sendRead((ReadRequest) request, timeout));
+        }
+
         // Create the CoAP request from LwM2m request
-        final CoapRequestBuilder CoapRequestBuilder = new CoapRequestBuilder();
-        request.accept(CoapRequestBuilder);
-        final Request coapRequest = CoapRequestBuilder.getRequest();
+        final Request coapRequest = buildCoapRequest(request);
 
         // Send CoAP request synchronously
         final SyncRequestObserver<T> syncMessageObserver = new SyncRequestObserver<T>(coapRequest, request.getClient(),
-                timeoutMillis) {
+                timeout) {
             @Override
             public T buildResponse(final Response coapResponse) {
                 // Build LwM2m response
                 final LwM2mResponseBuilder<T> lwm2mResponseBuilder = new LwM2mResponseBuilder<T>(coapRequest, coapResponse,
-                        observationRegistry);
+                        observationRegistry, shadow, instrumentation);
                 request.accept(lwm2mResponseBuilder);
                 return lwm2mResponseBuilder.getResponse();
             }
@@ -110,20 +274,31 @@ public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender {
         coapRequest.addMessageObserver(syncMessageObserver);
 
         // Send CoAP request asynchronously
-        final Endpoint endpoint = getEndpointForClient(request.getClient());
-        endpoint.sendRequest(coapRequest);
+        transmit(request.getClient(), coapRequest);
 
         // Wait for response, then return it
         return syncMessageObserver.waitForResponse();
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <T extends ClientResponse> void send(final LwM2mRequest<T> request, final ResponseConsumer<T> responseCallback,
             final ExceptionConsumer errorCallback) {
+        if (request instanceof ReadRequest) {
+            // no timeout but the CoAP one, like the other requests
+            ((ResponseFuture<T>) sendRead((ReadRequest) request, 0)).addCallback(new ResponseConsumer<T>() {
+                @Override
+                public void accept(final T response) {
+                    if (response != null) {
+                        responseCallback.accept(response);
+                    }
+                }
+            }, errorCallback);
+            return;
+        }
+
         // Create the CoAP request from LwM2m request
-        final CoapRequestBuilder CoapRequestBuilder = new CoapRequestBuilder();
-        request.accept(CoapRequestBuilder);
-        final Request coapRequest = CoapRequestBuilder.getRequest();
+        final Request coapRequest = buildCoapRequest(request);
 
         // Add CoAP request callback
         coapRequest.addMessageObserver(new AsyncRequestObserver<T>(coapRequest, request.getClient(), responseCallback,
@@ -132,15 +307,285 @@ public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender {
             public T buildResponse(final Response coapResponse) {
                 // Build LwM2m response
                 final LwM2mResponseBuilder<T> lwm2mResponseBuilder = new LwM2mResponseBuilder<T>(coapRequest, coapResponse,
-                        observationRegistry);
+                        observationRegistry, shadow, instrumentation);
+                request.accept(lwm2mResponseBuilder);
+                return lwm2mResponseBuilder.getResponse();
+            }
+        });
+
+        // Send CoAP request asynchronously
+        try {
+            transmit(request.getClient(), coapRequest);
+        } catch (final ClientUnavailableException e) {
+            errorCallback.accept(e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends ClientResponse> ResponseFuture<T> sendAsync(final LwM2mRequest<T> request,
+            final long timeoutMillis) {
+        if (request instanceof ReadRequest) {
+            return (ResponseFuture<T>) sendRead((ReadRequest) request, timeoutMillis);
+        }
+
+        // Create the CoAP request from LwM2m request
+        final Request coapRequest = buildCoapRequest(request);
+
+        final ResponseFuture<T> future = new ResponseFuture<>();
+        sendAsync(request, coapRequest, future, timeoutMillis);
+        return future;
+    }
+
+    /**
+     * Sends a CoAP request completing a future.
+     * 
+     * @param timeoutMillis the time after which the future fails, 0 to rely on the CoAP timeout only
+     */
+    private <T extends ClientResponse> void sendAsync(final LwM2mRequest<T> request, final Request coapRequest,
+            final ResponseFuture<T> future, final long timeoutMillis) {
+        // Complete the future on response
+        coapRequest.addMessageObserver(new FutureRequestObserver<T>(coapRequest, request.getClient(), future,
+                timeoutMillis) {
+            @Override
+            public T buildResponse(final Response coapResponse) {
+                // Build LwM2m response
+                final LwM2mResponseBuilder<T> lwm2mResponseBuilder = new LwM2mResponseBuilder<T>(coapRequest, coapResponse,
+                        observationRegistry, shadow, instrumentation);
                 request.accept(lwm2mResponseBuilder);
                 return lwm2mResponseBuilder.getResponse();
             }
         });
 
+        // Fail the future if no response is received in time
+        if (timeoutMillis > 0) {
+            final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.fail(new RequestTimeoutException(coapRequest.getURI(), timeoutMillis))) {
+                        abandon(request.getClient(), coapRequest, true);
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            future.addCallback(new ResponseConsumer<T>() {
+                @Override
+                public void accept(final T response) {
+                    timeout.cancel(false);
+                }
+            }, new ExceptionConsumer() {
+                @Override
+                public void accept(final Exception e) {
+                    timeout.cancel(false);
+                }
+            });
+        }
+        future.setCancellationHandler(new Runnable() {
+            @Override
+            public void run() {
+                coapRequest.cancel();
+            }
+        });
+
         // Send CoAP request asynchronously
-        final Endpoint endpoint = getEndpointForClient(request.getClient());
-        endpoint.sendRequest(coapRequest);
+        try {
+            transmit(request.getClient(), coapRequest);
+        } catch (final ClientUnavailableException e) {
+            future.fail(e);
+        }
+    }
+
+    /**
+     * Sends a CoAP request through the outbound queue, unless the circuit of the client is open.
+     * 
+     * @throws ClientUnavailableException if the client failed to answer the previous requests
+     */
+    private void transmit(final Client client, final Request coapRequest) {
+        if (!circuitBreaker.allow(client.getEndpoint(), coapRequest)) {
+            complete(coapRequest, RequestOutcome.UNAVAILABLE);
+            throw new ClientUnavailableException(coapRequest.getURI(), client.getEndpoint());
+        }
+        outboundQueue.send(client, getEndpointForClient(client), coapRequest);
+    }
+
+    /**
+     * Records that a client did not answer a request in time, the client is marked as dead after sustained failures
+     * only.
+     */
+    private void timedOut(final Client client, final Request coapRequest) {
+        if (circuitBreaker.onFailure(client.getEndpoint(), coapRequest)) {
+            client.markLastRequestTimedout();
+        }
+    }
+
+    /**
+     * Creates the CoAP request from a LWM2M request. The shadow values and the shared reads of the modified resources
+     * are invalidated when the request is sent and when it is answered, the circuit breaker and the instrumentation
+     * are told about the outcome.
+     */
+    private Request buildCoapRequest(final LwM2mRequest<?> request) {
+        final CoapRequestBuilder coapRequestBuilder = new CoapRequestBuilder();
+        request.accept(coapRequestBuilder);
+        final Request coapRequest = coapRequestBuilder.getRequest();
+
+        coapRequest.addMessageObserver(new ExchangeObserver(coapRequest, request.getClient().getEndpoint(),
+                operationOf(request)));
+
+        final boolean modifies = request instanceof WriteRequest || request instanceof CreateRequest
+                || request instanceof DeleteRequest;
+        if (modifies) {
+            final Client client = request.getClient();
+            final LwM2mPath path = ((AbstractLwM2mRequest<?>) request).getPath();
+            invalidate(client, path);
+            coapRequest.addMessageObserver(new MessageObserverAdapter() {
+                @Override
+                public void onResponse(final Response response) {
+                    invalidate(client, path);
+                }
+            });
+        }
+        return coapRequest;
+    }
+
+    /**
+     * Forgets the values read before a modification: the shadow values and the reads in flight whose paths overlap
+     * the modified one. The later reads get a new exchange instead of the answer to a read sent before the
+     * modification.
+     */
+    private void invalidate(final Client client, final LwM2mPath path) {
+        if (shadow != null) {
+            shadow.invalidate(client.getEndpoint(), path);
+        }
+        for (final SharedRead read : inFlightReads.values()) {
+            if (Objects.equals(read.key.registrationId, client.getRegistrationId())
+                    && DeviceShadow.overlaps(read.key.path, path)) {
+                read.detach();
+            }
+        }
+    }
+
+    /**
+     * Cancels a request nobody waits for anymore.
+     * 
+     * @param timedOut whether the request is abandoned because the client did not answer in time
+     */
+    private void abandon(final Client client, final Request coapRequest, final boolean timedOut) {
+        // a request still held was not sent, the client did not fail to answer
+        if (!outboundQueue.remove(client, coapRequest) && timedOut) {
+            complete(coapRequest, RequestOutcome.TIMEOUT);
+            timedOut(client, coapRequest);
+        }
+        coapRequest.cancel();
+    }
+
+    /**
+     * Sends a read request, or attaches it to an identical read in flight so that they share the same CoAP exchange.
+     * 
+     * @param timeoutMillis the time after which the returned future fails, 0 to rely on the CoAP timeout only
+     */
+    private ResponseFuture<ValueResponse> sendRead(final ReadRequest request, final long timeoutMillis) {
+        final SharedRead read = joinRead(request);
+
+        final ResponseFuture<ValueResponse> future = new ResponseFuture<>();
+        read.exchange.addCallback(new ResponseConsumer<ValueResponse>() {
+            @Override
+            public void accept(final ValueResponse response) {
+                future.complete(response);
+            }
+        }, new ExceptionConsumer() {
+            @Override
+            public void accept(final Exception e) {
+                future.fail(e);
+            }
+        });
+
+        final ScheduledFuture<?> timeout;
+        if (timeoutMillis > 0) {
+            timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    future.fail(new RequestTimeoutException(read.coapRequest.getURI(), timeoutMillis));
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        } else {
+            timeout = null;
+        }
+
+        // leave the exchange whatever the outcome, the last one to give up cancels it
+        future.addCallback(new ResponseConsumer<ValueResponse>() {
+            @Override
+            public void accept(final ValueResponse response) {
+                read.leave(false);
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+        }, new ExceptionConsumer() {
+            @Override
+            public void accept(final Exception e) {
+                read.leave(e instanceof RequestTimeoutException);
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+        });
+        return future;
+    }
+
+    private SharedRead joinRead(final ReadRequest request) {
+        final ReadKey key = new ReadKey(request.getClient().getRegistrationId(), request.getPath());
+        while (true) {
+            final SharedRead read = inFlightReads.get(key);
+            if (read != null) {
+                if (read.join()) {
+                    coalescedReads.incrementAndGet();
+                    return read;
+                }
+                // completed in the meantime
+                inFlightReads.remove(key, read);
+                continue;
+            }
+
+            final SharedRead created = new SharedRead(key, request.getClient());
+            synchronized (created) {
+                // the joiners wait for the exchange to be started
+                if (inFlightReads.putIfAbsent(key, created) == null) {
+                    created.start(request);
+                    return created;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a read like {@link SyncRequestObserver#waitForResponse()}: <code>null</code> is returned if the request
+     * is cancelled or rejected.
+     */
+    private ValueResponse waitForRead(final ResponseFuture<ValueResponse> future) {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RejectionException) {
+                return null;
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new IllegalStateException(e.getCause());
+            }
+        } catch (final CancellationException e) {
+            return null;
+        } catch (final InterruptedException e) {
+            // go ahead as if the request had been cancelled
+            LOG.debug("Caught an unexpected InterruptedException during execution of CoAP request", e);
+            future.cancel(false);
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of read requests which have been attached to an identical read in flight
+     */
+    public long getCoalescedReadCount() {
+        return coalescedReads.get();
     }
 
     /**
@@ -162,6 +607,188 @@ public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender {
                 + client.getRegistrationEndpointAddress());
     }
 
+    private static class ReadKey {
+        final String registrationId;
+        final LwM2mPath path;
+
+        ReadKey(final String registrationId, final LwM2mPath path) {
+            this.registrationId = registrationId;
+            this.path = path;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(registrationId) + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof ReadKey)) {
+                return false;
+            }
+            final ReadKey other = (ReadKey) obj;
+            return Objects.equals(registrationId, other.registrationId) && path.equals(other.path);
+        }
+    }
+
+    /**
+     * A read exchange shared by the identical read requests sent while it is in flight.
+     */
+    private class SharedRead {
+        final ReadKey key;
+        final Client client;
+
+        // set on start, under the lock
+        Request coapRequest;
+        ResponseFuture<ValueResponse> exchange;
+
+        // guarded by this
+        private int participants;
+        private boolean closed;
+        // no new participant once a modification of the read path is sent
+        private boolean detached;
+
+        SharedRead(final ReadKey key, final Client client) {
+            this.key = key;
+            this.client = client;
+        }
+
+        void start(final ReadRequest request) {
+            coapRequest = buildCoapRequest(request);
+            exchange = new ResponseFuture<>();
+            participants = 1;
+
+            // identical reads get a new exchange once this one is completed
+            exchange.addCallback(new ResponseConsumer<ValueResponse>() {
+                @Override
+                public void accept(final ValueResponse response) {
+                    close();
+                }
+            }, new ExceptionConsumer() {
+                @Override
+                public void accept(final Exception e) {
+                    close();
+                }
+            });
+            try {
+                sendAsync(request, coapRequest, exchange, 0);
+            } catch (final RuntimeException e) {
+                exchange.fail(e);
+            }
+        }
+
+        synchronized boolean join() {
+            if (closed || detached) {
+                return false;
+            }
+            participants++;
+            return true;
+        }
+
+        /**
+         * @param timedOut whether the participant gives up because the client did not answer in time
+         */
+        void leave(final boolean timedOut) {
+            synchronized (this) {
+                if (--participants > 0 || closed) {
+                    return;
+                }
+                closed = true;
+            }
+            inFlightReads.remove(key, this);
+            if (!exchange.isDone()) {
+                abandon(client, coapRequest, timedOut);
+            }
+        }
+
+        private void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            inFlightReads.remove(key, this);
+        }
+
+        /**
+         * Stops sharing this exchange with the new reads, the current participants still get its response.
+         */
+        private void detach() {
+            synchronized (this) {
+                detached = true;
+            }
+            inFlightReads.remove(key, this);
+        }
+    }
+
+    private static String operationOf(final LwM2mRequest<?> request) {
+        String operation = OPERATIONS.get(request.getClass());
+        if (operation == null) {
+            // e.g. "Read" for a ReadRequest
+            operation = request.getClass().getSimpleName().replaceFirst("Request$", "");
+            OPERATIONS.put(request.getClass(), operation);
+        }
+        return operation;
+    }
+
+    /**
+     * Reports the outcome of a request before the CoAP exchange completes, e.g. when the request is abandoned because
+     * the client did not answer in time.
+     */
+    private static void complete(final Request coapRequest, final RequestOutcome outcome) {
+        for (final MessageObserver observer : coapRequest.getMessageObservers()) {
+            if (observer instanceof ExchangeObserver) {
+                ((ExchangeObserver) observer).complete(outcome);
+            }
+        }
+    }
+
+    /**
+     * Tells the circuit breaker and the instrumentation about the outcome of a CoAP exchange.
+     */
+    private class ExchangeObserver extends MessageObserverAdapter {
+        final Request coapRequest;
+        final String client;
+        final String operation;
+        final long start = System.nanoTime();
+        final AtomicBoolean completed = new AtomicBoolean();
+
+        ExchangeObserver(final Request coapRequest, final String client, final String operation) {
+            this.coapRequest = coapRequest;
+            this.client = client;
+            this.operation = operation;
+        }
+
+        void complete(final RequestOutcome outcome) {
+            // the first outcome wins, e.g. a timeout before the cancellation
+            if (completed.compareAndSet(false, true)) {
+                instrumentation.requestCompleted(operation, outcome, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void onResponse(final Response response) {
+            circuitBreaker.onSuccess(client);
+            complete(CoAP.ResponseCode.isSuccess(response.getCode()) ? RequestOutcome.SUCCESS : RequestOutcome.ERROR);
+        }
+
+        @Override
+        public void onTimeout() {
+            complete(RequestOutcome.TIMEOUT);
+        }
+
+        @Override
+        public void onCancel() {
+            circuitBreaker.onAbandoned(client, coapRequest);
+            complete(RequestOutcome.CANCELLED);
+        }
+
+        @Override
+        public void onReject() {
+            // the client is reachable
+            circuitBreaker.onSuccess(client);
+            complete(RequestOutcome.REJECTED);
+        }
+    }
+
     // ////// Request Observer Class definition/////////////
 
     private abstract class AbstractRequestObserver<T extends ClientResponse> extends MessageObserverAdapter {
@@ -205,7 +832,7 @@ public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender {
 
         @Override
         public void onTimeout() {
-            client.markLastRequestTimedout();
+            timedOut(client, coapRequest);
             errorCallback.accept(new TimeoutException());
         }
 
@@ -221,6 +848,53 @@ public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender {
 
     }
 
+    private abstract class FutureRequestObserver<T extends ClientResponse> extends AbstractRequestObserver<T> {
+
+        ResponseFuture<T> future;
+
+        // the timeout of the future, 0 if it only relies on the CoAP timeout
+        long timeoutMillis;
+        long sentNanos = System.nanoTime();
+
+        FutureRequestObserver(final Request coapRequest, final Client client, final ResponseFuture<T> future,
+                final long timeoutMillis) {
+            super(coapRequest, client);
+            this.future = future;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void onResponse(final Response coapResponse) {
+            LOG.debug("Received coap response: {}", coapResponse);
+            try {
+                future.complete(buildResponse(coapResponse));
+            } catch (final RuntimeException e) {
+                future.fail(e);
+            } finally {
+                coapRequest.removeMessageObserver(this);
+            }
+        }
+
+        @Override
+        public void onTimeout() {
+            final long timeout = timeoutMillis > 0 ? timeoutMillis : TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                    - sentNanos);
+            if (future.fail(new RequestTimeoutException(coapRequest.getURI(), timeout))) {
+                timedOut(client, coapRequest);
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            future.cancel(false);
+        }
+
+        @Override
+        public void onReject() {
+            future.fail(new RejectionException());
+        }
+    }
+
     private abstract class SyncRequestObserver<T extends ClientResponse> extends AbstractRequestObserver<T> {
 
         CountDownLatch latch = new CountDownLatch(1);
@@ -270,8 +944,7 @@ public class CaliforniumLwM2mRequestSender implements LwM2mRequestSender {
             try {
                 final boolean latchTimeout = latch.await(timeout, TimeUnit.MILLISECONDS);
                 if (!latchTimeout || coapTimeout.get()) {
-                    client.markLastRequestTimedout();
-                    coapRequest.cancel();
+                    abandon(client, coapRequest, true);
                     if (exception.get() != null) {
                         throw exception.get();
                     } else {
@@ -40,8 +40,11 @@ import leshan.core.node.codec.LwM2mNodeDecoder;
 import leshan.core.request.ContentFormat;
 import leshan.core.response.ValueResponse;
 import leshan.server.client.Client;
+import leshan.server.metrics.Instrumentation;
+import leshan.server.metrics.NoOpInstrumentation;
 import leshan.server.observation.Observation;
 import leshan.server.observation.ObservationListener;
+import leshan.server.shadow.DeviceShadow;
 import leshan.util.Validate;
 
 import org.eclipse.californium.core.coap.CoAP;
@@ -58,15 +61,36 @@ public final class CaliforniumObservation extends MessageObserverAdapter impleme
     private final List<ObservationListener> listeners = new CopyOnWriteArrayList<>();
     private final Client client;
     private final LwM2mPath path;
+    private final DeviceShadow shadow;
+    private final Instrumentation instrumentation;
 
     public CaliforniumObservation(Request coapRequest, Client client, LwM2mPath path) {
+        this(coapRequest, client, path, (DeviceShadow) null);
+    }
+
+    /**
+     * @param shadow the shadow to update with the notified values, <code>null</code> if disabled
+     */
+    public CaliforniumObservation(Request coapRequest, Client client, LwM2mPath path, DeviceShadow shadow) {
+        this(coapRequest, client, path, shadow, NoOpInstrumentation.INSTANCE);
+    }
+
+    /**
+     * @param shadow the shadow to update with the notified values, <code>null</code> if disabled
+     * @param instrumentation receives the decoding time of the notifications
+     */
+    public CaliforniumObservation(Request coapRequest, Client client, LwM2mPath path, DeviceShadow shadow,
+            Instrumentation instrumentation) {
         Validate.notNull(coapRequest);
         Validate.notNull(client);
         Validate.notNull(path);
+        Validate.notNull(instrumentation);
 
         this.coapRequest = coapRequest;
         this.client = client;
         this.path = path;
+        this.shadow = shadow;
+        this.instrumentation = instrumentation;
     }
 
     public CaliforniumObservation(Request coapRequest, Client client, LwM2mPath path, ObservationListener listener) {
@@ -89,9 +113,14 @@ public final class CaliforniumObservation extends MessageObserverAdapter impleme
     public void onResponse(Response coapResponse) {
         if (coapResponse.getCode() == CoAP.ResponseCode.CHANGED) {
             try {
+                long start = System.nanoTime();
                 LwM2mNode content = LwM2mNodeDecoder.decode(coapResponse.getPayload(),
                         ContentFormat.fromCode(coapResponse.getOptions().getContentFormat()), path);
+                instrumentation.payloadDecoded(coapResponse.getPayloadSize(), System.nanoTime() - start);
                 ValueResponse response = new ValueResponse(ResponseCode.CHANGED, content);
+                if (shadow != null) {
+                    shadow.update(client.getEndpoint(), path, content);
+                }
 
                 for (ObservationListener listener : listeners) {
                     listener.newValue(this, response.getContent());
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import leshan.server.client.Client;
+import leshan.server.client.ClientRegistryListener;
+import leshan.util.Validate;
+
+/**
+ * A circuit breaker per client, so that a client which does not answer is not flooded with requests and is only
+ * considered as dead after sustained failures.
+ * <p>
+ * After <code>failureThreshold</code> consecutive timeouts the circuit of the client opens: the requests are rejected
+ * without being sent. Once the open duration has elapsed, a single probe request is let through (half-open): the
+ * circuit closes if it is answered and opens again otherwise. The client is reported dead after
+ * <code>maxFailedProbes</code> consecutive failed probes.
+ * </p>
+ * <p>
+ * A registration or a registration update closes the circuit. It must be registered as a listener of the client
+ * registry.
+ * </p>
+ */
+public class ClientCircuitBreaker implements ClientRegistryListener {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_OPEN_MILLIS = 30_000;
+    public static final int DEFAULT_MAX_FAILED_PROBES = 3;
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final int maxFailedProbes;
+
+    // the clients which failed to answer, the other ones are closed
+    private final ConcurrentMap<String /* end-point */, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private static class Circuit {
+        // guarded by this
+        State state = State.CLOSED;
+        int failures;
+        int failedProbes;
+        long openUntilNanos;
+        Object probe;
+    }
+
+    public ClientCircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS, DEFAULT_MAX_FAILED_PROBES);
+    }
+
+    /**
+     * @param failureThreshold the number of consecutive timeouts opening the circuit
+     * @param openMillis the time during which the requests are rejected before probing the client
+     * @param maxFailedProbes the number of consecutive failed probes after which the client is considered as dead
+     */
+    public ClientCircuitBreaker(int failureThreshold, long openMillis, int maxFailedProbes) {
+        Validate.isTrue(failureThreshold > 0, "failure threshold must be positive");
+        Validate.isTrue(openMillis >= 0, "open duration must not be negative");
+        Validate.isTrue(maxFailedProbes > 0, "maximum number of failed probes must be positive");
+
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.maxFailedProbes = maxFailedProbes;
+    }
+
+    /**
+     * Tells whether a request can be sent to a client.
+     * 
+     * @param request the request, the probe when the circuit is half-open
+     * @return <code>false</code> if the request must be rejected
+     */
+    public boolean allow(String endpoint, Object request) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            return true;
+        }
+        synchronized (circuit) {
+            switch (circuit.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - circuit.openUntilNanos >= 0) {
+                    circuit.state = State.HALF_OPEN;
+                    circuit.probe = request;
+                    return true;
+                }
+                break;
+            case HALF_OPEN:
+                if (circuit.probe == null) {
+                    circuit.probe = request;
+                    return true;
+                }
+                break;
+            }
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records that a client answered a request, whatever the response code.
+     */
+    public void onSuccess(String endpoint) {
+        // most of the clients never fail
+        if (circuits.containsKey(endpoint)) {
+            circuits.remove(endpoint);
+        }
+    }
+
+    /**
+     * Records that a client did not answer a request in time.
+     * 
+     * @return <code>true</code> if the client failed for too long and must be considered as dead
+     */
+    public boolean onFailure(String endpoint, Object request) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(endpoint, created);
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+        synchronized (circuit) {
+            switch (circuit.state) {
+            case CLOSED:
+                if (++circuit.failures >= failureThreshold) {
+                    open(circuit);
+                }
+                return false;
+            case HALF_OPEN:
+                if (circuit.probe != request) {
+                    // sent before the circuit opened
+                    return false;
+                }
+                open(circuit);
+                if (++circuit.failedProbes >= maxFailedProbes) {
+                    circuits.remove(endpoint, circuit);
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Records that a request was cancelled before being answered, letting another request probe the client.
+     */
+    public void onAbandoned(String endpoint, Object request) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            if (circuit.probe == request) {
+                circuit.probe = null;
+            }
+        }
+    }
+
+    /**
+     * @return the state of the circuit of a client
+     */
+    public State getState(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+        synchronized (circuit) {
+            return circuit.state;
+        }
+    }
+
+    /**
+     * @return the number of requests rejected because the circuit of their client was open
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public void registered(Client client) {
+        circuits.remove(client.getEndpoint());
+    }
+
+    @Override
+    public void updated(Client clientUpdated) {
+        // the client is reachable again
+        circuits.remove(clientUpdated.getEndpoint());
+    }
+
+    @Override
+    public void unregistered(Client client) {
+        circuits.remove(client.getEndpoint());
+    }
+
+    private void open(Circuit circuit) {
+        circuit.state = State.OPEN;
+        circuit.probe = null;
+        circuit.openUntilNanos = System.nanoTime() + openNanos;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import leshan.LinkObject;
+import leshan.server.client.Client;
+import leshan.util.Validate;
+
+/**
+ * A bounded cache of parsed object links, keyed by the content of the CoRE link format payload.
+ * <p>
+ * Clients running the same firmware usually send byte-identical payloads: they share a single array of
+ * {@link LinkObject} instead of parsing and holding their own copy. The links are sorted once when parsed, in the
+ * order kept by {@link Client}, so that the clients do not need a sorted copy. The returned arrays must not be
+ * modified.
+ * </p>
+ */
+public class LinkObjectCache {
+
+    private final int maxSize;
+
+    private final Map<Payload, LinkObject[]> cache;
+
+    /**
+     * @param maxSize the maximum number of distinct payloads to keep, the least recently used ones are evicted first
+     */
+    public LinkObjectCache(final int maxSize) {
+        Validate.isTrue(maxSize > 0, "max size must be positive");
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<Payload, LinkObject[]>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Payload, LinkObject[]> eldest) {
+                return size() > LinkObjectCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the object links described by a payload, parsing it only if no identical payload is cached.
+     * 
+     * @param content the CoRE link format payload
+     * @return the shared object links, sorted
+     */
+    public LinkObject[] parse(byte[] content) {
+        Validate.notNull(content);
+
+        // the payload is copied as the caller may reuse its buffer
+        Payload key = new Payload(Arrays.copyOf(content, content.length));
+        synchronized (cache) {
+            LinkObject[] links = cache.get(key);
+            if (links != null) {
+                return links;
+            }
+        }
+
+        // parse outside the lock, concurrent misses on the same payload only cost a duplicate parsing
+        LinkObject[] links = Client.sortObjectLinks(LinkObject.parse(key.content));
+        synchronized (cache) {
+            LinkObject[] previous = cache.get(key);
+            if (previous != null) {
+                return previous;
+            }
+            cache.put(key, links);
+        }
+        return links;
+    }
+
+    /**
+     * @return the number of cached payloads
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private static class Payload {
+
+        private final byte[] content;
+
+        private final int hash;
+
+        Payload(byte[] content) {
+            this.content = content;
+            this.hash = Arrays.hashCode(content);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Payload)) {
+                return false;
+            }
+            Payload other = (Payload) obj;
+            return hash == other.hash && Arrays.equals(content, other.content);
+        }
+    }
+}
@@ -63,6 +63,8 @@ public class LwM2mBootstrapServerImpl implements LwM2mBootstrapServer {
 
     private final SecurityStore securityStore;
 
+    private final BootstrapResource bsResource;
+
     public LwM2mBootstrapServerImpl(BootstrapStore bsStore, SecurityStore securityStore) {
         this(new InetSocketAddress((InetAddress) null, PORT), new InetSocketAddress((InetAddress) null, PORT_DTLS),
                 bsStore, securityStore);
@@ -88,7 +90,7 @@ public class LwM2mBootstrapServerImpl implements LwM2mBootstrapServer {
         coapServer.addEndpoint(secureEndpoint);
 
         // define /bs ressource
-        BootstrapResource bsResource = new BootstrapResource(bsStore);
+        bsResource = new BootstrapResource(bsStore);
         coapServer.add(bsResource);
     }
 
@@ -122,5 +124,6 @@ public class LwM2mBootstrapServerImpl implements LwM2mBootstrapServer {
      */
     public void destroy() {
         coapServer.destroy();
+        bsResource.destroy();
     }
 }
\ No newline at end of file
@@ -69,13 +69,11 @@ public class LwM2mPskStore implements PskStore {
         if (clientRegistry == null)
             return null;
 
-        for (Client c : clientRegistry.allClients()) {
-            if (inetAddress.getPort() == c.getPort() && inetAddress.getAddress().equals(c.getAddress())) {
-                SecurityInfo securityInfo = securityStore.getByEndpoint(c.getEndpoint());
-                if (securityInfo != null) {
-                    return securityInfo.getIdentity();
-                }
-                return null;
+        Client c = clientRegistry.getByAddress(inetAddress);
+        if (c != null) {
+            SecurityInfo securityInfo = securityStore.getByEndpoint(c.getEndpoint());
+            if (securityInfo != null) {
+                return securityInfo.getIdentity();
             }
         }
         return null;
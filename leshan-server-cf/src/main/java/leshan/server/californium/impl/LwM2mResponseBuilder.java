@@ -41,6 +41,8 @@ import leshan.core.response.CreateResponse;
 import leshan.core.response.DiscoverResponse;
 import leshan.core.response.ValueResponse;
 import leshan.server.client.Client;
+import leshan.server.metrics.Instrumentation;
+import leshan.server.metrics.NoOpInstrumentation;
 import leshan.server.observation.ObservationRegistry;
 import leshan.server.request.CreateRequest;
 import leshan.server.request.DeleteRequest;
@@ -52,6 +54,7 @@ import leshan.server.request.ReadRequest;
 import leshan.server.request.ResourceAccessException;
 import leshan.server.request.WriteAttributesRequest;
 import leshan.server.request.WriteRequest;
+import leshan.server.shadow.DeviceShadow;
 import leshan.util.Validate;
 
 import org.eclipse.californium.core.coap.CoAP;
@@ -69,6 +72,8 @@ public class LwM2mResponseBuilder<T extends ClientResponse> implements LwM2mRequ
     private final Request coapRequest;
     private final Response coapResponse;
     private final ObservationRegistry observationRegistry;
+    private final DeviceShadow shadow;
+    private final Instrumentation instrumentation;
 
     public static ResponseCode fromCoapCode(final int code) {
         Validate.notNull(code);
@@ -97,17 +102,37 @@ public class LwM2mResponseBuilder<T extends ClientResponse> implements LwM2mRequ
     }
 
     public LwM2mResponseBuilder(final Request coapRequest, final Response coapResponse, final ObservationRegistry observationRegistry) {
+        this(coapRequest, coapResponse, observationRegistry, null);
+    }
+
+    /**
+     * @param shadow the shadow to update with the values read, <code>null</code> if disabled
+     */
+    public LwM2mResponseBuilder(final Request coapRequest, final Response coapResponse,
+            final ObservationRegistry observationRegistry, final DeviceShadow shadow) {
+        this(coapRequest, coapResponse, observationRegistry, shadow, NoOpInstrumentation.INSTANCE);
+    }
+
+    /**
+     * @param shadow the shadow to update with the values read, <code>null</code> if disabled
+     * @param instrumentation receives the decoding time of the payloads
+     */
+    public LwM2mResponseBuilder(final Request coapRequest, final Response coapResponse,
+            final ObservationRegistry observationRegistry, final DeviceShadow shadow,
+            final Instrumentation instrumentation) {
         super();
         this.coapRequest = coapRequest;
         this.coapResponse = coapResponse;
         this.observationRegistry = observationRegistry;
+        this.shadow = shadow;
+        this.instrumentation = instrumentation;
     }
 
     @Override
     public void visit(final ReadRequest request) {
         switch (coapResponse.getCode()) {
         case CONTENT:
-            lwM2mresponse = buildContentResponse(request.getPath(), coapResponse);
+            lwM2mresponse = buildContentResponse(request.getClient(), request.getPath(), coapResponse);
             break;
         case UNAUTHORIZED:
         case NOT_FOUND:
@@ -238,11 +263,11 @@ public class LwM2mResponseBuilder<T extends ClientResponse> implements LwM2mRequ
             lwM2mresponse = null;
             break;
         case CONTENT:
-            lwM2mresponse = buildContentResponse(request.getPath(), coapResponse);
+            lwM2mresponse = buildContentResponse(request.getClient(), request.getPath(), coapResponse);
             if (coapResponse.getOptions().hasObserve()) {
                 // observe request succeed so we can add and observation to registry
                 final CaliforniumObservation observation = new CaliforniumObservation(coapRequest, request.getClient(),
-                        request.getPath());
+                        request.getPath(), shadow, instrumentation);
                 coapRequest.addMessageObserver(observation);
                 observationRegistry.addObservation(observation);
             }
@@ -256,16 +281,21 @@ public class LwM2mResponseBuilder<T extends ClientResponse> implements LwM2mRequ
         }
     }
 
-    private ValueResponse buildContentResponse(final LwM2mPath path, final Response coapResponse) {
+    private ValueResponse buildContentResponse(final Client client, final LwM2mPath path, final Response coapResponse) {
         final ResponseCode code = ResponseCode.CONTENT;
         LwM2mNode content;
         try {
+            final long start = System.nanoTime();
             content = LwM2mNodeDecoder.decode(coapResponse.getPayload(),
                     ContentFormat.fromCode(coapResponse.getOptions().getContentFormat()), path);
+            instrumentation.payloadDecoded(coapResponse.getPayloadSize(), System.nanoTime() - start);
         } catch (final InvalidValueException e) {
             final String msg = String.format("[%s] ([%s])", e.getMessage(), e.getPath().toString());
             throw new ResourceAccessException(code, path.toString(), msg, e);
         }
+        if (shadow != null) {
+            shadow.update(client.getEndpoint(), path, content);
+        }
         return new ValueResponse(code, content);
     }
 
@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import leshan.server.client.BindingMode;
+import leshan.server.client.Client;
+import leshan.server.client.ClientRegistryListener;
+import leshan.util.Validate;
+
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The outbound CoAP requests, queued per client.
+ * <p>
+ * At most <code>maxInFlight</code> requests are outstanding for a given client (CoAP NSTART, 1 by default), the next
+ * ones are held until a response, a timeout or a cancellation. The requests to a client in queue mode (binding UQ, SQ
+ * or UQS) are only sent while it is reachable, that is for an awake window after its registration or its last
+ * registration update: the requests held in the meantime are flushed by the next update.
+ * </p>
+ * <p>
+ * The held requests are bounded per client, both in number and in age. The requests in excess or too old are
+ * cancelled: their observers are notified of the cancellation, the client is not considered as timed out.
+ * </p>
+ * <p>
+ * It must be registered as a listener of the client registry to be notified of the updates.
+ * </p>
+ */
+public class OutboundRequestQueue implements ClientRegistryListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutboundRequestQueue.class);
+
+    /** CoAP NSTART */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 32;
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** CoAP MAX_TRANSMIT_WAIT */
+    public static final long DEFAULT_AWAKE_WINDOW_MILLIS = 93_000;
+
+    private final int maxInFlight;
+    private final int maxQueueSize;
+    private final long maxAgeNanos;
+    private final long awakeWindowNanos;
+    private final RttEstimator rttEstimator;
+
+    private final ConcurrentMap<String /* end-point */, ClientQueue> queues = new ConcurrentHashMap<>();
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    public OutboundRequestQueue() {
+        this(DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_QUEUE_SIZE, DEFAULT_MAX_AGE_MILLIS, DEFAULT_AWAKE_WINDOW_MILLIS,
+                new RttEstimator());
+    }
+
+    /**
+     * @param maxInFlight the maximum number of outstanding requests per client
+     * @param maxQueueSize the maximum number of requests held per client, the requests in excess are cancelled
+     * @param maxAgeMillis the time after which a held request is cancelled
+     * @param awakeWindowMillis the time during which a client in queue mode is reachable after a registration update
+     */
+    public OutboundRequestQueue(int maxInFlight, int maxQueueSize, long maxAgeMillis, long awakeWindowMillis) {
+        this(maxInFlight, maxQueueSize, maxAgeMillis, awakeWindowMillis, new RttEstimator());
+    }
+
+    /**
+     * @param maxInFlight the maximum number of outstanding requests per client
+     * @param maxQueueSize the maximum number of requests held per client, the requests in excess are cancelled
+     * @param maxAgeMillis the time after which a held request is cancelled
+     * @param awakeWindowMillis the time during which a client in queue mode is reachable after a registration update
+     * @param rttEstimator records the round-trip time of the requests sent
+     */
+    public OutboundRequestQueue(int maxInFlight, int maxQueueSize, long maxAgeMillis, long awakeWindowMillis,
+            RttEstimator rttEstimator) {
+        Validate.notNull(rttEstimator);
+        Validate.isTrue(maxInFlight > 0, "the maximum number of requests in flight must be positive");
+        Validate.isTrue(maxQueueSize >= 0, "the maximum queue size must not be negative");
+        Validate.isTrue(maxAgeMillis > 0, "the maximum age must be positive");
+        Validate.isTrue(awakeWindowMillis >= 0, "the awake window must not be negative");
+
+        this.maxInFlight = maxInFlight;
+        this.maxQueueSize = maxQueueSize;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        this.awakeWindowNanos = TimeUnit.MILLISECONDS.toNanos(awakeWindowMillis);
+        this.rttEstimator = rttEstimator;
+    }
+
+    /**
+     * @return the round-trip time estimations of the clients
+     */
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    private static class Pending {
+        final Request request;
+        final Endpoint endpoint;
+        final long enqueuedNanos;
+
+        Pending(Request request, Endpoint endpoint, long enqueuedNanos) {
+            this.request = request;
+            this.endpoint = endpoint;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private static class ClientQueue {
+        final String endpoint;
+
+        // guarded by this
+        final Deque<Pending> pending = new ArrayDeque<>();
+        int inFlight;
+        boolean queueMode;
+        long awakeUntilNanos;
+
+        ClientQueue(String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    /**
+     * Sends a request to a client, or holds it until the client can receive it.
+     */
+    public void send(Client client, Endpoint endpoint, Request request) {
+        ClientQueue queue = queueFor(client.getEndpoint());
+        long now = System.nanoTime();
+
+        List<Request> dropped = new ArrayList<>(0);
+        boolean send = false;
+        synchronized (queue) {
+            queue.queueMode = isQueueMode(client);
+            purge(queue, now, dropped);
+            if (queue.pending.isEmpty() && canSend(queue, now)) {
+                queue.inFlight++;
+                send = true;
+            } else if (queue.pending.size() < maxQueueSize) {
+                queue.pending.add(new Pending(request, endpoint, now));
+            } else {
+                rejected.incrementAndGet();
+                dropped.add(request);
+            }
+        }
+
+        cancel(dropped);
+        if (send) {
+            doSend(queue, endpoint, request);
+        } else {
+            LOG.debug("Request held for client {}: {}", client.getEndpoint(), request);
+        }
+    }
+
+    /**
+     * Removes a request which has not been sent yet.
+     * 
+     * @return <code>false</code> if the request is not held (e.g. it was already sent)
+     */
+    public boolean remove(Client client, Request request) {
+        ClientQueue queue = queues.get(client.getEndpoint());
+        if (queue == null) {
+            return false;
+        }
+        synchronized (queue) {
+            for (Iterator<Pending> it = queue.pending.iterator(); it.hasNext();) {
+                if (it.next().request == request) {
+                    it.remove();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cancels the held requests older than the maximum age.
+     */
+    public void purge() {
+        long now = System.nanoTime();
+        List<Request> dropped = new ArrayList<>(0);
+        for (ClientQueue queue : queues.values()) {
+            synchronized (queue) {
+                purge(queue, now, dropped);
+            }
+        }
+        cancel(dropped);
+    }
+
+    /**
+     * @return the number of requests held for a client
+     */
+    public int getQueueSize(String endpoint) {
+        ClientQueue queue = queues.get(endpoint);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.pending.size();
+        }
+    }
+
+    /**
+     * @return the number of outstanding requests for a client
+     */
+    public int getInFlight(String endpoint) {
+        ClientQueue queue = queues.get(endpoint);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.inFlight;
+        }
+    }
+
+    /**
+     * @return the age in milliseconds of the oldest request held for a client, 0 if there is none
+     */
+    public long getOldestAge(String endpoint) {
+        ClientQueue queue = queues.get(endpoint);
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            Pending oldest = queue.pending.peekFirst();
+            return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.enqueuedNanos);
+        }
+    }
+
+    /**
+     * @return the total number of requests held
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (ClientQueue queue : queues.values()) {
+            synchronized (queue) {
+                size += queue.pending.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of requests cancelled because the queue of their client was full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of requests cancelled because they were held for too long
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    @Override
+    public void registered(Client client) {
+        awake(client);
+    }
+
+    @Override
+    public void updated(Client clientUpdated) {
+        awake(clientUpdated);
+    }
+
+    @Override
+    public void unregistered(Client client) {
+        ClientQueue queue = queues.remove(client.getEndpoint());
+        if (queue == null) {
+            return;
+        }
+        List<Request> dropped = new ArrayList<>();
+        synchronized (queue) {
+            for (Pending p : queue.pending) {
+                dropped.add(p.request);
+            }
+            queue.pending.clear();
+        }
+        cancel(dropped);
+    }
+
+    private void awake(Client client) {
+        boolean queueMode = isQueueMode(client);
+        ClientQueue queue = queueMode ? queueFor(client.getEndpoint()) : queues.get(client.getEndpoint());
+        if (queue == null) {
+            return;
+        }
+        synchronized (queue) {
+            queue.queueMode = queueMode;
+            queue.awakeUntilNanos = System.nanoTime() + awakeWindowNanos;
+        }
+        flush(queue);
+    }
+
+    /**
+     * Sends the held requests allowed by the in-flight limit.
+     */
+    private void flush(ClientQueue queue) {
+        List<Request> dropped = new ArrayList<>(0);
+        while (true) {
+            Pending next = null;
+            long now = System.nanoTime();
+            synchronized (queue) {
+                purge(queue, now, dropped);
+                if (canSend(queue, now)) {
+                    next = queue.pending.pollFirst();
+                    if (next != null) {
+                        queue.inFlight++;
+                    }
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            doSend(queue, next.endpoint, next.request);
+        }
+        cancel(dropped);
+    }
+
+    private void doSend(final ClientQueue queue, Endpoint endpoint, Request request) {
+        final long sentNanos = System.nanoTime();
+        request.addMessageObserver(new MessageObserverAdapter() {
+
+            // a notification is a response too, only the first completion releases the slot
+            private final AtomicBoolean completed = new AtomicBoolean();
+
+            private volatile boolean retransmitted;
+
+            @Override
+            public void onRetransmission() {
+                retransmitted = true;
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                if (!completed.get()) {
+                    rttEstimator.record(queue.endpoint, (System.nanoTime() - sentNanos) / 1e6, retransmitted);
+                }
+                release();
+            }
+
+            @Override
+            public void onTimeout() {
+                release();
+            }
+
+            @Override
+            public void onCancel() {
+                release();
+            }
+
+            @Override
+            public void onReject() {
+                release();
+            }
+
+            private void release() {
+                if (completed.compareAndSet(false, true)) {
+                    synchronized (queue) {
+                        queue.inFlight--;
+                    }
+                    flush(queue);
+                }
+            }
+        });
+        endpoint.sendRequest(request);
+    }
+
+    private boolean canSend(ClientQueue queue, long now) {
+        return queue.inFlight < maxInFlight && (!queue.queueMode || now - queue.awakeUntilNanos < 0);
+    }
+
+    /**
+     * Removes the cancelled and the expired requests, the queue lock must be held.
+     */
+    private void purge(ClientQueue queue, long now, List<Request> dropped) {
+        for (Iterator<Pending> it = queue.pending.iterator(); it.hasNext();) {
+            Pending p = it.next();
+            if (p.request.isCanceled()) {
+                it.remove();
+            } else if (now - p.enqueuedNanos >= maxAgeNanos) {
+                it.remove();
+                expired.incrementAndGet();
+                dropped.add(p.request);
+            }
+        }
+    }
+
+    private static void cancel(List<Request> requests) {
+        for (Request request : requests) {
+            request.cancel();
+        }
+    }
+
+    private ClientQueue queueFor(String endpoint) {
+        ClientQueue queue = queues.get(endpoint);
+        if (queue == null) {
+            ClientQueue created = new ClientQueue(endpoint);
+            queue = queues.putIfAbsent(endpoint, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+
+    private static boolean isQueueMode(Client client) {
+        BindingMode binding = client.getBindingMode();
+        return binding == BindingMode.UQ || binding == BindingMode.SQ || binding == BindingMode.UQS;
+    }
+}
@@ -38,6 +38,8 @@ import leshan.server.client.Client;
 import leshan.server.client.ClientRegistrationException;
 import leshan.server.client.ClientRegistry;
 import leshan.server.client.ClientUpdate;
+import leshan.server.metrics.Instrumentation;
+import leshan.server.metrics.NoOpInstrumentation;
 import leshan.server.security.SecurityInfo;
 import leshan.server.security.SecurityStore;
 import leshan.util.RandomStringUtils;
@@ -46,6 +48,8 @@ import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.Resource;
 import org.slf4j.Logger;
@@ -74,18 +78,82 @@ public class RegisterResource extends CoapResource {
 
     public static final String RESOURCE_NAME = "rd";
 
+    public static final int DEFAULT_LINK_CACHE_SIZE = 1000;
+
     private final ClientRegistry clientRegistry;
 
     private final SecurityStore securityStore;
 
+    private final LinkObjectCache linkObjectCache;
+
+    private final RegistrationAdmissionControl admissionControl;
+
+    private final Instrumentation instrumentation;
+
     public RegisterResource(ClientRegistry clientRegistry, SecurityStore securityStore) {
+        this(clientRegistry, securityStore, null);
+    }
+
+    /**
+     * @param admissionControl the limits applied to the registration requests or <code>null</code> to accept all of
+     *        them
+     */
+    public RegisterResource(ClientRegistry clientRegistry, SecurityStore securityStore,
+            RegistrationAdmissionControl admissionControl) {
+        this(clientRegistry, securityStore, new LinkObjectCache(DEFAULT_LINK_CACHE_SIZE), admissionControl);
+    }
+
+    /**
+     * @param linkObjectCache the cache used to share the object links of the clients sending identical payloads
+     * @param admissionControl the limits applied to the registration requests or <code>null</code> to accept all of
+     *        them
+     */
+    public RegisterResource(ClientRegistry clientRegistry, SecurityStore securityStore,
+            LinkObjectCache linkObjectCache, RegistrationAdmissionControl admissionControl) {
+        this(clientRegistry, securityStore, linkObjectCache, admissionControl, NoOpInstrumentation.INSTANCE);
+    }
+
+    /**
+     * @param linkObjectCache the cache used to share the object links of the clients sending identical payloads
+     * @param admissionControl the limits applied to the registration requests or <code>null</code> to accept all of
+     *        them
+     * @param instrumentation receives the handling time of the registration requests
+     */
+    public RegisterResource(ClientRegistry clientRegistry, SecurityStore securityStore,
+            LinkObjectCache linkObjectCache, RegistrationAdmissionControl admissionControl,
+            Instrumentation instrumentation) {
         super(RESOURCE_NAME);
 
         this.clientRegistry = clientRegistry;
         this.securityStore = securityStore;
+        this.linkObjectCache = linkObjectCache;
+        this.admissionControl = admissionControl;
+        this.instrumentation = instrumentation;
         getAttributes().addResourceType("core.rd");
     }
 
+    @Override
+    public void handleRequest(Exchange exchange) {
+        long start = System.nanoTime();
+        try {
+            super.handleRequest(exchange);
+        } finally {
+            switch (exchange.getRequest().getCode()) {
+            case POST:
+                instrumentation.registrationHandled("register", System.nanoTime() - start);
+                break;
+            case PUT:
+                instrumentation.registrationHandled("update", System.nanoTime() - start);
+                break;
+            case DELETE:
+                instrumentation.registrationHandled("deregister", System.nanoTime() - start);
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
     @Override
     public void handlePOST(CoapExchange exchange) {
         Request request = exchange.advanced().getRequest();
@@ -99,6 +167,16 @@ public class RegisterResource extends CoapResource {
             return;
         }
 
+        // shed the load when too many clients register at once
+        if (admissionControl != null && !admissionControl.admit(request.getSource())) {
+            Response response = new Response(ResponseCode.SERVICE_UNAVAILABLE);
+            response.getOptions().setMaxAge(admissionControl.backoff());
+            LOG.debug("Registration rejected for {}, retry in {}s", request.getSource(), response.getOptions()
+                    .getMaxAge());
+            exchange.respond(response);
+            return;
+        }
+
         // TODO: assert content media type is APPLICATION LINK FORMAT?
 
         String endpoint = null;
@@ -129,7 +207,7 @@ public class RegisterResource extends CoapResource {
                 // register
                 String registrationId = RegisterResource.createRegistrationId();
                 if (request.getPayload() != null) {
-                    objectLinks = LinkObject.parse(request.getPayload());
+                    objectLinks = linkObjectCache.parse(request.getPayload());
                 }
 
                 // do we have security information for this client?
@@ -221,7 +299,7 @@ public class RegisterResource extends CoapResource {
         }
 
         if (request.getPayload() != null && request.getPayload().length > 0) {
-            objectLinks = LinkObject.parse(request.getPayload());
+            objectLinks = linkObjectCache.parse(request.getPayload());
         }
 
         ClientUpdate client = new ClientUpdate(registrationId, request.getSource(), request.getSourcePort(), lifetime,
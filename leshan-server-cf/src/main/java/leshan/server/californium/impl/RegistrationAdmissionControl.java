@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import leshan.util.Validate;
+
+/**
+ * Limits the rate of the registration requests accepted by the server, to shed the load when a large number of
+ * devices registers at once (e.g. after a network outage).
+ * <p>
+ * The registrations are admitted by a global token bucket and by a token bucket per source address. A rejected
+ * client should be answered with a 5.03 (Service Unavailable) and a randomized Max-Age (see {@link #backoff()}) so
+ * that the devices do not retry all at the same time.
+ * </p>
+ */
+public class RegistrationAdmissionControl {
+
+    private static final long SOURCE_PURGE_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final TokenBucket global;
+
+    private final double sourceRate;
+
+    private final int sourceBurst;
+
+    private final int maxSources;
+
+    private final int minBackoff;
+
+    private final int maxBackoff;
+
+    private final ConcurrentMap<InetAddress, TokenBucket> sources = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastSourcePurge = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong admitted = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param globalRate the number of registrations admitted per second
+     * @param globalBurst the number of registrations which can be admitted at once
+     * @param sourceRate the number of registrations admitted per second from a given source address
+     * @param sourceBurst the number of registrations which can be admitted at once from a given source address
+     * @param maxSources the number of source addresses above which the idle ones are forgotten
+     * @param minBackoff the minimum Max-Age (in seconds) to return to the rejected clients
+     * @param maxBackoff the maximum Max-Age (in seconds) to return to the rejected clients
+     */
+    public RegistrationAdmissionControl(double globalRate, int globalBurst, double sourceRate, int sourceBurst,
+            int maxSources, int minBackoff, int maxBackoff) {
+        Validate.isTrue(globalRate > 0 && sourceRate > 0, "rates must be positive");
+        Validate.isTrue(globalBurst > 0 && sourceBurst > 0, "bursts must be positive");
+        Validate.isTrue(maxSources > 0, "max sources must be positive");
+        Validate.isTrue(minBackoff >= 0 && minBackoff <= maxBackoff, "invalid backoff range");
+
+        this.global = new TokenBucket(globalRate, globalBurst, System.nanoTime());
+        this.sourceRate = sourceRate;
+        this.sourceBurst = sourceBurst;
+        this.maxSources = maxSources;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Decides whether a registration request is accepted.
+     * 
+     * @param source the source address of the request
+     * @return <code>true</code> if the registration must be processed
+     */
+    public boolean admit(InetAddress source) {
+        long now = System.nanoTime();
+
+        // the source limit is checked first so that a flooding source does not consume the global tokens
+        if (source != null && !sourceBucket(source, now).tryAcquire(now)) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (!global.tryAcquire(now)) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return a random delay (in seconds) after which a rejected client may retry
+     */
+    public int backoff() {
+        return minBackoff + ThreadLocalRandom.current().nextInt(maxBackoff - minBackoff + 1);
+    }
+
+    /**
+     * @return the number of registrations admitted so far
+     */
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    /**
+     * @return the number of registrations rejected so far
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private TokenBucket sourceBucket(InetAddress source, long now) {
+        TokenBucket bucket = sources.get(source);
+        if (bucket == null) {
+            if (sources.size() >= maxSources) {
+                purgeIdleSources(now);
+            }
+            bucket = new TokenBucket(sourceRate, sourceBurst, now);
+            TokenBucket previous = sources.putIfAbsent(source, bucket);
+            if (previous != null) {
+                bucket = previous;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Forgets the sources whose bucket is full again, at most once per second.
+     */
+    private void purgeIdleSources(long now) {
+        long last = lastSourcePurge.get();
+        if (now - last < SOURCE_PURGE_PERIOD_NANOS || !lastSourcePurge.compareAndSet(last, now)) {
+            return;
+        }
+        for (Iterator<TokenBucket> it = sources.values().iterator(); it.hasNext();) {
+            if (it.next().isFull(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class TokenBucket {
+
+        private final double tokensPerNano;
+
+        private final int capacity;
+
+        private double tokens;
+
+        private long lastRefill;
+
+        TokenBucket(double ratePerSecond, int capacity, long now) {
+            this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = now;
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            refill(now);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+                lastRefill = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+/**
+ * A snapshot of the round-trip time estimated for a client, in milliseconds.
+ */
+public class RttEstimate {
+
+    private final double smoothedRtt;
+    private final double rttVariance;
+    private final double rto;
+    private final long samples;
+
+    public RttEstimate(double smoothedRtt, double rttVariance, double rto, long samples) {
+        this.smoothedRtt = smoothedRtt;
+        this.rttVariance = rttVariance;
+        this.rto = rto;
+        this.samples = samples;
+    }
+
+    /**
+     * @return the smoothed round-trip time measured on the exchanges without retransmission
+     */
+    public double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * @return the round-trip time variation measured on the exchanges without retransmission
+     */
+    public double getRttVariance() {
+        return rttVariance;
+    }
+
+    /**
+     * @return the retransmission timeout, blending the estimations of the exchanges with and without retransmission
+     */
+    public double getRto() {
+        return rto;
+    }
+
+    /**
+     * @return the number of round-trip times measured
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RttEstimate [srtt=%.1f, rttvar=%.1f, rto=%.1f, samples=%s]", smoothedRtt, rttVariance,
+                rto, samples);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import leshan.server.client.Client;
+import leshan.server.client.ClientRegistryListener;
+import leshan.server.metrics.Instrumentation;
+import leshan.server.metrics.NoOpInstrumentation;
+import leshan.util.Validate;
+
+/**
+ * Estimates the round-trip time of each client, in the style of CoCoA.
+ * <p>
+ * The exchanges answered without retransmission feed a strong estimator (RTO = SRTT + 4 RTTVAR), the ones answered
+ * after retransmissions a weak estimator (RTO = SRTT + RTTVAR) as their round-trip time is measured from the first
+ * transmission. Each new estimation is blended in the overall RTO, with a weight of 1/2 for the strong ones and 1/4
+ * for the weak ones.
+ * </p>
+ * <p>
+ * The time to wait for a response from a client is derived from its RTO, within bounds. It always leaves room for
+ * the first retransmission of the CoAP layer (at most ACK_TIMEOUT × ACK_RANDOM_FACTOR after the request) and its
+ * round-trip, so that a single lost message does not fail the request. The estimations of a client are dropped when
+ * it de-registers: it must be registered as a listener of the client registry.
+ * </p>
+ */
+public class RttEstimator implements ClientRegistryListener {
+
+    /** CoAP ACK_TIMEOUT, the RTO before the first measure */
+    private static final double INITIAL_RTO = 2000;
+
+    /** CoAP ACK_RANDOM_FACTOR */
+    private static final double ACK_RANDOM_FACTOR = 1.5;
+
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int STRONG_K = 4;
+    private static final int WEAK_K = 1;
+
+    public static final double DEFAULT_TIMEOUT_FACTOR = 4;
+    /** the latest first retransmission of a confirmable request, ACK_TIMEOUT × ACK_RANDOM_FACTOR */
+    public static final long DEFAULT_MIN_TIMEOUT_MILLIS = (long) (INITIAL_RTO * ACK_RANDOM_FACTOR);
+    public static final long DEFAULT_MAX_TIMEOUT_MILLIS = 60_000;
+
+    private final double timeoutFactor;
+    private final long minTimeoutMillis;
+    private final long maxTimeoutMillis;
+    private final Instrumentation instrumentation;
+
+    private final ConcurrentMap<String /* end-point */, ClientRtt> clients = new ConcurrentHashMap<>();
+
+    private static class Estimator {
+        final int k;
+        double srtt;
+        double rttvar;
+        boolean initialized;
+
+        Estimator(int k) {
+            this.k = k;
+        }
+
+        /**
+         * @return the new RTO estimation
+         */
+        double update(double rtt) {
+            if (!initialized) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+                initialized = true;
+            } else {
+                rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+                srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+            }
+            return srtt + k * rttvar;
+        }
+    }
+
+    private static class ClientRtt {
+        // guarded by this
+        final Estimator strong = new Estimator(STRONG_K);
+        final Estimator weak = new Estimator(WEAK_K);
+        double rto = INITIAL_RTO;
+        long samples;
+    }
+
+    public RttEstimator() {
+        this(DEFAULT_TIMEOUT_FACTOR, DEFAULT_MIN_TIMEOUT_MILLIS, DEFAULT_MAX_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param timeoutFactor the ratio between the time to wait for a response and the RTO of the client
+     * @param minTimeoutMillis the minimum time to wait for a response, on top of the RTO of the client. It should not
+     *        be less than the latest first retransmission of the CoAP layer (ACK_TIMEOUT × ACK_RANDOM_FACTOR).
+     * @param maxTimeoutMillis the maximum time to wait for a response
+     */
+    public RttEstimator(double timeoutFactor, long minTimeoutMillis, long maxTimeoutMillis) {
+        this(timeoutFactor, minTimeoutMillis, maxTimeoutMillis, NoOpInstrumentation.INSTANCE);
+    }
+
+    /**
+     * @param timeoutFactor the ratio between the time to wait for a response and the RTO of the client
+     * @param minTimeoutMillis the minimum time to wait for a response, on top of the RTO of the client. It should not
+     *        be less than the latest first retransmission of the CoAP layer (ACK_TIMEOUT × ACK_RANDOM_FACTOR).
+     * @param maxTimeoutMillis the maximum time to wait for a response
+     * @param instrumentation receives the round-trip time and the updated estimation of each exchange
+     */
+    public RttEstimator(double timeoutFactor, long minTimeoutMillis, long maxTimeoutMillis,
+            Instrumentation instrumentation) {
+        Validate.notNull(instrumentation);
+        Validate.isTrue(timeoutFactor > 0, "timeout factor must be positive");
+        Validate.isTrue(minTimeoutMillis > 0, "minimum timeout must be positive");
+        Validate.isTrue(maxTimeoutMillis >= minTimeoutMillis, "maximum timeout must not be less than the minimum");
+
+        this.timeoutFactor = timeoutFactor;
+        this.minTimeoutMillis = minTimeoutMillis;
+        this.maxTimeoutMillis = maxTimeoutMillis;
+        this.instrumentation = instrumentation;
+    }
+
+    /**
+     * Records the round-trip time of an exchange.
+     * 
+     * @param rttMillis the time between the first transmission of the request and the response
+     * @param retransmitted whether the request was retransmitted, so that the response may answer any transmission
+     */
+    public void record(String endpoint, double rttMillis, boolean retransmitted) {
+        ClientRtt rtt = clients.get(endpoint);
+        if (rtt == null) {
+            ClientRtt created = new ClientRtt();
+            rtt = clients.putIfAbsent(endpoint, created);
+            if (rtt == null) {
+                rtt = created;
+            }
+        }
+        double srtt;
+        double rto;
+        synchronized (rtt) {
+            if (retransmitted) {
+                rtt.rto = 0.25 * rtt.weak.update(rttMillis) + 0.75 * rtt.rto;
+            } else {
+                rtt.rto = 0.5 * rtt.strong.update(rttMillis) + 0.5 * rtt.rto;
+            }
+            rtt.samples++;
+            srtt = rtt.strong.srtt;
+            rto = rtt.rto;
+        }
+        instrumentation.rttMeasured(rttMillis, retransmitted, srtt, rto);
+    }
+
+    /**
+     * @return the estimation for a client, or <code>null</code> if no round-trip time was measured
+     */
+    public RttEstimate getEstimate(String endpoint) {
+        ClientRtt rtt = clients.get(endpoint);
+        if (rtt == null) {
+            return null;
+        }
+        synchronized (rtt) {
+            return new RttEstimate(rtt.strong.srtt, rtt.strong.rttvar, rtt.rto, rtt.samples);
+        }
+    }
+
+    /**
+     * Gives the time to wait for a response from a client.
+     * 
+     * @param defaultTimeoutMillis the time returned if no round-trip time was measured for the client
+     */
+    public long getTimeout(String endpoint, long defaultTimeoutMillis) {
+        ClientRtt rtt = clients.get(endpoint);
+        if (rtt == null) {
+            return defaultTimeoutMillis;
+        }
+        double rto;
+        synchronized (rtt) {
+            rto = rtt.rto;
+        }
+        // wait at least for the response to the first retransmission
+        long timeout = Math.max(minTimeoutMillis + (long) Math.ceil(rto), (long) Math.ceil(rto * timeoutFactor));
+        return Math.min(maxTimeoutMillis, timeout);
+    }
+
+    @Override
+    public void registered(Client client) {
+    }
+
+    @Override
+    public void updated(Client clientUpdated) {
+    }
+
+    @Override
+    public void unregistered(Client client) {
+        clients.remove(client.getEndpoint());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import leshan.server.bootstrap.BootstrapConfig;
+import leshan.server.bootstrap.BootstrapStore;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class BootstrapResourceTest {
+
+    private final List<Request> sentRequests = new CopyOnWriteArrayList<>();
+
+    private final List<Response> sentResponses = new CopyOnWriteArrayList<>();
+
+    private Endpoint endpoint;
+
+    private BootstrapStore store;
+
+    private BootstrapResource resource;
+
+    @Before
+    public void setUp() {
+        endpoint = mock(Endpoint.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                sentRequests.add((Request) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(endpoint).sendRequest(any(Request.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                sentResponses.add((Response) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(endpoint).sendResponse(any(Exchange.class), any(Response.class));
+
+        store = mock(BootstrapStore.class);
+        when(store.getBootstrap("urn:client")).thenReturn(new BootstrapConfig());
+    }
+
+    @After
+    public void tearDown() {
+        resource.destroy();
+    }
+
+    @Test
+    public void bootstrap_sequence_is_chained_by_responses() throws Exception {
+        resource = new BootstrapResource(store, 10, 10_000, 0);
+
+        resource.handlePOST(bootstrapRequest("urn:client"));
+        assertEquals(ResponseCode.CHANGED, sentResponses.get(0).getCode());
+        assertEquals(9, resource.getAvailableSessions());
+
+        // the next request is only sent on response
+        assertEquals(1, sentRequests.size());
+        assertEquals(Code.DELETE, sentRequests.get(0).getCode());
+
+        sentRequests.get(0).setResponse(new Response(ResponseCode.DELETED));
+        assertEquals(2, sentRequests.size());
+        assertEquals(Code.POST, sentRequests.get(1).getCode());
+        assertEquals("/0", sentRequests.get(1).getOptions().getURIPathString());
+
+        sentRequests.get(1).setResponse(new Response(ResponseCode.CHANGED));
+        assertEquals(3, sentRequests.size());
+        assertEquals("/1", sentRequests.get(2).getOptions().getURIPathString());
+
+        sentRequests.get(2).setResponse(new Response(ResponseCode.CHANGED));
+        assertEquals(3, sentRequests.size());
+        assertEquals(10, resource.getAvailableSessions());
+    }
+
+    @Test
+    public void step_is_retried_on_timeout() throws Exception {
+        resource = new BootstrapResource(store, 10, 50, 1);
+
+        resource.handlePOST(bootstrapRequest("urn:client"));
+
+        // no response: the delete request is sent twice then the session is abandoned
+        long deadline = System.currentTimeMillis() + 5000;
+        while (resource.getAvailableSessions() != 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, resource.getAvailableSessions());
+        assertEquals(2, sentRequests.size());
+        assertEquals(Code.DELETE, sentRequests.get(1).getCode());
+    }
+
+    @Test
+    public void bootstrap_over_max_sessions_is_rejected() throws Exception {
+        resource = new BootstrapResource(store, 1, 10_000, 0);
+
+        resource.handlePOST(bootstrapRequest("urn:client"));
+        resource.handlePOST(bootstrapRequest("urn:client"));
+
+        assertEquals(ResponseCode.CHANGED, sentResponses.get(0).getCode());
+        assertEquals(ResponseCode.SERVICE_UNAVAILABLE, sentResponses.get(1).getCode());
+        assertEquals(1, sentRequests.size());
+    }
+
+    @Test
+    public void encoded_config_is_reused() throws Exception {
+        resource = new BootstrapResource(store, 10, 10_000, 0);
+
+        resource.handlePOST(bootstrapRequest("urn:client"));
+        sentRequests.get(0).setResponse(new Response(ResponseCode.DELETED));
+        resource.handlePOST(bootstrapRequest("urn:client"));
+        sentRequests.get(2).setResponse(new Response(ResponseCode.DELETED));
+
+        // same configuration instance: the security payload is encoded once
+        assertEquals("/0", sentRequests.get(1).getOptions().getURIPathString());
+        assertEquals("/0", sentRequests.get(3).getOptions().getURIPathString());
+        assertSame(sentRequests.get(1).getPayload(), sentRequests.get(3).getPayload());
+
+        // a new configuration instance is encoded again
+        when(store.getBootstrap("urn:client")).thenReturn(new BootstrapConfig());
+        resource.handlePOST(bootstrapRequest("urn:client"));
+        sentRequests.get(4).setResponse(new Response(ResponseCode.DELETED));
+        assertNotSame(sentRequests.get(1).getPayload(), sentRequests.get(5).getPayload());
+    }
+
+    private CoapExchange bootstrapRequest(String endpointName) throws Exception {
+        Request request = Request.newPost();
+        request.setType(Type.CON);
+        request.getOptions().addURIQuery("ep=" + endpointName);
+        request.setSource(InetAddress.getLoopbackAddress());
+        request.setSourcePort(5683);
+
+        Exchange exchange = new Exchange(request, Exchange.Origin.REMOTE);
+        exchange.setRequest(request);
+        exchange.setEndpoint(endpoint);
+        return new CoapExchange(exchange, resource);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import leshan.core.response.ClientResponse;
+import leshan.core.response.ExceptionConsumer;
+import leshan.core.response.ResponseConsumer;
+import leshan.core.response.ValueResponse;
+import leshan.server.metrics.HistogramInstrumentation;
+import leshan.server.metrics.RequestOutcome;
+import leshan.server.observation.ObservationRegistry;
+import leshan.server.request.ClientUnavailableException;
+import leshan.server.request.DeleteRequest;
+import leshan.server.request.ReadRequest;
+import leshan.server.request.RequestTimeoutException;
+import leshan.server.request.ResponseFuture;
+import leshan.server.shadow.DeviceShadow;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class CaliforniumLwM2mRequestSenderTest {
+
+    private final List<Request> sentRequests = new CopyOnWriteArrayList<>();
+
+    private final CaliforniumTestSupport support = new CaliforniumTestSupport();
+
+    private Endpoint endpoint;
+
+    private CaliforniumLwM2mRequestSender sender;
+
+    @Before
+    public void setUp() throws Exception {
+        support.givenASimpleClient();
+
+        endpoint = mock(Endpoint.class);
+        when(endpoint.getAddress()).thenReturn(support.registrationAddress);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                sentRequests.add((Request) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(endpoint).sendRequest(any(Request.class));
+
+        sender = new CaliforniumLwM2mRequestSender(Collections.singleton(endpoint), mock(ObservationRegistry.class));
+    }
+
+    @After
+    public void tearDown() {
+        sender.destroy();
+    }
+
+    @Test
+    public void future_is_completed_by_the_response() throws Exception {
+        ResponseFuture<ClientResponse> future = sender.sendAsync(new DeleteRequest(support.client, 3, 0), 10_000);
+        assertFalse(future.isDone());
+
+        sentRequests.get(0).setResponse(new Response(ResponseCode.DELETED));
+        assertEquals(leshan.ResponseCode.DELETED, future.get(1, TimeUnit.SECONDS).getCode());
+    }
+
+    @Test
+    public void future_fails_when_no_response_is_received_in_time() throws Exception {
+        ResponseFuture<ClientResponse> future = sender.sendAsync(new DeleteRequest(support.client, 3, 0), 50);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RequestTimeoutException);
+        }
+
+        // the request is cancelled by the timer thread once the future has failed
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!sentRequests.get(0).isCanceled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(sentRequests.get(0).isCanceled());
+        // a single timeout does not make the client dead
+        assertFalse(support.client.isMarkLastRequestTimedout());
+    }
+
+    @Test
+    public void coap_timeout_reports_the_timeout_of_the_request() throws Exception {
+        ResponseFuture<ClientResponse> future = sender.sendAsync(new DeleteRequest(support.client, 3, 0), 12_345);
+
+        sentRequests.get(0).setTimedOut(true);
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RequestTimeoutException);
+            assertTrue(e.getCause().getMessage().contains("12345 milliseconds"));
+        }
+    }
+
+    @Test
+    public void cancelling_the_future_cancels_the_request() throws Exception {
+        ResponseFuture<ClientResponse> future = sender.sendAsync(new DeleteRequest(support.client, 3, 0), 10_000);
+        assertTrue(future.cancel(false));
+        assertTrue(sentRequests.get(0).isCanceled());
+        assertFalse(support.client.isMarkLastRequestTimedout());
+    }
+
+    @Test
+    public void identical_reads_share_the_exchange() throws Exception {
+        final List<ValueResponse> callbackResponses = new CopyOnWriteArrayList<>();
+        ResponseFuture<ValueResponse> first = sender.sendAsync(new ReadRequest(support.client, 3, 0, 1), 10_000);
+        ResponseFuture<ValueResponse> second = sender.sendAsync(new ReadRequest(support.client, 3, 0, 1), 10_000);
+        sender.send(new ReadRequest(support.client, "/3/0/1"), new ResponseConsumer<ValueResponse>() {
+            @Override
+            public void accept(ValueResponse response) {
+                callbackResponses.add(response);
+            }
+        }, new ExceptionConsumer() {
+            @Override
+            public void accept(Exception e) {
+            }
+        });
+
+        assertEquals(1, sentRequests.size());
+        assertEquals(2, sender.getCoalescedReadCount());
+
+        sentRequests.get(0).setResponse(new Response(ResponseCode.NOT_FOUND));
+        ValueResponse response = first.get(1, TimeUnit.SECONDS);
+        assertEquals(leshan.ResponseCode.NOT_FOUND, response.getCode());
+        assertSame(response, second.get(1, TimeUnit.SECONDS));
+        assertSame(response, callbackResponses.get(0));
+
+        // a new exchange once the previous one is completed
+        sender.sendAsync(new ReadRequest(support.client, 3, 0, 1), 10_000);
+        assertEquals(2, sentRequests.size());
+    }
+
+    @Test
+    public void read_after_a_modification_does_not_share_an_older_read() throws Exception {
+        ResponseFuture<ValueResponse> before = sender.sendAsync(new ReadRequest(support.client, 3, 0, 1), 10_000);
+        ResponseFuture<ValueResponse> otherPath = sender.sendAsync(new ReadRequest(support.client, 4, 0, 1), 10_000);
+        sender.sendAsync(new DeleteRequest(support.client, 3, 0), 10_000);
+
+        // the read sent before the deletion may return the deleted value
+        ResponseFuture<ValueResponse> after = sender.sendAsync(new ReadRequest(support.client, 3, 0, 1), 10_000);
+        assertEquals(0, sender.getCoalescedReadCount());
+        // the reads of other paths are still shared
+        sender.sendAsync(new ReadRequest(support.client, 4, 0, 1), 10_000);
+        assertEquals(1, sender.getCoalescedReadCount());
+
+        sentRequests.get(0).setResponse(new Response(ResponseCode.NOT_FOUND));
+        assertEquals(leshan.ResponseCode.NOT_FOUND, before.get(1, TimeUnit.SECONDS).getCode());
+        assertFalse(after.isDone());
+        assertFalse(otherPath.isDone());
+    }
+
+    @Test
+    public void shared_read_is_cancelled_by_the_last_participant() throws Exception {
+        ResponseFuture<ValueResponse> first = sender.sendAsync(new ReadRequest(support.client, 3, 0, 1), 10_000);
+        ResponseFuture<ValueResponse> second = sender.sendAsync(new ReadRequest(support.client, 3, 0, 1), 10_000);
+        assertEquals(1, sentRequests.size());
+
+        first.cancel(false);
+        assertFalse(sentRequests.get(0).isCanceled());
+        assertFalse(second.isDone());
+
+        second.cancel(false);
+        assertTrue(sentRequests.get(0).isCanceled());
+        assertFalse(support.client.isMarkLastRequestTimedout());
+    }
+
+    @Test
+    public void synchronous_read_times_out() throws Exception {
+        CaliforniumLwM2mRequestSender shortTimeoutSender = new CaliforniumLwM2mRequestSender(
+                Collections.singleton(endpoint), mock(ObservationRegistry.class), 50);
+        try {
+            shortTimeoutSender.send(new ReadRequest(support.client, 3, 0, 1));
+            fail();
+        } catch (RequestTimeoutException e) {
+            // expected
+        } finally {
+            shortTimeoutSender.destroy();
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!sentRequests.get(0).isCanceled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(sentRequests.get(0).isCanceled());
+        // a single timeout does not make the client dead
+        assertFalse(support.client.isMarkLastRequestTimedout());
+    }
+
+    @Test
+    public void open_circuit_rejects_the_requests() throws Exception {
+        CaliforniumLwM2mRequestSender breakingSender = newSender(new ClientCircuitBreaker(1, 60_000, 1));
+        try {
+            timeOut(breakingSender.sendAsync(new DeleteRequest(support.client, 3, 0), 50));
+            assertEquals(ClientCircuitBreaker.State.OPEN,
+                    breakingSender.getCircuitBreaker().getState(support.client.getEndpoint()));
+
+            try {
+                breakingSender.send(new DeleteRequest(support.client, 3, 0));
+                fail();
+            } catch (ClientUnavailableException e) {
+                // expected
+            }
+            assertEquals(1, sentRequests.size());
+            assertFalse(support.client.isMarkLastRequestTimedout());
+        } finally {
+            breakingSender.destroy();
+        }
+    }
+
+    @Test
+    public void client_is_marked_after_failed_probes() throws Exception {
+        CaliforniumLwM2mRequestSender breakingSender = newSender(new ClientCircuitBreaker(1, 0, 1));
+        try {
+            timeOut(breakingSender.sendAsync(new DeleteRequest(support.client, 3, 0), 50));
+            assertFalse(support.client.isMarkLastRequestTimedout());
+
+            // the probe
+            timeOut(breakingSender.sendAsync(new DeleteRequest(support.client, 3, 0), 50));
+            assertEquals(2, sentRequests.size());
+            assertTrue(support.client.isMarkLastRequestTimedout());
+        } finally {
+            breakingSender.destroy();
+        }
+    }
+
+    @Test
+    public void request_outcomes_are_instrumented() throws Exception {
+        HistogramInstrumentation instrumentation = new HistogramInstrumentation();
+        CaliforniumLwM2mRequestSender instrumentedSender = new CaliforniumLwM2mRequestSender(
+                Collections.singleton(endpoint), mock(ObservationRegistry.class),
+                CaliforniumLwM2mRequestSender.DEFAULT_TIMEOUT_MILLIS, new OutboundRequestQueue(),
+                (DeviceShadow) null, new ClientCircuitBreaker(), instrumentation);
+        try {
+            ResponseFuture<ClientResponse> deleted = instrumentedSender.sendAsync(
+                    new DeleteRequest(support.client, 3, 0), 10_000);
+            sentRequests.get(0).setResponse(new Response(ResponseCode.DELETED));
+            deleted.get(1, TimeUnit.SECONDS);
+
+            timeOut(instrumentedSender.sendAsync(new DeleteRequest(support.client, 3, 0), 50));
+
+            instrumentedSender.sendAsync(new ReadRequest(support.client, 3, 0, 1), 10_000).cancel(false);
+
+            assertEquals(1, instrumentation.getRequestCount("Delete", RequestOutcome.SUCCESS));
+            assertEquals(1, instrumentation.getRequestCount("Delete", RequestOutcome.TIMEOUT));
+            assertEquals(0, instrumentation.getRequestCount("Delete", RequestOutcome.CANCELLED));
+            assertEquals(2, instrumentation.getRequestLatency("Delete").getCount());
+            assertEquals(1, instrumentation.getRequestCount("Read", RequestOutcome.CANCELLED));
+        } finally {
+            instrumentedSender.destroy();
+        }
+    }
+
+    private CaliforniumLwM2mRequestSender newSender(ClientCircuitBreaker circuitBreaker) {
+        return new CaliforniumLwM2mRequestSender(Collections.singleton(endpoint), mock(ObservationRegistry.class),
+                CaliforniumLwM2mRequestSender.DEFAULT_TIMEOUT_MILLIS, new OutboundRequestQueue(), (DeviceShadow) null,
+                circuitBreaker);
+    }
+
+    private void timeOut(ResponseFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RequestTimeoutException);
+        }
+        // the failure is recorded by the timer thread once the future has failed
+        Request request = sentRequests.get(sentRequests.size() - 1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!request.isCanceled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import leshan.server.californium.impl.ClientCircuitBreaker.State;
+
+import org.junit.Test;
+
+public class ClientCircuitBreakerTest {
+
+    private static final String EP = "urn:client";
+
+    @Test
+    public void opens_after_consecutive_failures() {
+        ClientCircuitBreaker breaker = new ClientCircuitBreaker(3, 60_000, 3);
+        assertFalse(breaker.onFailure(EP, new Object()));
+        assertFalse(breaker.onFailure(EP, new Object()));
+        assertEquals(State.CLOSED, breaker.getState(EP));
+        assertTrue(breaker.allow(EP, new Object()));
+
+        assertFalse(breaker.onFailure(EP, new Object()));
+        assertEquals(State.OPEN, breaker.getState(EP));
+        assertFalse(breaker.allow(EP, new Object()));
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void response_resets_the_failures() {
+        ClientCircuitBreaker breaker = new ClientCircuitBreaker(2, 60_000, 3);
+        breaker.onFailure(EP, new Object());
+        breaker.onSuccess(EP);
+        breaker.onFailure(EP, new Object());
+        assertEquals(State.CLOSED, breaker.getState(EP));
+    }
+
+    @Test
+    public void half_open_lets_a_single_probe_through() {
+        ClientCircuitBreaker breaker = new ClientCircuitBreaker(1, 0, 3);
+        breaker.onFailure(EP, new Object());
+
+        Object probe = new Object();
+        assertTrue(breaker.allow(EP, probe));
+        assertEquals(State.HALF_OPEN, breaker.getState(EP));
+        assertFalse(breaker.allow(EP, new Object()));
+
+        // an abandoned probe lets another request through
+        breaker.onAbandoned(EP, probe);
+        assertTrue(breaker.allow(EP, new Object()));
+
+        // answered probe
+        breaker.onSuccess(EP);
+        assertEquals(State.CLOSED, breaker.getState(EP));
+    }
+
+    @Test
+    public void sustained_failure_after_failed_probes() {
+        ClientCircuitBreaker breaker = new ClientCircuitBreaker(1, 0, 2);
+        breaker.onFailure(EP, new Object());
+
+        Object probe = new Object();
+        breaker.allow(EP, probe);
+        // a request sent before the circuit opened does not count
+        assertFalse(breaker.onFailure(EP, new Object()));
+        assertFalse(breaker.onFailure(EP, probe));
+        assertEquals(State.OPEN, breaker.getState(EP));
+
+        probe = new Object();
+        breaker.allow(EP, probe);
+        assertTrue(breaker.onFailure(EP, probe));
+        assertEquals(State.CLOSED, breaker.getState(EP));
+    }
+}
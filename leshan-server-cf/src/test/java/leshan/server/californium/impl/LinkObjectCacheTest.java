@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import leshan.LinkObject;
+import leshan.server.client.Client;
+import leshan.util.Charsets;
+
+import org.junit.Test;
+
+public class LinkObjectCacheTest {
+
+    private static final String LINKS = "</>;rt=\"oma.lwm2m\",</1/101>,</3/0>";
+
+    @Test
+    public void identical_payloads_share_the_same_links() {
+        LinkObjectCache cache = new LinkObjectCache(10);
+
+        LinkObject[] links = cache.parse(LINKS.getBytes(Charsets.UTF_8));
+        assertEquals(3, links.length);
+        assertEquals("/3/0", links[2].getPath());
+
+        assertSame(links, cache.parse(LINKS.getBytes(Charsets.UTF_8)));
+        assertNotSame(links, cache.parse("</3/0>".getBytes(Charsets.UTF_8)));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void unsorted_payloads_are_sorted_once_and_shared() throws Exception {
+        LinkObjectCache cache = new LinkObjectCache(10);
+
+        byte[] payload = "</3/0>,</>;rt=\"oma.lwm2m\",</1/101>".getBytes(Charsets.UTF_8);
+        LinkObject[] links = cache.parse(payload);
+        assertEquals("/", links[0].getUrl());
+        assertEquals("/3/0", links[2].getPath());
+
+        // the clients keep the shared array
+        Client client = new Client("reg", "urn:client", InetAddress.getLocalHost(), 5683, null, null, null, null, links,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+        assertSame(links, client.getObjectLinks());
+        assertSame(links, cache.parse(payload));
+    }
+
+    @Test
+    public void least_recently_used_payload_is_evicted() {
+        LinkObjectCache cache = new LinkObjectCache(2);
+
+        LinkObject[] first = cache.parse("</1/0>".getBytes(Charsets.UTF_8));
+        LinkObject[] second = cache.parse("</2/0>".getBytes(Charsets.UTF_8));
+        // use the first payload again so that the second one is the eldest
+        cache.parse("</1/0>".getBytes(Charsets.UTF_8));
+        cache.parse("</3/0>".getBytes(Charsets.UTF_8));
+
+        assertEquals(2, cache.size());
+        assertSame(first, cache.parse("</1/0>".getBytes(Charsets.UTF_8)));
+        assertNotSame(second, cache.parse("</2/0>".getBytes(Charsets.UTF_8)));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import leshan.server.client.BindingMode;
+import leshan.server.client.Client;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class OutboundRequestQueueTest {
+
+    private final List<Request> sentRequests = new CopyOnWriteArrayList<>();
+
+    private Endpoint endpoint;
+
+    @Before
+    public void setUp() {
+        endpoint = mock(Endpoint.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                sentRequests.add((Request) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(endpoint).sendRequest(any(Request.class));
+    }
+
+    @Test
+    public void one_request_in_flight_per_client() throws Exception {
+        OutboundRequestQueue queue = new OutboundRequestQueue();
+        Client client = client("urn:client", BindingMode.U);
+
+        queue.send(client, endpoint, Request.newGet());
+        queue.send(client, endpoint, Request.newGet());
+        queue.send(client, endpoint, Request.newGet());
+        assertEquals(1, sentRequests.size());
+        assertEquals(2, queue.getQueueSize("urn:client"));
+
+        // the next request is sent on completion, whatever the outcome
+        sentRequests.get(0).setResponse(new Response(ResponseCode.CONTENT));
+        assertEquals(2, sentRequests.size());
+        sentRequests.get(1).setTimedOut(true);
+        assertEquals(3, sentRequests.size());
+        assertEquals(0, queue.getQueueSize("urn:client"));
+        assertEquals(1, queue.getInFlight("urn:client"));
+
+        // other clients are not affected
+        queue.send(client("urn:other", BindingMode.U), endpoint, Request.newGet());
+        assertEquals(4, sentRequests.size());
+    }
+
+    @Test
+    public void requests_to_queue_mode_clients_are_flushed_on_update() throws Exception {
+        OutboundRequestQueue queue = new OutboundRequestQueue(2, 10, 60_000, 60_000);
+        Client client = client("urn:client", BindingMode.UQ);
+
+        queue.send(client, endpoint, Request.newGet());
+        queue.send(client, endpoint, Request.newGet());
+        queue.send(client, endpoint, Request.newGet());
+        assertTrue(sentRequests.isEmpty());
+        assertEquals(3, queue.getQueueSize("urn:client"));
+
+        queue.updated(client);
+        assertEquals(2, sentRequests.size());
+
+        // awake: the remaining request follows the responses
+        sentRequests.get(0).setResponse(new Response(ResponseCode.CONTENT));
+        assertEquals(3, sentRequests.size());
+    }
+
+    @Test
+    public void requests_are_held_again_after_the_awake_window() throws Exception {
+        OutboundRequestQueue queue = new OutboundRequestQueue(1, 10, 60_000, 0);
+        Client client = client("urn:client", BindingMode.UQ);
+
+        queue.registered(client);
+        queue.send(client, endpoint, Request.newGet());
+        assertTrue(sentRequests.isEmpty());
+    }
+
+    @Test
+    public void queue_size_is_bounded() throws Exception {
+        OutboundRequestQueue queue = new OutboundRequestQueue(1, 1, 60_000, 60_000);
+        Client client = client("urn:client", BindingMode.UQ);
+
+        Request held = Request.newGet();
+        Request rejected = Request.newGet();
+        queue.send(client, endpoint, held);
+        queue.send(client, endpoint, rejected);
+
+        assertFalse(held.isCanceled());
+        assertTrue(rejected.isCanceled());
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(1, queue.getQueueSize());
+    }
+
+    @Test
+    public void old_requests_expire() throws Exception {
+        OutboundRequestQueue queue = new OutboundRequestQueue(1, 10, 1, 60_000);
+        Client client = client("urn:client", BindingMode.UQ);
+
+        Request held = Request.newGet();
+        queue.send(client, endpoint, held);
+        Thread.sleep(10);
+        queue.purge();
+
+        assertTrue(held.isCanceled());
+        assertEquals(1, queue.getExpiredCount());
+        assertEquals(0, queue.getQueueSize("urn:client"));
+    }
+
+    @Test
+    public void held_requests_are_cancelled_on_deregistration() throws Exception {
+        OutboundRequestQueue queue = new OutboundRequestQueue();
+        Client client = client("urn:client", BindingMode.UQ);
+
+        Request held = Request.newGet();
+        queue.send(client, endpoint, held);
+        queue.unregistered(client);
+
+        assertTrue(held.isCanceled());
+        assertTrue(sentRequests.isEmpty());
+    }
+
+    @Test
+    public void held_request_can_be_removed() throws Exception {
+        OutboundRequestQueue queue = new OutboundRequestQueue();
+        Client client = client("urn:client", BindingMode.UQ);
+
+        Request held = Request.newGet();
+        queue.send(client, endpoint, held);
+        assertTrue(queue.remove(client, held));
+        assertFalse(queue.remove(client, held));
+
+        queue.updated(client);
+        assertTrue(sentRequests.isEmpty());
+    }
+
+    @Test
+    public void round_trip_time_is_recorded_on_response() throws Exception {
+        OutboundRequestQueue queue = new OutboundRequestQueue();
+        Client client = client("urn:client", BindingMode.U);
+
+        queue.send(client, endpoint, Request.newGet());
+        Thread.sleep(20);
+        sentRequests.get(0).setResponse(new Response(ResponseCode.CONTENT));
+        // notifications are not round trips
+        sentRequests.get(0).setResponse(new Response(ResponseCode.CONTENT));
+
+        RttEstimate estimate = queue.getRttEstimator().getEstimate("urn:client");
+        assertEquals(1, estimate.getSamples());
+        assertTrue(estimate.getSmoothedRtt() >= 20);
+    }
+
+    private static Client client(String endpoint, BindingMode binding) throws Exception {
+        InetSocketAddress registrationAddress = InetSocketAddress.createUnresolved("localhost", 5683);
+        return new Client(endpoint + "-reg", endpoint, InetAddress.getLocalHost(), 5683, "1.0", 10000L, null, binding,
+                null, registrationAddress);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+public class RegistrationAdmissionControlTest {
+
+    @Test
+    public void registrations_over_the_global_burst_are_rejected() throws Exception {
+        // a slow refill so that the test does not depend on timing
+        RegistrationAdmissionControl control = new RegistrationAdmissionControl(0.001, 5, 1, 10, 100, 30, 60);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(control.admit(InetAddress.getByName("10.0.0." + i)));
+        }
+        assertFalse(control.admit(InetAddress.getByName("10.0.0.100")));
+
+        assertEquals(5, control.getAdmittedCount());
+        assertEquals(1, control.getRejectedCount());
+    }
+
+    @Test
+    public void registrations_over_the_source_burst_are_rejected() throws Exception {
+        RegistrationAdmissionControl control = new RegistrationAdmissionControl(1000, 1000, 0.001, 2, 100, 30, 60);
+
+        InetAddress source = InetAddress.getByName("10.0.0.1");
+        assertTrue(control.admit(source));
+        assertTrue(control.admit(source));
+        assertFalse(control.admit(source));
+
+        // other sources are not impacted
+        assertTrue(control.admit(InetAddress.getByName("10.0.0.2")));
+    }
+
+    @Test
+    public void backoff_is_within_range() {
+        RegistrationAdmissionControl control = new RegistrationAdmissionControl(1, 1, 1, 1, 1, 30, 60);
+
+        for (int i = 0; i < 100; i++) {
+            int backoff = control.backoff();
+            assertTrue(backoff >= 30 && backoff <= 60);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.californium.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import leshan.server.client.Client;
+import leshan.server.metrics.HistogramInstrumentation;
+
+import org.junit.Test;
+
+public class RttEstimatorTest {
+
+    @Test
+    public void default_timeout_until_measured() {
+        RttEstimator estimator = new RttEstimator();
+        assertNull(estimator.getEstimate("urn:client"));
+        assertEquals(5000, estimator.getTimeout("urn:client", 5000));
+    }
+
+    @Test
+    public void strong_estimations_converge_to_the_rtt() {
+        RttEstimator estimator = new RttEstimator(4, 1, 60_000);
+        estimator.record("urn:client", 100, false);
+
+        // first sample: SRTT = R, RTTVAR = R/2, RTO = (2000 + 100 + 4 * 50) / 2
+        RttEstimate estimate = estimator.getEstimate("urn:client");
+        assertEquals(100, estimate.getSmoothedRtt(), 0.001);
+        assertEquals(50, estimate.getRttVariance(), 0.001);
+        assertEquals(1150, estimate.getRto(), 0.001);
+
+        for (int i = 0; i < 50; i++) {
+            estimator.record("urn:client", 100, false);
+        }
+        estimate = estimator.getEstimate("urn:client");
+        assertEquals(51, estimate.getSamples());
+        assertEquals(100, estimate.getRto(), 1);
+        assertEquals(400, estimator.getTimeout("urn:client", 5000), 4);
+    }
+
+    @Test
+    public void weak_estimations_weigh_less() {
+        RttEstimator estimator = new RttEstimator(4, 1, 60_000);
+        estimator.record("urn:client", 100, true);
+
+        // RTO = 1/4 (100 + 50) + 3/4 2000
+        RttEstimate estimate = estimator.getEstimate("urn:client");
+        assertEquals(1537.5, estimate.getRto(), 0.001);
+        // only the strong estimator is exposed
+        assertEquals(0, estimate.getSmoothedRtt(), 0.001);
+    }
+
+    @Test
+    public void timeout_is_bounded() {
+        RttEstimator estimator = new RttEstimator(4, 1000, 30_000);
+        estimator.record("urn:fast", 1, false);
+        for (int i = 0; i < 50; i++) {
+            estimator.record("urn:fast", 1, false);
+            estimator.record("urn:slow", 20_000, false);
+        }
+
+        assertEquals(1001, estimator.getTimeout("urn:fast", 5000), 1);
+        assertEquals(30_000, estimator.getTimeout("urn:slow", 5000));
+    }
+
+    @Test
+    public void timeout_covers_a_single_retransmission() {
+        RttEstimator estimator = new RttEstimator();
+        for (int i = 0; i < 50; i++) {
+            estimator.record("urn:client", 100, false);
+        }
+
+        // the first retransmission may be sent up to ACK_TIMEOUT * ACK_RANDOM_FACTOR (3s) after the request, its
+        // response is expected one RTO later
+        long timeout = estimator.getTimeout("urn:client", 5000);
+        assertTrue(timeout >= 3000 + 100);
+        assertEquals(3000 + 100, timeout, 2);
+    }
+
+    @Test
+    public void exchanges_are_reported_to_the_instrumentation() {
+        HistogramInstrumentation instrumentation = new HistogramInstrumentation();
+        RttEstimator estimator = new RttEstimator(RttEstimator.DEFAULT_TIMEOUT_FACTOR,
+                RttEstimator.DEFAULT_MIN_TIMEOUT_MILLIS, RttEstimator.DEFAULT_MAX_TIMEOUT_MILLIS, instrumentation);
+        estimator.record("urn:client", 100, false);
+        estimator.record("urn:client", 3100, true);
+
+        assertEquals(2, instrumentation.getRoundTripTime().getCount());
+        assertEquals(2, instrumentation.getRetransmissionTimeout().getCount());
+        assertEquals(1, instrumentation.getRetransmittedExchanges());
+    }
+
+    @Test
+    public void estimations_are_dropped_on_deregistration() throws Exception {
+        RttEstimator estimator = new RttEstimator();
+        estimator.record("urn:client", 100, false);
+        estimator.unregistered(new Client("reg", "urn:client", InetAddress.getLocalHost(), 5683, InetSocketAddress
+                .createUnresolved("localhost", 5683)));
+
+        assertNull(estimator.getEstimate("urn:client"));
+    }
+}
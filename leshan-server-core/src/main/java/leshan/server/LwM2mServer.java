@@ -32,9 +32,12 @@ package leshan.server;
 import leshan.core.response.ClientResponse;
 import leshan.core.response.ExceptionConsumer;
 import leshan.core.response.ResponseConsumer;
+import leshan.core.response.ValueResponse;
 import leshan.server.client.ClientRegistry;
 import leshan.server.observation.ObservationRegistry;
 import leshan.server.request.LwM2mRequest;
+import leshan.server.request.ReadRequest;
+import leshan.server.request.ResponseFuture;
 import leshan.server.security.SecurityRegistry;
 
 /**
@@ -74,6 +77,23 @@ public interface LwM2mServer {
     <T extends ClientResponse> void send(LwM2mRequest<T> request, ResponseConsumer<T> responseCallback,
             ExceptionConsumer errorCallback);
 
+    /**
+     * Send a Lightweight M2M request asynchronously, without blocking any thread while waiting for the response.
+     * 
+     * @param timeoutMillis the time after which the future fails with a {@link leshan.server.request.RequestTimeoutException} and the request
+     *        is cancelled
+     * @return the future response, cancelling it cancels the request
+     */
+    <T extends ClientResponse> ResponseFuture<T> sendAsync(LwM2mRequest<T> request, long timeoutMillis);
+
+    /**
+     * Reads a value from the last known values of the client if they are fresh enough, from the client otherwise.
+     * 
+     * @param maxAgeMillis the maximum age of a value served from memory, 0 to always read from the client
+     * @return the response, as returned by {@link #send(LwM2mRequest)} if the client is actually read
+     */
+    ValueResponse read(ReadRequest request, long maxAgeMillis);
+
     /**
      * Get the client registry containing the list of connected clients. You can use this object for listening client
      * registration/deregistration.
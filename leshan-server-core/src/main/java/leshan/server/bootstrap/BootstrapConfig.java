@@ -36,6 +36,10 @@ import leshan.server.client.BindingMode;
 
 /**
  * A client configuration to be pushed by a bootstrap operation
+ * <p>
+ * A configuration must not be modified once it is returned by a {@link BootstrapStore}: its encoded form may be cached.
+ * Store a new instance to change it.
+ * </p>
  */
 public class BootstrapConfig {
 
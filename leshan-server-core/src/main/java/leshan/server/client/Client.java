@@ -47,8 +47,74 @@ public class Client {
 
     private static final String DEFAULT_LWM2M_VERSION = "1.0";
 
-    private final Date registrationDate;
+    private static final int[] NO_OBJECT_ID = new int[0];
+
+    private static final Comparator<LinkObject> LINK_ORDER = new Comparator<LinkObject>() {
+
+        /* sort by objectid, object instance and ressource */
+        @Override
+        public int compare(LinkObject o1, LinkObject o2) {
+            if (o1 == null && o2 == null)
+                return 0;
+            if (o1 == null)
+                return -1;
+            if (o2 == null)
+                return 1;
+            // by object
+            Integer oi1 = o1.getObjectId();
+            Integer oi2 = o2.getObjectId();
+
+            if (oi1 == null && oi2 == null) {
+                return 0;
+            }
+            if (oi1 == null) {
+                return -1;
+            }
+            if (oi2 == null) {
+                return 1;
+            }
+            int oicomp = oi1.compareTo(oi2);
+            if (oicomp != 0) {
+                return oicomp;
+            }
+
+            Integer oii1 = o1.getObjectInstanceId();
+            Integer oii2 = o2.getObjectInstanceId();
+            if (oii1 == null && oii2 == null) {
+                return 0;
+            }
+            if (oii1 == null) {
+                return -1;
+            }
+            if (oii2 == null) {
+                return 1;
+            }
+            int oiicomp = oii1.compareTo(oii2);
+            if (oiicomp != 0) {
+                return oiicomp;
+            }
 
+            Integer or1 = o1.getResourceId();
+            Integer or2 = o2.getResourceId();
+            if (or1 == null && or2 == null) {
+                return 0;
+            }
+            if (or1 == null) {
+                return -1;
+            }
+            if (or2 == null) {
+                return 1;
+            }
+            return or1.compareTo(or2);
+
+        }
+    };
+
+    // timestamps are kept as primitives (milliseconds since the epoch) to keep the memory footprint small
+    private final long registrationDate;
+
+    // the instance received from the CoAP layer is shared rather than copied: it keeps the IPv6 scope id and costs no
+    // extra allocation
     private InetAddress address;
 
     private int port;
@@ -58,7 +124,7 @@ public class Client {
      */
     private final InetSocketAddress registrationEndpointAddress;
 
-    private long lifeTimeInSec;
+    private volatile long lifeTimeInSec;
 
     private String smsNumber;
 
@@ -73,15 +139,27 @@ public class Client {
 
     private final String registrationId;
 
+    // sorted when set
     private LinkObject[] objectLinks;
 
+    // the ids of the registered objects, sorted
+    private int[] objectIds = NO_OBJECT_ID;
+
     /** The location where LWM2M objects are hosted on the device */
     private String rootPath = "/";
 
-    private Date lastUpdate;
+    // the liveness state is volatile rather than guarded by the client lock: it is read by the CoAP, the cleanup and
+    // the servlet threads
+    private volatile long lastUpdate;
 
     // true, if the client failed to answer the last server request
-    private boolean LastRequesttimedout = false;
+    private volatile boolean LastRequesttimedout = false;
+
+    // the schedule keeping track of this client expiration, if any
+    volatile ClientExpirationScheduler expirationScheduler;
+
+    // the entry of this client in the schedule, swapped with a compare-and-set by the scheduler
+    volatile ClientExpirationScheduler.Expiration expiration;
 
     public Client(String registrationId, String endpoint, InetAddress address, int port,
             InetSocketAddress registrationEndpoint) {
@@ -98,6 +176,19 @@ public class Client {
     public Client(String registrationId, String endpoint, InetAddress address, int port, String lwM2mVersion,
             Long lifetime, String smsNumber, BindingMode binding, LinkObject[] objectLinks, Date registrationDate,
             InetSocketAddress registrationEndpoint) {
+        this(registrationId, endpoint, address, port, lwM2mVersion, lifetime, smsNumber, binding, objectLinks,
+                registrationDate, null, registrationEndpoint);
+    }
+
+    /**
+     * Creates a client with all its registration properties, typically to restore a registration made before a
+     * server restart.
+     * 
+     * @param lastUpdate the time of the last registration update or <code>null</code> for now
+     */
+    public Client(String registrationId, String endpoint, InetAddress address, int port, String lwM2mVersion,
+            Long lifetime, String smsNumber, BindingMode binding, LinkObject[] objectLinks, Date registrationDate,
+            Date lastUpdate, InetSocketAddress registrationEndpoint) {
 
         Validate.notEmpty(endpoint);
         Validate.notNull(address);
@@ -111,12 +202,14 @@ public class Client {
 
         setObjectLinks(objectLinks);
 
-        this.registrationDate = registrationDate == null ? new Date() : registrationDate;
+        this.registrationDate = registrationDate == null ? System.currentTimeMillis() : registrationDate.getTime();
         lifeTimeInSec = lifetime == null ? DEFAULT_LIFETIME_IN_SEC : lifetime;
-        this.lwM2mVersion = lwM2mVersion == null ? DEFAULT_LWM2M_VERSION : lwM2mVersion;
+        // share the instance of the default version among all the clients
+        this.lwM2mVersion = lwM2mVersion == null || DEFAULT_LWM2M_VERSION.equals(lwM2mVersion) ? DEFAULT_LWM2M_VERSION
+                : lwM2mVersion;
         bindingMode = binding == null ? BindingMode.U : binding;
         this.smsNumber = smsNumber;
-        lastUpdate = new Date();
+        this.lastUpdate = lastUpdate == null ? System.currentTimeMillis() : lastUpdate.getTime();
         registrationEndpointAddress = registrationEndpoint;
     }
 
@@ -125,7 +218,7 @@ public class Client {
     }
 
     public Date getRegistrationDate() {
-        return registrationDate;
+        return new Date(registrationDate);
     }
 
     /**
@@ -163,79 +256,57 @@ public class Client {
         return registrationEndpointAddress;
     }
 
+    /**
+     * Gets the objects and object instances hosted by the client, sorted by object id, object instance id and resource
+     * id.
+     * 
+     * @return the sorted object links or <code>null</code>. The array may be shared with other clients and must not
+     *         be modified.
+     */
     public LinkObject[] getObjectLinks() {
-        // sort the list of objects
-        if (objectLinks == null) {
-            return null;
-        }
-        LinkObject[] res = Arrays.copyOf(objectLinks, objectLinks.length);
-
-        Arrays.sort(res, new Comparator<LinkObject>() {
-
-            /* sort by objectid, object instance and ressource */
-            @Override
-            public int compare(LinkObject o1, LinkObject o2) {
-                if (o1 == null && o2 == null)
-                    return 0;
-                if (o1 == null)
-                    return -1;
-                if (o2 == null)
-                    return 1;
-                // by object
-                Integer oi1 = o1.getObjectId();
-                Integer oi2 = o2.getObjectId();
-
-                if (oi1 == null && oi2 == null) {
-                    return 0;
-                }
-                if (oi1 == null) {
-                    return -1;
-                }
-                if (oi2 == null) {
-                    return 1;
-                }
-                int oicomp = oi1.compareTo(oi2);
-                if (oicomp != 0) {
-                    return oicomp;
-                }
-
-                Integer oii1 = o1.getObjectInstanceId();
-                Integer oii2 = o2.getObjectInstanceId();
-                if (oii1 == null && oii2 == null) {
-                    return 0;
-                }
-                if (oii1 == null) {
-                    return -1;
-                }
-                if (oii2 == null) {
-                    return 1;
-                }
-                int oiicomp = oii1.compareTo(oii2);
-                if (oiicomp != 0) {
-                    return oiicomp;
-                }
-
-                Integer or1 = o1.getResourceId();
-                Integer or2 = o2.getResourceId();
-                if (or1 == null && or2 == null) {
-                    return 0;
-                }
-                if (or1 == null) {
-                    return -1;
-                }
-                if (or2 == null) {
-                    return 1;
-                }
-                return or1.compareTo(or2);
+        return objectLinks;
+    }
 
-            }
-        });
+    /**
+     * Sorts object links by object id, object instance id and resource id, the order kept by the clients.
+     * <p>
+     * Sorting the links before they are shared between clients (e.g. when caching identical registration payloads)
+     * lets each client keep the shared array instead of a sorted copy.
+     * </p>
+     * 
+     * @param links the object links
+     * @return the given array if it is already sorted, a sorted copy otherwise
+     */
+    public static LinkObject[] sortObjectLinks(LinkObject[] links) {
+        if (links == null || isSorted(links)) {
+            return links;
+        }
+        LinkObject[] sorted = Arrays.copyOf(links, links.length);
+        Arrays.sort(sorted, LINK_ORDER);
+        return sorted;
+    }
 
-        return res;
+    /**
+     * Tells whether the client registered an object link for a given object.
+     * 
+     * @param objectId the object id
+     * @return <code>true</code> if the object is hosted by the client
+     */
+    public boolean hasObject(int objectId) {
+        return Arrays.binarySearch(objectIds, objectId) >= 0;
     }
 
     void setObjectLinks(LinkObject[] objectLinks) {
-        this.objectLinks = objectLinks;
+        if (objectLinks == this.objectLinks) {
+            // the links of an unchanged payload are shared, nothing to update
+            return;
+        }
+
+        // the links are sorted once here rather than on each access, an already sorted array is kept as is so that it
+        // can be shared with the other clients
+        LinkObject[] sorted = sortObjectLinks(objectLinks);
+        this.objectIds = objectIdsOf(sorted);
+        this.objectLinks = sorted;
 
         // extract the root objects path from the object links
         if (objectLinks != null) {
@@ -248,7 +319,34 @@ public class Client {
         }
     }
 
-    public synchronized long getLifeTimeInSec() {
+    private static boolean isSorted(LinkObject[] links) {
+        for (int i = 1; i < links.length; i++) {
+            if (LINK_ORDER.compare(links[i - 1], links[i]) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the distinct object ids of the sorted links, in ascending order
+     */
+    private static int[] objectIdsOf(LinkObject[] sortedLinks) {
+        if (sortedLinks == null) {
+            return NO_OBJECT_ID;
+        }
+        int[] ids = new int[sortedLinks.length];
+        int count = 0;
+        for (LinkObject link : sortedLinks) {
+            Integer id = link == null ? null : link.getObjectId();
+            if (id != null && (count == 0 || ids[count - 1] != id)) {
+                ids[count++] = id;
+            }
+        }
+        return count == 0 ? NO_OBJECT_ID : Arrays.copyOf(ids, count);
+    }
+
+    public long getLifeTimeInSec() {
         return lifeTimeInSec;
     }
 
@@ -300,32 +398,50 @@ public class Client {
         this.bindingMode = bindingMode;
     }
 
-    public synchronized Date getLastUpdate() {
-        return lastUpdate;
+    public Date getLastUpdate() {
+        return new Date(lastUpdate);
     }
 
-    synchronized void setLastUpdate(Date lastUpdate) {
+    void setLastUpdate(long lastUpdate) {
         this.lastUpdate = lastUpdate;
+        reschedule();
     }
 
-    public synchronized void markLastRequestTimedout() {
+    public void markLastRequestTimedout() {
         LastRequesttimedout = true;
+        reschedule();
     }
 
-    public synchronized boolean isMarkLastRequestTimedout() {
+    public boolean isMarkLastRequestTimedout() {
         return LastRequesttimedout;
     }
 
-    public synchronized boolean isAlive() {
-        return LastRequesttimedout ? false : lastUpdate.getTime() + lifeTimeInSec * 1000 > System.currentTimeMillis();
+    public boolean isAlive() {
+        return getExpirationTime() > System.currentTimeMillis();
+    }
+
+    /**
+     * @return the time (in milliseconds) after which this client is no longer considered alive
+     */
+    long getExpirationTime() {
+        return LastRequesttimedout ? 0 : lastUpdate + lifeTimeInSec * 1000;
+    }
+
+    private void reschedule() {
+        // does not lock: the schedule is only updated if this client now expires earlier than scheduled
+        ClientExpirationScheduler scheduler = expirationScheduler;
+        if (scheduler != null) {
+            scheduler.expirationChanged(this);
+        }
     }
 
     @Override
     public String toString() {
         return String
                 .format("Client [registrationDate=%s, address=%s, port=%s, registrationEndpoint=%s, lifeTimeInSec=%s, smsNumber=%s, lwM2mVersion=%s, bindingMode=%s, endpoint=%s, registrationId=%s, objectLinks=%s, lastUpdate=%s, failedLastRequest=%s]",
-                        registrationDate, address, port, registrationEndpointAddress, lifeTimeInSec, smsNumber,
-                        lwM2mVersion, bindingMode, endpoint, registrationId, Arrays.toString(objectLinks), lastUpdate,
+                        getRegistrationDate(), getAddress(), port, registrationEndpointAddress, lifeTimeInSec,
+                        smsNumber, lwM2mVersion, bindingMode, endpoint, registrationId, Arrays.toString(objectLinks),
+                        getLastUpdate(),
                         LastRequesttimedout);
     }
 
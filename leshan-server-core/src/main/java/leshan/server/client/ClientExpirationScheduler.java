@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import leshan.util.Validate;
+
+/**
+ * Keeps track of the registered clients ordered by the time their registration expires.
+ * <p>
+ * Finding the expired clients only requires to look at the head of the schedule, so its cost does not depend on the
+ * number of registered clients.
+ * </p>
+ * <p>
+ * The schedule is maintained lazily and without locking the clients. A registration update only writes the liveness
+ * fields of the client: when its entry reaches the head of the schedule, {@link #pollExpired(long, int)} checks the
+ * current expiration time and pushes the entry back if it was extended. The schedule is only updated right away when
+ * the expiration time gets earlier (shorter lifetime, request timed out), by swapping the entry of the client with a
+ * compare-and-set.
+ * </p>
+ */
+public class ClientExpirationScheduler {
+
+    private static final AtomicReferenceFieldUpdater<Client, Expiration> EXPIRATION = AtomicReferenceFieldUpdater
+            .newUpdater(Client.class, Expiration.class, "expiration");
+
+    private final ConcurrentSkipListSet<Expiration> schedule = new ConcurrentSkipListSet<>();
+
+    // to order the clients expiring at the same time
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Starts tracking the expiration of a newly registered client.
+     * 
+     * @param client the registered client
+     */
+    public void attach(Client client) {
+        Validate.notNull(client);
+
+        client.expirationScheduler = this;
+        Expiration expiration = newExpiration(client, client.getExpirationTime());
+        Expiration previous = EXPIRATION.getAndSet(client, expiration);
+        if (previous != null) {
+            schedule.remove(previous);
+        }
+        schedule.add(expiration);
+    }
+
+    /**
+     * Re-schedules the expiration of a client according to its last update and lifetime.
+     * <p>
+     * Nothing is done if the client is not attached to this schedule anymore (e.g. it was de-registered while it was
+     * being updated), so that a cancelled client is never added back.
+     * </p>
+     * 
+     * @param client the registered client
+     */
+    public void schedule(Client client) {
+        Validate.notNull(client);
+
+        if (client.expirationScheduler != this) {
+            return;
+        }
+        Expiration current;
+        Expiration next;
+        do {
+            current = client.expiration;
+            if (current == null) {
+                // cancelled
+                return;
+            }
+            next = newExpiration(client, client.getExpirationTime());
+        } while (!EXPIRATION.compareAndSet(client, current, next));
+        schedule.remove(current);
+        // a concurrent cancel may leave this entry in the schedule, it is dropped when polled
+        schedule.add(next);
+    }
+
+    /**
+     * Invoked when the liveness of a client changed. The schedule is only updated if the client now expires before
+     * its scheduled time, an extended registration is handled when its entry is polled.
+     * 
+     * @param client the registered client
+     */
+    void expirationChanged(Client client) {
+        Expiration current = client.expiration;
+        if (current != null && client.getExpirationTime() < current.time) {
+            schedule(client);
+        }
+    }
+
+    /**
+     * Removes a client from the schedule, typically because it was de-registered.
+     * 
+     * @param client the client
+     */
+    public void cancel(Client client) {
+        Validate.notNull(client);
+
+        if (client.expirationScheduler != this) {
+            return;
+        }
+        Expiration current = EXPIRATION.getAndSet(client, null);
+        if (current != null) {
+            schedule.remove(current);
+        }
+    }
+
+    /**
+     * @param client the client
+     * @return <code>true</code> if the expiration of the client is scheduled
+     */
+    public boolean isScheduled(Client client) {
+        Validate.notNull(client);
+
+        Expiration current = client.expiration;
+        return client.expirationScheduler == this && current != null && schedule.contains(current);
+    }
+
+    /**
+     * Removes from the schedule the clients which expired at the given time.
+     * <p>
+     * The clients whose registration was extended since they were scheduled are pushed back instead. The returned
+     * clients stay attached: they must be either re-scheduled or cancelled.
+     * </p>
+     * 
+     * @param now the current time in milliseconds
+     * @param max the maximum number of clients to return
+     * @return the expired clients, in expiration order
+     */
+    public List<Client> pollExpired(long now, int max) {
+        List<Client> expired = new ArrayList<>();
+        while (expired.size() < max) {
+            Iterator<Expiration> it = schedule.iterator();
+            Expiration first = it.hasNext() ? it.next() : null;
+            if (first == null || first.time > now) {
+                break;
+            }
+            if (!schedule.remove(first)) {
+                // polled concurrently
+                continue;
+            }
+            Client client = first.client;
+            if (client.expiration != first) {
+                // replaced or cancelled in the meantime
+                continue;
+            }
+            long expirationTime = client.getExpirationTime();
+            if (expirationTime > now) {
+                // updated since it was scheduled
+                Expiration next = newExpiration(client, expirationTime);
+                if (EXPIRATION.compareAndSet(client, first, next)) {
+                    schedule.add(next);
+                }
+            } else {
+                expired.add(client);
+            }
+        }
+        return expired;
+    }
+
+    private Expiration newExpiration(Client client, long time) {
+        return new Expiration(time, sequence.incrementAndGet(), client);
+    }
+
+    static class Expiration implements Comparable<Expiration> {
+        private final long time;
+        private final long sequence;
+        private final Client client;
+
+        Expiration(long time, long sequence, Client client) {
+            this.time = time;
+            this.sequence = sequence;
+            this.client = client;
+        }
+
+        @Override
+        public int compareTo(Expiration o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
@@ -29,6 +29,7 @@
  */
 package leshan.server.client;
 
+import java.net.InetSocketAddress;
 import java.util.Collection;
 
 /**
@@ -44,6 +45,14 @@ public interface ClientRegistry {
      */
     Client get(String endpoint);
 
+    /**
+     * Retrieves a registered client by network address.
+     * 
+     * @param address the source address and port of the client's most recent CoAP message
+     * @return the matching client or <code>null</code> if not found
+     */
+    Client getByAddress(InetSocketAddress address);
+
     /**
      * Returns an unmodifiable list of all registered clients.
      * 
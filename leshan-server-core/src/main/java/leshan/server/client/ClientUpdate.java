@@ -157,7 +157,7 @@ public class ClientUpdate {
 
         // this needs to be done in any case, even if no properties have changed, in order
         // to extend the client registration's time-to-live period ...
-        client.setLastUpdate(new Date());
+        client.setLastUpdate(System.currentTimeMillis());
     }
 
     @Override
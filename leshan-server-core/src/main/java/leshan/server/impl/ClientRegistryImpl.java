@@ -29,20 +29,24 @@
  */
 package leshan.server.impl;
 
+import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import leshan.server.client.Client;
+import leshan.server.client.ClientExpirationScheduler;
 import leshan.server.client.ClientRegistry;
 import leshan.server.client.ClientRegistryListener;
 import leshan.server.client.ClientUpdate;
+import leshan.server.metrics.Instrumentation;
+import leshan.server.metrics.NoOpInstrumentation;
 import leshan.util.Validate;
 
 import org.slf4j.Logger;
@@ -55,7 +59,55 @@ public class ClientRegistryImpl implements ClientRegistry {
 
     private static final Logger LOG = LoggerFactory.getLogger(ClientRegistryImpl.class);
 
-    private final Map<String /* end-point */, Client> clientsByEp = new ConcurrentHashMap<>();
+    private static final int LOCK_STRIPES = 64;
+
+    public static final int DEFAULT_CLEANUP_BATCH_SIZE = 1000;
+
+    private final ConcurrentMap<String /* end-point */, Client> clientsByEp = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String /* registration id */, Client> clientsByRegId = new ConcurrentHashMap<>();
+
+    // last writer wins: the address of a client is indexed when it registers or when its address changes, so
+    // end-points sharing an address replace each other in this index
+    private final ConcurrentMap<InetSocketAddress, Client> clientsByAddress = new ConcurrentHashMap<>();
+
+    // guard the writes to the maps, striped by end-point so that unrelated clients do not contend
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    // the registered clients ordered by expiration time
+    private final ClientExpirationScheduler expirations = new ClientExpirationScheduler();
+
+    // the maximum number of expired clients de-registered by each cleanup run
+    private final int cleanupBatchSize;
+
+    private final Instrumentation instrumentation;
+
+    public ClientRegistryImpl() {
+        this(DEFAULT_CLEANUP_BATCH_SIZE);
+    }
+
+    /**
+     * @param cleanupBatchSize the maximum number of expired clients to de-register every cleanup period (2 seconds),
+     *        the remaining ones are de-registered during the next runs
+     */
+    public ClientRegistryImpl(int cleanupBatchSize) {
+        this(cleanupBatchSize, NoOpInstrumentation.INSTANCE);
+    }
+
+    /**
+     * @param cleanupBatchSize the maximum number of expired clients to de-register every cleanup period (2 seconds),
+     *        the remaining ones are de-registered during the next runs
+     * @param instrumentation receives the registration events
+     */
+    public ClientRegistryImpl(int cleanupBatchSize, Instrumentation instrumentation) {
+        Validate.isTrue(cleanupBatchSize > 0, "cleanup batch size must be positive");
+        Validate.notNull(instrumentation);
+        this.cleanupBatchSize = cleanupBatchSize;
+        this.instrumentation = instrumentation;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
 
     private final List<ClientRegistryListener> listeners = new CopyOnWriteArrayList<>();
 
@@ -79,18 +131,44 @@ public class ClientRegistryImpl implements ClientRegistry {
         return clientsByEp.get(endpoint);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When several end-points share the same address, the last one registered or updated with this address is
+     * returned.
+     * </p>
+     */
+    @Override
+    public Client getByAddress(InetSocketAddress address) {
+        if (address == null) {
+            return null;
+        }
+        Client client = clientsByAddress.get(address);
+        // the index is written under the lock of another end-point than the one it may replace: ignore a stale entry
+        if (client == null || clientsByEp.get(client.getEndpoint()) != client || !address.equals(addressOf(client))) {
+            return null;
+        }
+        return client;
+    }
+
     @Override
     public Client registerClient(Client client) {
         Validate.notNull(client);
 
         LOG.debug("Registering new client: {}", client);
 
-        Client previous = clientsByEp.put(client.getEndpoint(), client);
+        Client previous;
+        synchronized (lockFor(client.getEndpoint())) {
+            previous = add(client);
+            clientRegistered(client);
+        }
         if (previous != null) {
+            instrumentation.clientUnregistered(false);
             for (ClientRegistryListener l : listeners) {
                 l.unregistered(previous);
             }
         }
+        instrumentation.clientRegistered();
         for (ClientRegistryListener l : listeners) {
             l.registered(client);
         }
@@ -107,7 +185,23 @@ public class ClientRegistryImpl implements ClientRegistry {
         if (client == null) {
             return null;
         } else {
-            clientUpdated.apply(client);
+            synchronized (lockFor(client.getEndpoint())) {
+                if (clientsByEp.get(client.getEndpoint()) != client) {
+                    // de-registered in the meantime
+                    return null;
+                }
+                InetSocketAddress previousAddress = addressOf(client);
+                clientUpdated.apply(client);
+
+                // the client address may change on update (e.g. NAT re-binding)
+                InetSocketAddress address = addressOf(client);
+                if (!address.equals(previousAddress)) {
+                    clientsByAddress.remove(previousAddress, client);
+                    clientsByAddress.put(address, client);
+                }
+                clientUpdated(client);
+            }
+            instrumentation.clientUpdated();
             for (ClientRegistryListener l : listeners) {
                 l.updated(client);
             }
@@ -121,38 +215,139 @@ public class ClientRegistryImpl implements ClientRegistry {
 
         LOG.debug("Deregistering client with registrationId: {}", registrationId);
 
-        Client toBeUnregistered = findByRegistrationId(registrationId);
+        Client toBeUnregistered = clientsByRegId.get(registrationId);
         if (toBeUnregistered == null) {
             return null;
         } else {
-            Client unregistered = clientsByEp.remove(toBeUnregistered.getEndpoint());
+            synchronized (lockFor(toBeUnregistered.getEndpoint())) {
+                // the client may have been replaced by a new registration in the meantime
+                if (!remove(toBeUnregistered)) {
+                    return null;
+                }
+                clientRemoved(toBeUnregistered);
+            }
+            instrumentation.clientUnregistered(false);
             for (ClientRegistryListener l : listeners) {
-                l.unregistered(unregistered);
+                l.unregistered(toBeUnregistered);
             }
-            LOG.debug("Deregistered client: {}", unregistered);
-            return unregistered;
+            LOG.debug("Deregistered client: {}", toBeUnregistered);
+            return toBeUnregistered;
+        }
+    }
+
+    /**
+     * Adds a client to the registry without notifying the listeners, typically to restore the registrations made
+     * before a server restart.
+     * 
+     * @param client the client to add
+     */
+    protected void restoreClient(Client client) {
+        Validate.notNull(client);
+
+        Client previous;
+        synchronized (lockFor(client.getEndpoint())) {
+            previous = add(client);
+        }
+        // keep the number of registered clients consistent
+        if (previous != null) {
+            instrumentation.clientUnregistered(false);
         }
+        instrumentation.clientRegistered();
+    }
+
+    /**
+     * Invoked when a client has been registered, while the lock of its end-point is held.
+     * <p>
+     * The events of a given end-point are never reported concurrently. This default implementation does nothing.
+     * </p>
+     * 
+     * @param client the registered client
+     */
+    protected void clientRegistered(Client client) {
+    }
+
+    /**
+     * Invoked when a client registration has been updated, while the lock of its end-point is held.
+     * 
+     * @param client the client after the update
+     */
+    protected void clientUpdated(Client client) {
+    }
+
+    /**
+     * Invoked when a client has been de-registered or has expired, while the lock of its end-point is held.
+     * 
+     * @param client the removed client
+     */
+    protected void clientRemoved(Client client) {
     }
 
     private Client findByRegistrationId(String id) {
-        Client result = null;
-        if (id != null) {
-            for (Client client : clientsByEp.values()) {
-                if (id.equals(client.getRegistrationId())) {
-                    result = client;
-                    break;
-                }
-            }
+        return id == null ? null : clientsByRegId.get(id);
+    }
+
+    /**
+     * Adds a client to all the indexes, replacing any client with the same end-point. The end-point lock must be held.
+     * 
+     * @return the replaced client or <code>null</code>
+     */
+    private Client add(Client client) {
+        Client previous = clientsByEp.get(client.getEndpoint());
+        if (previous != null) {
+            remove(previous);
+        }
+        clientsByEp.put(client.getEndpoint(), client);
+        if (client.getRegistrationId() != null) {
+            clientsByRegId.put(client.getRegistrationId(), client);
+            expirations.attach(client);
+        }
+        clientsByAddress.put(addressOf(client), client);
+        return previous;
+    }
+
+    /**
+     * Removes a client from all the indexes. The end-point lock must be held.
+     * <p>
+     * The indexes are compared by identity: {@link Client#equals(Object)} only compares the end-points, so a stale
+     * client must not remove the registration which replaced it.
+     * </p>
+     * 
+     * @return <code>false</code> if the client was not registered anymore
+     */
+    boolean remove(Client client) {
+        if (!removeIfSame(clientsByEp, client.getEndpoint(), client)) {
+            return false;
         }
-        return result;
+        if (client.getRegistrationId() != null) {
+            removeIfSame(clientsByRegId, client.getRegistrationId(), client);
+        }
+        removeIfSame(clientsByAddress, addressOf(client), client);
+        expirations.cancel(client);
+        return true;
+    }
+
+    private static <K> boolean removeIfSame(ConcurrentMap<K, Client> index, K key, Client client) {
+        // the address index is shared between end-points: only remove the entry if it was not replaced meanwhile
+        return index.get(key) == client && index.remove(key, client);
+    }
+
+    boolean isScheduled(Client client) {
+        return expirations.isScheduled(client);
+    }
+
+    private Object lockFor(String endpoint) {
+        return locks[(endpoint.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private static InetSocketAddress addressOf(Client client) {
+        return new InetSocketAddress(client.getAddress(), client.getPort());
     }
 
     /**
      * start the registration manager, will start regular cleanup of dead registrations.
      */
     public void start() {
-        // every 2 seconds clean the registration list
-        // TODO re-consider clean-up interval: wouldn't 5 minutes do as well?
+        // every 2 seconds de-register the expired clients
         schedExecutor.scheduleAtFixedRate(new Cleaner(), 2, 2, TimeUnit.SECONDS);
     }
 
@@ -170,12 +365,31 @@ public class ClientRegistryImpl implements ClientRegistry {
 
         @Override
         public void run() {
-            for (Client client : clientsByEp.values()) {
-                synchronized (client) {
+            // only the expired clients are visited
+            for (Client client : expirations.pollExpired(System.currentTimeMillis(), cleanupBatchSize)) {
+                boolean expired = false;
+                synchronized (lockFor(client.getEndpoint())) {
+                    if (clientsByEp.get(client.getEndpoint()) != client) {
+                        // de-registered or replaced by a new registration in the meantime
+                        continue;
+                    }
                     if (!client.isAlive()) {
                         // force de-registration
-                        deregisterClient(client.getRegistrationId());
+                        expired = remove(client);
+                        if (expired) {
+                            clientRemoved(client);
+                        }
+                    } else {
+                        // updated in the meantime
+                        expirations.schedule(client);
+                    }
+                }
+                if (expired) {
+                    instrumentation.clientUnregistered(true);
+                    for (ClientRegistryListener l : listeners) {
+                        l.unregistered(client);
                     }
+                    LOG.debug("Expired client: {}", client);
                 }
             }
         }
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import leshan.core.node.LwM2mNode;
+import leshan.server.client.Client;
+import leshan.server.client.ClientRegistryListener;
+import leshan.server.observation.Observation;
+import leshan.server.observation.ObservationRegistryListener;
+import leshan.util.Validate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers registry and observation events to listeners on a pool of dispatching threads instead of the thread which
+ * handled the CoAP message, so that a slow listener does not stall the server.
+ * <p>
+ * Events are dispatched to a thread chosen by client end-point: the events of a given client are delivered in order,
+ * while the events of different clients are delivered concurrently. Each thread has a bounded queue, the
+ * {@link OverflowPolicy} defines what happens when it is full.
+ * </p>
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * EventDispatcher dispatcher = new EventDispatcher(4, 10000, OverflowPolicy.BLOCK);
+ * server.getClientRegistry().addListener(dispatcher.async(myClientRegistryListener));
+ * server.getObservationRegistry().addListener(dispatcher.async(myObservationRegistryListener));
+ * </pre>
+ * 
+ * </p>
+ */
+public class EventDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventDispatcher.class);
+
+    /**
+     * What to do with a new event when the queue of the dispatching thread is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait for room in the queue: the notifying thread is slowed down, no event is lost */
+        BLOCK,
+        /** Drop the new event */
+        DISCARD_NEWEST,
+        /** Drop the oldest queued event to make room for the new one */
+        DISCARD_OLDEST
+    }
+
+    private final ThreadPoolExecutor[] stripes;
+
+    private final AtomicLong dispatched = new AtomicLong();
+
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * @param nbThreads the number of dispatching threads
+     * @param queueCapacity the maximum number of pending events per dispatching thread
+     * @param overflowPolicy the policy to apply when a queue is full
+     */
+    public EventDispatcher(int nbThreads, int queueCapacity, OverflowPolicy overflowPolicy) {
+        Validate.isTrue(nbThreads > 0, "number of threads must be positive");
+        Validate.isTrue(queueCapacity > 0, "queue capacity must be positive");
+        Validate.notNull(overflowPolicy);
+
+        RejectedExecutionHandler handler = new OverflowHandler(overflowPolicy);
+        stripes = new ThreadPoolExecutor[nbThreads];
+        for (int i = 0; i < nbThreads; i++) {
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                    queueCapacity), new DispatcherThreadFactory(i), handler);
+        }
+    }
+
+    /**
+     * Wraps a listener so that its events are delivered asynchronously.
+     * 
+     * @param listener the listener to wrap
+     * @return the listener to add to the {@link leshan.server.client.ClientRegistry} (and to remove from it)
+     */
+    public ClientRegistryListener async(final ClientRegistryListener listener) {
+        Validate.notNull(listener);
+
+        return new ClientRegistryListener() {
+
+            @Override
+            public void registered(final Client client) {
+                dispatch(client.getEndpoint(), new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.registered(client);
+                    }
+                });
+            }
+
+            @Override
+            public void updated(final Client clientUpdated) {
+                dispatch(clientUpdated.getEndpoint(), new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.updated(clientUpdated);
+                    }
+                });
+            }
+
+            @Override
+            public void unregistered(final Client client) {
+                dispatch(client.getEndpoint(), new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.unregistered(client);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Wraps a listener so that its events are delivered asynchronously.
+     * 
+     * @param listener the listener to wrap
+     * @return the listener to add to the {@link leshan.server.observation.ObservationRegistry} (and to remove from it)
+     */
+    public ObservationRegistryListener async(final ObservationRegistryListener listener) {
+        Validate.notNull(listener);
+
+        return new ObservationRegistryListener() {
+
+            @Override
+            public void newObservation(final Observation observation) {
+                dispatch(observation.getClient().getEndpoint(), new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.newObservation(observation);
+                    }
+                });
+            }
+
+            @Override
+            public void cancelled(final Observation observation) {
+                dispatch(observation.getClient().getEndpoint(), new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.cancelled(observation);
+                    }
+                });
+            }
+
+            @Override
+            public void newValue(final Observation observation, final LwM2mNode value) {
+                dispatch(observation.getClient().getEndpoint(), new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.newValue(observation, value);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Queues an event, the events queued for the same end-point are delivered in order.
+     * 
+     * @param endpoint the end-point of the client the event is about
+     * @param event the event delivery
+     */
+    public void dispatch(String endpoint, final Runnable event) {
+        stripes[(endpoint.hashCode() & 0x7fffffff) % stripes.length].execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("Listener failed to handle event", e);
+                } finally {
+                    dispatched.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            size += stripe.getQueue().size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of events waiting in the most loaded queue
+     */
+    public int getMaxQueueSize() {
+        int max = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            max = Math.max(max, stripe.getQueue().size());
+        }
+        return max;
+    }
+
+    /**
+     * @return the number of events delivered since the dispatcher creation
+     */
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    /**
+     * @return the number of events dropped because of a full queue
+     */
+    public long getDiscardedCount() {
+        return discarded.get();
+    }
+
+    /**
+     * Stops the dispatching threads, the pending events are dropped.
+     */
+    public void stop() throws InterruptedException {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdownNow();
+        }
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private class OverflowHandler implements RejectedExecutionHandler {
+
+        private final OverflowPolicy policy;
+
+        OverflowHandler(OverflowPolicy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                discarded.incrementAndGet();
+                return;
+            }
+            switch (policy) {
+            case BLOCK:
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    discarded.incrementAndGet();
+                }
+                break;
+            case DISCARD_OLDEST:
+                if (executor.getQueue().poll() != null) {
+                    discarded.incrementAndGet();
+                }
+                executor.execute(r);
+                break;
+            default:
+                discarded.incrementAndGet();
+            }
+        }
+    }
+
+    private static class DispatcherThreadFactory implements ThreadFactory {
+
+        private final int index;
+
+        DispatcherThreadFactory(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "EventDispatcher#" + index);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
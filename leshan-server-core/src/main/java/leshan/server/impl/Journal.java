@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The journal and snapshot files of a persistent registry.
+ * <p>
+ * Each change of the registry is appended as a record to the current journal file. Compacting switches to a new
+ * journal and then writes a snapshot of the whole registry, which replaces the former journal files. On recovery, the
+ * journals written since the last snapshot are replayed over it: as the snapshot may already contain some of their
+ * changes, replaying a record twice must be harmless.
+ * </p>
+ */
+class Journal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+    /**
+     * Writes a record to the journal.
+     */
+    interface Record {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes the registry content to a snapshot.
+     */
+    interface Snapshot {
+        /**
+         * Called once the changes go to the journal of the given sequence: they will be replayed over the snapshot.
+         */
+        void write(DataOutputStream out, long sequence) throws IOException;
+    }
+
+    /**
+     * Restores the registry content from the snapshot and the journal records.
+     */
+    interface Recovery {
+        /**
+         * @return the sequence of the first journal to replay over the snapshot
+         */
+        long readSnapshot(DataInputStream in) throws IOException;
+
+        void replay(byte type, DataInputStream in) throws IOException;
+    }
+
+    // used in the log messages
+    private final String name;
+
+    private final File directory;
+
+    private final File snapshotFile;
+
+    private final String journalPrefix;
+
+    private final int compactionThreshold;
+
+    private final Snapshot snapshot;
+
+    private final Executor compactionExecutor;
+
+    // guards the journal stream
+    private final Object journalLock = new Object();
+
+    // only one snapshot is written at a time
+    private final Object compactionLock = new Object();
+
+    private FileOutputStream journalFile;
+
+    private DataOutputStream journal;
+
+    private long journalSequence;
+
+    private int journalRecords;
+
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+    /**
+     * @param name the registry name used in the log messages
+     * @param snapshotFile the snapshot file, the journal files are stored next to it
+     * @param journalPrefix the name of the journal files, followed by their sequence
+     * @param compactionThreshold the number of journal records triggering a new snapshot
+     * @param snapshot writes the snapshot content
+     * @param compactionExecutor runs the compactions triggered by the threshold
+     */
+    Journal(String name, File snapshotFile, String journalPrefix, int compactionThreshold, Snapshot snapshot,
+            Executor compactionExecutor) {
+        this.name = name;
+        this.snapshotFile = snapshotFile;
+        File parent = snapshotFile.getAbsoluteFile().getParentFile();
+        this.directory = parent == null ? new File(".") : parent;
+        this.journalPrefix = journalPrefix;
+        this.compactionThreshold = compactionThreshold;
+        this.snapshot = snapshot;
+        this.compactionExecutor = compactionExecutor;
+
+        // create parents if needed
+        directory.mkdirs();
+    }
+
+    /**
+     * Appends a record to the journal.
+     *
+     * @throws IOException if the record could not be written
+     */
+    void append(byte type, Record record) throws IOException {
+        synchronized (journalLock) {
+            if (journal != null) {
+                journal.writeByte(type);
+                record.write(journal);
+                recordAdded();
+            }
+        }
+    }
+
+    private void recordAdded() {
+        journalRecords++;
+        if (journalRecords >= compactionThreshold && compacting.compareAndSet(false, true)) {
+            compactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Flushes the journal to the disk.
+     */
+    void sync() {
+        synchronized (journalLock) {
+            try {
+                if (journal != null) {
+                    journal.flush();
+                    journalFile.getFD().sync();
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not sync " + name + " journal", e);
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes the journal: the following records are dropped.
+     */
+    void close() {
+        synchronized (journalLock) {
+            closeJournal();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the registry and deletes the journal files it makes useless.
+     */
+    void compact() {
+        synchronized (compactionLock) {
+            writeSnapshot();
+        }
+    }
+
+    private void writeSnapshot() {
+        long sequence;
+        synchronized (journalLock) {
+            // the changes from now on go to a new journal which will be replayed over the snapshot
+            try {
+                closeJournal();
+                sequence = journalSequence + 1;
+                openJournal(sequence);
+            } catch (IOException e) {
+                LOG.warn("Could not start a new " + name + " journal", e);
+                return;
+            }
+        }
+
+        File tmp = new File(directory, snapshotFile.getName() + ".tmp");
+        try {
+            try (FileOutputStream file = new FileOutputStream(tmp);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                snapshot.write(out, sequence);
+                out.flush();
+                file.getFD().sync();
+            }
+            if (snapshotFile.exists() && !snapshotFile.delete() || !tmp.renameTo(snapshotFile)) {
+                throw new IOException("Could not replace " + snapshotFile);
+            }
+            for (File file : journalFiles()) {
+                if (journalSequence(file) < sequence) {
+                    file.delete();
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not write " + name + " snapshot", e);
+        }
+    }
+
+    // must hold the journal lock
+    private void openJournal(long sequence) throws IOException {
+        journalFile = new FileOutputStream(new File(directory, journalPrefix + sequence), true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+        journalSequence = sequence;
+        journalRecords = 0;
+    }
+
+    // must hold the journal lock
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.flush();
+                journalFile.getFD().sync();
+                journal.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close " + name + " journal", e);
+            }
+            journal = null;
+            journalFile = null;
+        }
+    }
+
+    // ///////// Recovery
+
+    /**
+     * Reads the last snapshot and replays the journals written after it.
+     * <p>
+     * No record is journaled until the next compaction, which should follow the restoration of the registry content:
+     * it also drops any truncated record at the end of the journal.
+     * </p>
+     */
+    void recover(Recovery recovery) {
+        long sequence = 0;
+        if (snapshotFile.exists() && snapshotFile.length() > 0) {
+            // buffered, so that the snapshot format can be sniffed with mark/reset
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+                sequence = recovery.readSnapshot(in);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not load " + name + " snapshot", e);
+            }
+        }
+
+        long lastSequence = sequence;
+        for (File file : journalFiles()) {
+            long fileSequence = journalSequence(file);
+            if (fileSequence >= sequence) {
+                replay(file, recovery);
+                lastSequence = Math.max(lastSequence, fileSequence);
+            }
+        }
+
+        synchronized (journalLock) {
+            journalSequence = lastSequence;
+        }
+    }
+
+    private void replay(File file, Recovery recovery) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                recovery.replay(type, in);
+            }
+        } catch (EOFException e) {
+            LOG.warn("Truncated record at the end of {} journal {}", name, file);
+        } catch (IOException e) {
+            LOG.warn("Could not replay " + name + " journal " + file, e);
+        }
+    }
+
+    private List<File> journalFiles() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(journalPrefix);
+            }
+        });
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        // replayed in sequence order
+        List<File> result = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(result, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long s1 = journalSequence(f1);
+                long s2 = journalSequence(f2);
+                return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    private long journalSequence(File file) {
+        try {
+            return Long.parseLong(file.getName().substring(journalPrefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
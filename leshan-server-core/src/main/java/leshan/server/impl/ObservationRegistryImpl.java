@@ -35,51 +35,85 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import leshan.core.node.LwM2mNode;
 import leshan.core.node.LwM2mPath;
 import leshan.server.client.Client;
+import leshan.server.metrics.Instrumentation;
+import leshan.server.metrics.NoOpInstrumentation;
 import leshan.server.observation.Observation;
 import leshan.server.observation.ObservationListener;
 import leshan.server.observation.ObservationRegistry;
 import leshan.server.observation.ObservationRegistryListener;
+import leshan.util.Validate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A <code>Map</code> based registry for keeping track of this server's observed resources on LWM2M Clients.
- * 
+ * <p>
+ * Writes are guarded by locks striped by registration id, so that observations of different clients can be added or
+ * canceled concurrently.
+ * </p>
  */
 public class ObservationRegistryImpl implements ObservationRegistry, ObservationListener {
 
+    private static final int LOCK_STRIPES = 64;
+
     private final Logger LOG = LoggerFactory.getLogger(ObservationRegistryImpl.class);
-    private final Map<String /* registration id */, Map<LwM2mPath /* resource path */, Observation>> observationsByClientAndResource;
+    private final ConcurrentMap<String /* registration id */, Map<LwM2mPath /* resource path */, Observation>> observationsByClientAndResource;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
 
     private final List<ObservationRegistryListener> listeners = new CopyOnWriteArrayList<>();
 
+    private final Instrumentation instrumentation;
+
+    // the number of observations in the map, updated under the locks
+    private final AtomicInteger observationCount = new AtomicInteger();
+
     public ObservationRegistryImpl() {
+        this(NoOpInstrumentation.INSTANCE);
+    }
+
+    /**
+     * @param instrumentation receives the number of active observations and the notifications
+     */
+    public ObservationRegistryImpl(Instrumentation instrumentation) {
+        Validate.notNull(instrumentation);
+        this.instrumentation = instrumentation;
         observationsByClientAndResource = new ConcurrentHashMap<String, Map<LwM2mPath, Observation>>();
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
     }
 
     @Override
-    public synchronized void addObservation(Observation observation) {
+    public void addObservation(Observation observation) {
 
         if (observation != null) {
             String registrationID = observation.getClient().getRegistrationId();
 
-            Map<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(registrationID);
-            if (clientObservations == null) {
-                clientObservations = new ConcurrentHashMap<LwM2mPath, Observation>();
-                observationsByClientAndResource.put(registrationID, clientObservations);
+            Observation oldObservation;
+            int count;
+            synchronized (lockFor(registrationID)) {
+                Map<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(registrationID);
+                if (clientObservations == null) {
+                    clientObservations = new ConcurrentHashMap<LwM2mPath, Observation>();
+                    observationsByClientAndResource.put(registrationID, clientObservations);
+                }
+                oldObservation = clientObservations.put(observation.getPath(), observation);
+                count = oldObservation == null ? observationCount.incrementAndGet() : observationCount.get();
             }
+            instrumentation.observationsChanged(count);
 
-            Observation oldObservation = clientObservations.get(observation.getPath());
-            if (oldObservation != null) {
+            if (oldObservation != null && oldObservation != observation) {
                 oldObservation.cancel();
             }
-            clientObservations.put(observation.getPath(), observation);
             for (ObservationRegistryListener listener : listeners) {
                 listener.newObservation(observation);
             }
@@ -88,47 +122,57 @@ public class ObservationRegistryImpl implements ObservationRegistry, Observation
     }
 
     @Override
-    public synchronized int cancelObservations(Client client) {
+    public int cancelObservations(Client client) {
         int count = 0;
         if (client != null) {
-            Map<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(client
-                    .getRegistrationId());
+            Map<LwM2mPath, Observation> clientObservations;
+            synchronized (lockFor(client.getRegistrationId())) {
+                clientObservations = observationsByClientAndResource.remove(client.getRegistrationId());
+                if (clientObservations != null) {
+                    count = clientObservations.size();
+                    observationCount.addAndGet(-count);
+                }
+            }
 
             if (clientObservations != null) {
-                count = clientObservations.size();
+                instrumentation.observationsChanged(observationCount.get());
                 if (LOG.isTraceEnabled()) {
                     LOG.trace("Canceling {} observations of client {}", count, client.getEndpoint());
                 }
                 for (Observation obs : clientObservations.values()) {
                     obs.cancel();
                 }
-                clientObservations.clear();
-                observationsByClientAndResource.remove(client.getEndpoint());
             }
         }
         return count;
     }
 
     @Override
-    public synchronized void cancelObservation(Client client, String resourcepath) {
+    public void cancelObservation(Client client, String resourcepath) {
         if (client != null && resourcepath != null) {
-            Map<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(client
-                    .getRegistrationId());
-
-            if (clientObservations != null) {
-                LwM2mPath lwM2mResourcePath = new LwM2mPath(resourcepath);
-                Observation observation = clientObservations.get(lwM2mResourcePath);
-                if (observation != null) {
-                    if (LOG.isTraceEnabled()) {
-                        LOG.trace("Canceling {} observation of client {}", resourcepath, client.getEndpoint());
+            LwM2mPath lwM2mResourcePath = new LwM2mPath(resourcepath);
+            Observation observation = null;
+            synchronized (lockFor(client.getRegistrationId())) {
+                Map<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(client
+                        .getRegistrationId());
+                if (clientObservations != null) {
+                    observation = clientObservations.remove(lwM2mResourcePath);
+                    if (observation != null) {
+                        observationCount.decrementAndGet();
                     }
-                    observation.cancel();
-                    clientObservations.remove(lwM2mResourcePath);
                     if (clientObservations.isEmpty()) {
-                        observationsByClientAndResource.remove(client.getEndpoint());
+                        observationsByClientAndResource.remove(client.getRegistrationId());
                     }
                 }
             }
+
+            if (observation != null) {
+                instrumentation.observationsChanged(observationCount.get());
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("Canceling {} observation of client {}", resourcepath, client.getEndpoint());
+                }
+                observation.cancel();
+            }
         }
     }
 
@@ -153,6 +197,24 @@ public class ObservationRegistryImpl implements ObservationRegistry, Observation
 
     @Override
     public void cancelled(Observation observation) {
+        // the observation may have been canceled by the client itself
+        String registrationID = observation.getClient().getRegistrationId();
+        boolean removed = false;
+        synchronized (lockFor(registrationID)) {
+            Map<LwM2mPath, Observation> clientObservations = observationsByClientAndResource.get(registrationID);
+            if (clientObservations != null && clientObservations.get(observation.getPath()) == observation) {
+                clientObservations.remove(observation.getPath());
+                observationCount.decrementAndGet();
+                removed = true;
+                if (clientObservations.isEmpty()) {
+                    observationsByClientAndResource.remove(registrationID);
+                }
+            }
+        }
+        if (removed) {
+            instrumentation.observationsChanged(observationCount.get());
+        }
+
         for (ObservationRegistryListener listener : listeners) {
             listener.cancelled(observation);
         }
@@ -160,8 +222,20 @@ public class ObservationRegistryImpl implements ObservationRegistry, Observation
 
     @Override
     public void newValue(Observation observation, LwM2mNode value) {
+        instrumentation.notificationReceived();
         for (ObservationRegistryListener listener : listeners) {
             listener.newValue(observation, value);
         }
     }
+
+    /**
+     * @return the number of clients having at least one active observation
+     */
+    int getObservedClientCount() {
+        return observationsByClientAndResource.size();
+    }
+
+    private Object lockFor(String registrationId) {
+        return locks[(registrationId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
 }
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import leshan.LinkObject;
+import leshan.server.client.BindingMode;
+import leshan.server.client.Client;
+import leshan.util.Validate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client registry which survives server restarts.
+ * <p>
+ * Every registration, update and de-registration is appended to a journal file. The journal is periodically compacted
+ * into a snapshot of all the registered clients. When the registry is created, the clients are restored from the last
+ * snapshot and the journal written after it, without notifying any listener.
+ * </p>
+ * <p>
+ * Journal records always contain the whole client state, so replaying a record twice is harmless: a snapshot can be
+ * taken while clients keep registering.
+ * </p>
+ */
+public class PersistentClientRegistryImpl extends ClientRegistryImpl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PersistentClientRegistryImpl.class);
+
+    private static final String SNAPSHOT_FILE = "clients.snapshot";
+
+    private static final String JOURNAL_PREFIX = "clients.journal.";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte REGISTER = 1;
+
+    private static final byte UPDATE = 2;
+
+    private static final byte DEREGISTER = 3;
+
+    private static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 100000;
+
+    // default location for persistence
+    private static final String DEFAULT_DIRECTORY = "data/clients";
+
+    private final long syncIntervalMillis;
+
+    private final ScheduledExecutorService persistenceExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final Journal journal;
+
+    public PersistentClientRegistryImpl() {
+        this(DEFAULT_DIRECTORY);
+    }
+
+    /**
+     * @param directory the directory where the journal and snapshot files are stored
+     */
+    public PersistentClientRegistryImpl(String directory) {
+        this(directory, DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param directory the directory where the journal and snapshot files are stored
+     * @param syncIntervalMillis the period between two flushes of the journal to the disk: the registration events of
+     *        the last period may be lost on a crash
+     * @param compactionThreshold the number of journal records triggering a new snapshot
+     */
+    public PersistentClientRegistryImpl(String directory, long syncIntervalMillis, int compactionThreshold) {
+        Validate.notEmpty(directory);
+        Validate.isTrue(syncIntervalMillis > 0, "sync interval must be positive");
+        Validate.isTrue(compactionThreshold > 0, "compaction threshold must be positive");
+
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.journal = new Journal("client", new File(directory, SNAPSHOT_FILE), JOURNAL_PREFIX, compactionThreshold,
+                new Journal.Snapshot() {
+                    @Override
+                    public void write(DataOutputStream out, long sequence) throws IOException {
+                        writeSnapshot(out, sequence);
+                    }
+                }, persistenceExecutor);
+
+        recover();
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        persistenceExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        super.stop();
+        persistenceExecutor.shutdownNow();
+        persistenceExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        journal.close();
+    }
+
+    @Override
+    protected void clientRegistered(Client client) {
+        appendClient(REGISTER, client);
+    }
+
+    @Override
+    protected void clientUpdated(Client client) {
+        appendClient(UPDATE, client);
+    }
+
+    @Override
+    protected void clientRemoved(final Client client) {
+        try {
+            journal.append(DEREGISTER, new Journal.Record() {
+                @Override
+                public void write(DataOutputStream out) throws IOException {
+                    out.writeUTF(client.getRegistrationId());
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not journal de-registration of client " + client.getEndpoint(), e);
+        }
+    }
+
+    private void appendClient(byte type, final Client client) {
+        if (client.getRegistrationId() == null) {
+            // can neither be updated nor de-registered
+            return;
+        }
+        try {
+            journal.append(type, new Journal.Record() {
+                @Override
+                public void write(DataOutputStream out) throws IOException {
+                    writeClient(out, client);
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not journal registration of client " + client.getEndpoint(), e);
+        }
+    }
+
+    /**
+     * Flushes the journal to the disk.
+     */
+    public void sync() {
+        journal.sync();
+    }
+
+    /**
+     * Writes a snapshot of the registered clients and deletes the journal files it makes useless.
+     */
+    public void compact() {
+        journal.compact();
+    }
+
+    private void writeSnapshot(DataOutputStream out, long sequence) throws IOException {
+        List<Client> clients = new ArrayList<>(allClients());
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(sequence);
+        out.writeInt(clients.size());
+        for (Client client : clients) {
+            writeClient(out, client);
+        }
+    }
+
+    // ///////// Recovery
+
+    private void recover() {
+        long start = System.currentTimeMillis();
+
+        // registration id -> client, in registration order
+        final Map<String, Client> clients = new LinkedHashMap<>();
+        final Map<String /* end-point */, String /* registration id */> regIdByEp = new HashMap<>();
+
+        journal.recover(new Journal.Recovery() {
+            @Override
+            public long readSnapshot(DataInputStream in) throws IOException {
+                int version = in.readInt();
+                if (version != FORMAT_VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version);
+                }
+                long sequence = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Client client = readClient(in);
+                    clients.put(client.getRegistrationId(), client);
+                    regIdByEp.put(client.getEndpoint(), client.getRegistrationId());
+                }
+                return sequence;
+            }
+
+            @Override
+            public void replay(byte type, DataInputStream in) throws IOException {
+                switch (type) {
+                case REGISTER:
+                    Client registered = readClient(in);
+                    String previous = regIdByEp.put(registered.getEndpoint(), registered.getRegistrationId());
+                    if (previous != null) {
+                        clients.remove(previous);
+                    }
+                    clients.put(registered.getRegistrationId(), registered);
+                    break;
+                case UPDATE:
+                    Client updated = readClient(in);
+                    // ignore the update of an already de-registered client
+                    if (clients.containsKey(updated.getRegistrationId())) {
+                        clients.put(updated.getRegistrationId(), updated);
+                    }
+                    break;
+                case DEREGISTER:
+                    Client removed = clients.remove(in.readUTF());
+                    if (removed != null) {
+                        regIdByEp.remove(removed.getEndpoint());
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown journal record type " + type);
+                }
+            }
+        });
+
+        for (Client client : clients.values()) {
+            restoreClient(client);
+        }
+
+        // start over from a fresh snapshot, this also drops any truncated record at the end of the journal
+        compact();
+
+        if (!clients.isEmpty()) {
+            LOG.info("{} clients restored in {}ms", clients.size(), System.currentTimeMillis() - start);
+        }
+    }
+
+    // ///////// Client encoding
+
+    private static void writeClient(DataOutputStream out, Client client) throws IOException {
+        out.writeUTF(client.getRegistrationId());
+        out.writeUTF(client.getEndpoint());
+        writeBytes(out, client.getAddress().getAddress());
+        out.writeInt(client.getPort());
+        out.writeUTF(client.getLwM2mVersion());
+        out.writeLong(client.getLifeTimeInSec());
+        writeNullableString(out, client.getSmsNumber());
+        out.writeUTF(client.getBindingMode().name());
+        out.writeLong(client.getRegistrationDate().getTime());
+        out.writeLong(client.getLastUpdate().getTime());
+
+        InetSocketAddress registrationEndpoint = client.getRegistrationEndpointAddress();
+        if (registrationEndpoint.isUnresolved()) {
+            out.writeBoolean(false);
+            out.writeUTF(registrationEndpoint.getHostString());
+        } else {
+            out.writeBoolean(true);
+            writeBytes(out, registrationEndpoint.getAddress().getAddress());
+        }
+        out.writeInt(registrationEndpoint.getPort());
+
+        LinkObject[] links = client.getObjectLinks();
+        if (links == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(links.length);
+            for (LinkObject link : links) {
+                writeLink(out, link);
+            }
+        }
+    }
+
+    private static Client readClient(DataInputStream in) throws IOException {
+        String registrationId = in.readUTF();
+        String endpoint = in.readUTF();
+        InetAddress address = InetAddress.getByAddress(readBytes(in));
+        int port = in.readInt();
+        String lwM2mVersion = in.readUTF();
+        long lifetime = in.readLong();
+        String smsNumber = readNullableString(in);
+        BindingMode binding = BindingMode.valueOf(in.readUTF());
+        Date registrationDate = new Date(in.readLong());
+        Date lastUpdate = new Date(in.readLong());
+
+        InetSocketAddress registrationEndpoint;
+        if (in.readBoolean()) {
+            InetAddress endpointAddress = InetAddress.getByAddress(readBytes(in));
+            registrationEndpoint = new InetSocketAddress(endpointAddress, in.readInt());
+        } else {
+            String host = in.readUTF();
+            registrationEndpoint = InetSocketAddress.createUnresolved(host, in.readInt());
+        }
+
+        LinkObject[] links = null;
+        int nbLinks = in.readInt();
+        if (nbLinks >= 0) {
+            links = new LinkObject[nbLinks];
+            for (int i = 0; i < nbLinks; i++) {
+                links[i] = readLink(in);
+            }
+        }
+
+        return new Client(registrationId, endpoint, address, port, lwM2mVersion, lifetime, smsNumber, binding, links,
+                registrationDate, lastUpdate, registrationEndpoint);
+    }
+
+    private static void writeLink(DataOutputStream out, LinkObject link) throws IOException {
+        if (link == null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        out.writeUTF(link.getUrl());
+        out.writeInt(link.getAttributes().size());
+        for (Map.Entry<String, Object> attribute : link.getAttributes().entrySet()) {
+            out.writeUTF(attribute.getKey());
+            Object value = attribute.getValue();
+            if (value == null) {
+                out.writeByte(0);
+            } else if (value instanceof Integer) {
+                out.writeByte(1);
+                out.writeInt((Integer) value);
+            } else {
+                out.writeByte(2);
+                out.writeUTF(value.toString());
+            }
+        }
+    }
+
+    private static LinkObject readLink(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        String url = in.readUTF();
+        int nbAttributes = in.readInt();
+        Map<String, Object> attributes = new HashMap<>();
+        for (int i = 0; i < nbAttributes; i++) {
+            String key = in.readUTF();
+            switch (in.readByte()) {
+            case 0:
+                attributes.put(key, null);
+                break;
+            case 1:
+                attributes.put(key, in.readInt());
+                break;
+            default:
+                attributes.put(key, in.readUTF());
+            }
+        }
+        return new LinkObject(url, attributes);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedByte()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -29,15 +29,24 @@
  */
 package leshan.server.impl;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import leshan.server.security.NonUniqueSecurityInfoException;
 import leshan.server.security.SecurityInfo;
@@ -50,26 +59,49 @@ import org.slf4j.LoggerFactory;
 /**
  * An in-memory security store.
  * <p>
- * This implementation serializes the registry content into a file to be able to re-load the security infos when the
- * server is restarted.
+ * This implementation persists the registry content to be able to re-load the security infos when the server is
+ * restarted. Each change is appended to a journal, flushed to the disk in batches, and the journal is periodically
+ * compacted into a snapshot of the whole registry.
  * </p>
  */
 public class SecurityRegistryImpl implements SecurityRegistry {
 
     private static final Logger LOG = LoggerFactory.getLogger(SecurityRegistryImpl.class);
 
+    // distinguishes the snapshot format from the former Java serialization one (0xACED...)
+    private static final int SNAPSHOT_MAGIC = 0x4C534543;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte ADD = 1;
+
+    private static final byte REMOVE = 2;
+
+    private static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 100000;
+
     // by client end-point
     private Map<String, SecurityInfo> securityByEp = new ConcurrentHashMap<>();
 
     // by PSK identity
     private Map<String, SecurityInfo> securityByIdentity = new ConcurrentHashMap<>();
 
-    // the name of the file used to persist the registry content
-    private final String filename;
-
     // default location for persistence
     private static final String DEFAULT_FILE = "data/security.data";
 
+    private final ScheduledExecutorService persistenceExecutor = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SecurityRegistryPersistence");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Journal journal;
+
     public SecurityRegistryImpl() {
         this(DEFAULT_FILE);
     }
@@ -78,10 +110,36 @@ public class SecurityRegistryImpl implements SecurityRegistry {
      * @param file the file path to persist the registry
      */
     public SecurityRegistryImpl(String file) {
+        this(file, DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param file the file path of the registry snapshot, the journal files are written next to it
+     * @param syncIntervalMillis the period between two flushes of the journal to the disk: the changes of the last
+     *        period may be lost on a crash
+     * @param compactionThreshold the number of journal records triggering a new snapshot
+     */
+    public SecurityRegistryImpl(String file, long syncIntervalMillis, int compactionThreshold) {
         Validate.notEmpty(file);
+        Validate.isTrue(syncIntervalMillis > 0, "sync interval must be positive");
+        Validate.isTrue(compactionThreshold > 0, "compaction threshold must be positive");
 
-        this.filename = file;
+        File snapshotFile = new File(file);
+        this.journal = new Journal("security", snapshotFile, snapshotFile.getName() + ".journal.",
+                compactionThreshold, new Journal.Snapshot() {
+                    @Override
+                    public void write(DataOutputStream out, long sequence) throws IOException {
+                        writeSnapshot(out, sequence);
+                    }
+                }, persistenceExecutor);
         this.loadFromFile();
+
+        persistenceExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -113,21 +171,39 @@ public class SecurityRegistryImpl implements SecurityRegistry {
             throw new NonUniqueSecurityInfoException("PSK Identity " + info.getIdentity() + " is already used");
         }
 
-        SecurityInfo previous = securityByEp.put(info.getEndpoint(), info);
-        if (previous != null) {
-            securityByIdentity.remove(previous.getIdentity());
-        }
-        if (info.getIdentity() != null) {
-            securityByIdentity.put(info.getIdentity(), info);
-        }
-
-        this.saveToFile();
+        SecurityInfo previous = put(info);
+        appendAdd(info);
 
         return previous;
     }
 
     @Override
-    public synchronized SecurityInfo remove(String endpoint) {
+    public synchronized void addAll(Collection<SecurityInfo> infos) throws NonUniqueSecurityInfoException {
+        Validate.notNull(infos);
+
+        // check all the identities before changing anything
+        Map<String, String> endpointByIdentity = new HashMap<>();
+        for (SecurityInfo info : infos) {
+            if (info.getIdentity() == null) {
+                continue;
+            }
+            SecurityInfo infoByIdentity = securityByIdentity.get(info.getIdentity());
+            String endpoint = endpointByIdentity.put(info.getIdentity(), info.getEndpoint());
+            if (infoByIdentity != null && !info.getEndpoint().equals(infoByIdentity.getEndpoint())
+                    || endpoint != null && !endpoint.equals(info.getEndpoint())) {
+                throw new NonUniqueSecurityInfoException("PSK Identity " + info.getIdentity() + " is already used");
+            }
+        }
+
+        for (SecurityInfo info : infos) {
+            put(info);
+            appendAdd(info);
+        }
+        sync();
+    }
+
+    @Override
+    public synchronized SecurityInfo remove(final String endpoint) {
         SecurityInfo info = securityByEp.get(endpoint);
         if (info != null) {
             if (info.getIdentity() != null) {
@@ -135,57 +211,169 @@ public class SecurityRegistryImpl implements SecurityRegistry {
             }
             securityByEp.remove(endpoint);
 
-            this.saveToFile();
+            try {
+                journal.append(REMOVE, new Journal.Record() {
+                    @Override
+                    public void write(DataOutputStream out) throws IOException {
+                        out.writeUTF(endpoint);
+                    }
+                });
+            } catch (IOException e) {
+                LOG.warn("Could not journal the removal of security info for " + endpoint, e);
+            }
         }
         return info;
     }
 
-    // /////// File persistence
+    private SecurityInfo put(SecurityInfo info) {
+        SecurityInfo previous = securityByEp.put(info.getEndpoint(), info);
+        if (previous != null && previous.getIdentity() != null) {
+            securityByIdentity.remove(previous.getIdentity());
+        }
+        if (info.getIdentity() != null) {
+            securityByIdentity.put(info.getIdentity(), info);
+        }
+        return previous;
+    }
 
-    private void loadFromFile() {
+    /**
+     * Flushes the journal to the disk and stops the background persistence tasks.
+     */
+    public void stop() {
+        // let a running compaction complete
+        persistenceExecutor.shutdown();
         try {
-            File file = new File(filename);
+            persistenceExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    // /////// File persistence
 
-            if (!file.exists()) {
-                // create parents if needed
-                File parent = file.getParentFile();
-                if (parent != null) {
-                    parent.mkdirs();
+    private void appendAdd(final SecurityInfo info) {
+        try {
+            journal.append(ADD, new Journal.Record() {
+                @Override
+                public void write(DataOutputStream out) throws IOException {
+                    writeInfo(out, info);
                 }
-                file.createNewFile();
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not journal security info for " + info.getEndpoint(), e);
+        }
+    }
 
-            } else {
+    /**
+     * Flushes the journal to the disk.
+     */
+    public void sync() {
+        journal.sync();
+    }
 
-                try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));) {
-                    SecurityInfo[] infos = (SecurityInfo[]) in.readObject();
+    /**
+     * Writes a snapshot of the registry and deletes the journal files it makes useless.
+     */
+    public void compact() {
+        journal.compact();
+    }
 
-                    if (infos != null) {
-                        for (SecurityInfo info : infos) {
-                            try {
-                                this.add(info);
-                            } catch (NonUniqueSecurityInfoException e) {
-                                // ignore it (should not occur)
-                            }
-                        }
-                    }
+    private void writeSnapshot(DataOutputStream out, long sequence) throws IOException {
+        // the changes are journaled after being applied: a change missing from the snapshot is in the new journal
+        List<SecurityInfo> infos = new ArrayList<>(securityByEp.values());
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(sequence);
+        out.writeInt(infos.size());
+        for (SecurityInfo info : infos) {
+            writeInfo(out, info);
+        }
+    }
+
+    private void loadFromFile() {
+        long start = System.currentTimeMillis();
+
+        // end-point -> security info
+        final Map<String, SecurityInfo> infos = new LinkedHashMap<>();
 
-                    if (infos != null && infos.length > 0) {
-                        LOG.info("{} security infos loaded", infos.length);
+        journal.recover(new Journal.Recovery() {
+            @Override
+            public long readSnapshot(DataInputStream in) throws IOException {
+                in.mark(4);
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    in.reset();
+                    for (SecurityInfo info : readSerializedInfos(in)) {
+                        infos.put(info.getEndpoint(), info);
                     }
-                } catch (Exception e) {
-                    LOG.debug("Could not load security infos from file", e);
+                    return 0;
+                }
+                int version = in.readInt();
+                if (version != FORMAT_VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version);
+                }
+                long sequence = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    SecurityInfo info = readInfo(in);
+                    infos.put(info.getEndpoint(), info);
+                }
+                return sequence;
+            }
+
+            @Override
+            public void replay(byte type, DataInputStream in) throws IOException {
+                switch (type) {
+                case ADD:
+                    SecurityInfo info = readInfo(in);
+                    infos.put(info.getEndpoint(), info);
+                    break;
+                case REMOVE:
+                    infos.remove(in.readUTF());
+                    break;
+                default:
+                    throw new IOException("Unknown journal record type " + type);
                 }
             }
-        } catch (Exception e) {
-            LOG.debug("Could not load security infos from file", e);
+        });
+
+        for (SecurityInfo info : infos.values()) {
+            put(info);
+        }
+
+        // start over from a fresh snapshot, this also drops any truncated record at the end of the journal
+        compact();
+
+        if (!infos.isEmpty()) {
+            LOG.info("{} security infos loaded in {}ms", infos.size(), System.currentTimeMillis() - start);
         }
     }
 
-    private void saveToFile() {
-        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(filename));) {
-            out.writeObject(this.getAll().toArray(new SecurityInfo[0]));
-        } catch (Exception e) {
-            LOG.debug("Could not save security infos to file", e);
+    /**
+     * Reads the Java serialization format written by the former versions of this registry.
+     */
+    private SecurityInfo[] readSerializedInfos(InputStream in) throws IOException {
+        try (ObjectInputStream objectIn = new ObjectInputStream(in)) {
+            SecurityInfo[] infos = (SecurityInfo[]) objectIn.readObject();
+            return infos == null ? new SecurityInfo[0] : infos;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
         }
     }
+
+    private static void writeInfo(DataOutputStream out, SecurityInfo info) throws IOException {
+        out.writeUTF(info.getEndpoint());
+        out.writeUTF(info.getIdentity());
+        byte[] key = info.getPreSharedKey();
+        out.writeInt(key.length);
+        out.write(key);
+    }
+
+    private static SecurityInfo readInfo(DataInputStream in) throws IOException {
+        String endpoint = in.readUTF();
+        String identity = in.readUTF();
+        byte[] key = new byte[in.readInt()];
+        in.readFully(key);
+        return SecurityInfo.newPreSharedKeyInfo(endpoint, identity, key);
+    }
 }
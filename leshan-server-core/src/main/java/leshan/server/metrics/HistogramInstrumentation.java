@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-process instrumentation keeping latency histograms and counters, cheap enough to be left enabled in
+ * production.
+ * <p>
+ * The measures are exposed by getters, to be read by the monitoring of the application (e.g. JMX or a periodic log).
+ * </p>
+ */
+public class HistogramInstrumentation implements Instrumentation {
+
+    private final ConcurrentMap<String /* operation */, RequestStats> requests = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String /* operation */, LatencyHistogram> registrations = new ConcurrentHashMap<>();
+
+    private final AtomicLong registeredClients = new AtomicLong();
+    private final AtomicLong registrationCount = new AtomicLong();
+    private final AtomicLong updateCount = new AtomicLong();
+    private final AtomicLong deregistrationCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+
+    private final LatencyHistogram roundTripTime = new LatencyHistogram();
+    private final LatencyHistogram retransmissionTimeout = new LatencyHistogram();
+    private final AtomicLong retransmittedExchanges = new AtomicLong();
+
+    private final AtomicLong activeObservations = new AtomicLong();
+    private final AtomicLong notificationCount = new AtomicLong();
+
+    // the notification rate is computed when read, over windows of at least one second
+    private final Object rateLock = new Object();
+    private long rateWindowNanos = System.nanoTime();
+    private long rateWindowCount;
+    private double notificationRate;
+
+    private final LatencyHistogram decoding = new LatencyHistogram();
+    private final AtomicLong decodedBytes = new AtomicLong();
+
+    private static class RequestStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLongArray outcomes = new AtomicLongArray(RequestOutcome.values().length);
+    }
+
+    @Override
+    public void requestCompleted(String operation, RequestOutcome outcome, long durationNanos) {
+        RequestStats stats = requests.get(operation);
+        if (stats == null) {
+            RequestStats created = new RequestStats();
+            stats = requests.putIfAbsent(operation, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        stats.outcomes.incrementAndGet(outcome.ordinal());
+        // the rejected requests were not sent
+        if (outcome != RequestOutcome.UNAVAILABLE) {
+            stats.latency.record(durationNanos);
+        }
+    }
+
+    @Override
+    public void registrationHandled(String operation, long durationNanos) {
+        LatencyHistogram latency = registrations.get(operation);
+        if (latency == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            latency = registrations.putIfAbsent(operation, created);
+            if (latency == null) {
+                latency = created;
+            }
+        }
+        latency.record(durationNanos);
+    }
+
+    @Override
+    public void clientRegistered() {
+        registrationCount.incrementAndGet();
+        registeredClients.incrementAndGet();
+    }
+
+    @Override
+    public void clientUpdated() {
+        updateCount.incrementAndGet();
+    }
+
+    @Override
+    public void clientUnregistered(boolean expired) {
+        if (expired) {
+            expirationCount.incrementAndGet();
+        } else {
+            deregistrationCount.incrementAndGet();
+        }
+        registeredClients.decrementAndGet();
+    }
+
+    @Override
+    public void rttMeasured(double rttMillis, boolean retransmitted, double smoothedRttMillis, double rtoMillis) {
+        roundTripTime.record(toNanos(rttMillis));
+        retransmissionTimeout.record(toNanos(rtoMillis));
+        if (retransmitted) {
+            retransmittedExchanges.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void observationsChanged(int activeObservations) {
+        this.activeObservations.set(activeObservations);
+    }
+
+    @Override
+    public void notificationReceived() {
+        notificationCount.incrementAndGet();
+    }
+
+    @Override
+    public void payloadDecoded(int length, long durationNanos) {
+        decoding.record(durationNanos);
+        decodedBytes.addAndGet(length);
+    }
+
+    /**
+     * @return the latency of a kind of requests, whatever their outcome, or <code>null</code> if none was sent
+     */
+    public LatencyHistogram getRequestLatency(String operation) {
+        RequestStats stats = requests.get(operation);
+        return stats == null ? null : stats.latency;
+    }
+
+    /**
+     * @return the number of requests of a kind which completed with a given outcome
+     */
+    public long getRequestCount(String operation, RequestOutcome outcome) {
+        RequestStats stats = requests.get(operation);
+        return stats == null ? 0 : stats.outcomes.get(outcome.ordinal());
+    }
+
+    /**
+     * @param operation "register", "update" or "deregister"
+     * @return the handling time of the registration requests, or <code>null</code> if none was received
+     */
+    public LatencyHistogram getRegistrationLatency(String operation) {
+        return registrations.get(operation);
+    }
+
+    /**
+     * @return the number of registered clients
+     */
+    public long getRegisteredClients() {
+        return registeredClients.get();
+    }
+
+    /**
+     * @return the number of registrations
+     */
+    public long getRegistrationCount() {
+        return registrationCount.get();
+    }
+
+    /**
+     * @return the number of registration updates
+     */
+    public long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    /**
+     * @return the number of de-registrations, including the registrations replaced by a new one
+     */
+    public long getDeregistrationCount() {
+        return deregistrationCount.get();
+    }
+
+    /**
+     * @return the number of expired registrations
+     */
+    public long getExpirationCount() {
+        return expirationCount.get();
+    }
+
+    /**
+     * @return the round-trip time of the exchanges with the clients, measured from the first transmission
+     */
+    public LatencyHistogram getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * @return the retransmission timeout (RTO) of the clients, as estimated after each exchange
+     */
+    public LatencyHistogram getRetransmissionTimeout() {
+        return retransmissionTimeout;
+    }
+
+    /**
+     * @return the number of exchanges answered after a retransmission of the request
+     */
+    public long getRetransmittedExchanges() {
+        return retransmittedExchanges.get();
+    }
+
+    /**
+     * @return the number of active observations
+     */
+    public long getActiveObservations() {
+        return activeObservations.get();
+    }
+
+    /**
+     * @return the number of received notifications
+     */
+    public long getNotificationCount() {
+        return notificationCount.get();
+    }
+
+    /**
+     * @return the number of notifications received per second, measured over the last window of at least one second
+     *         between two calls
+     */
+    public double getNotificationRate() {
+        synchronized (rateLock) {
+            long now = System.nanoTime();
+            long elapsed = now - rateWindowNanos;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+                long count = notificationCount.get();
+                notificationRate = (count - rateWindowCount) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+                rateWindowNanos = now;
+                rateWindowCount = count;
+            }
+            return notificationRate;
+        }
+    }
+
+    /**
+     * @return the decoding time of the payloads sent by the clients
+     */
+    public LatencyHistogram getDecoding() {
+        return decoding;
+    }
+
+    /**
+     * @return the number of decoded bytes
+     */
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+
+    private static long toNanos(double millis) {
+        return (long) (millis * 1_000_000);
+    }
+}
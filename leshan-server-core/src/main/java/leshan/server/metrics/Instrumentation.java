@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.metrics;
+
+/**
+ * Receives the measures taken by the server on its hot paths: requests sent to the clients and their round-trip time,
+ * registrations, client registry, observations and payload decoding.
+ * <p>
+ * The methods are invoked synchronously by the threads handling the traffic, so the implementations must be
+ * thread-safe and return quickly. {@link NoOpInstrumentation} is used when no instrumentation is configured.
+ * </p>
+ */
+public interface Instrumentation {
+
+    /**
+     * Invoked when a request sent to a client is completed.
+     *
+     * @param operation the kind of request (e.g. "Read", "Write")
+     * @param outcome how the request completed
+     * @param durationNanos the time elapsed since the request was created
+     */
+    void requestCompleted(String operation, RequestOutcome outcome, long durationNanos);
+
+    /**
+     * Invoked when a registration request has been handled.
+     *
+     * @param operation "register", "update" or "deregister"
+     * @param durationNanos the handling time
+     */
+    void registrationHandled(String operation, long durationNanos);
+
+    /**
+     * Invoked when a client has been registered, or restored after a restart.
+     * <p>
+     * The registry size is not given: the events are reported after the registry lock is released, so a size read
+     * at that time may already include later events. The number of registered clients is the number of registrations
+     * minus the number of removals.
+     * </p>
+     */
+    void clientRegistered();
+
+    /**
+     * Invoked when the registration of a client has been updated.
+     */
+    void clientUpdated();
+
+    /**
+     * Invoked when a client has been de-registered or replaced by a new registration.
+     *
+     * @param expired whether the registration has expired
+     */
+    void clientUnregistered(boolean expired);
+
+    /**
+     * Invoked when the response to a request has been received, with the round-trip time estimation of the client
+     * updated by this exchange.
+     *
+     * @param rttMillis the time between the first transmission of the request and the response
+     * @param retransmitted whether the request was retransmitted before the response was received
+     * @param smoothedRttMillis the smoothed round-trip time of the client (SRTT)
+     * @param rtoMillis the retransmission timeout of the client (RTO)
+     */
+    void rttMeasured(double rttMillis, boolean retransmitted, double smoothedRttMillis, double rtoMillis);
+
+    /**
+     * Invoked when an observation has been added or removed.
+     *
+     * @param activeObservations the number of active observations
+     */
+    void observationsChanged(int activeObservations);
+
+    /**
+     * Invoked when a notification has been received.
+     */
+    void notificationReceived();
+
+    /**
+     * Invoked when a payload sent by a client has been decoded.
+     *
+     * @param length the size of the payload in bytes
+     * @param durationNanos the decoding time
+     */
+    void payloadDecoded(int length, long durationNanos);
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.metrics;
+
+/**
+ * An instrumentation ignoring all the measures.
+ * <p>
+ * It can be extended to implement only some of the measures.
+ * </p>
+ */
+public class NoOpInstrumentation implements Instrumentation {
+
+    public static final Instrumentation INSTANCE = new NoOpInstrumentation();
+
+    protected NoOpInstrumentation() {
+    }
+
+    @Override
+    public void requestCompleted(String operation, RequestOutcome outcome, long durationNanos) {
+    }
+
+    @Override
+    public void registrationHandled(String operation, long durationNanos) {
+    }
+
+    @Override
+    public void clientRegistered() {
+    }
+
+    @Override
+    public void clientUpdated() {
+    }
+
+    @Override
+    public void clientUnregistered(boolean expired) {
+    }
+
+    @Override
+    public void rttMeasured(double rttMillis, boolean retransmitted, double smoothedRttMillis, double rtoMillis) {
+    }
+
+    @Override
+    public void observationsChanged(int activeObservations) {
+    }
+
+    @Override
+    public void notificationReceived() {
+    }
+
+    @Override
+    public void payloadDecoded(int length, long durationNanos) {
+    }
+}
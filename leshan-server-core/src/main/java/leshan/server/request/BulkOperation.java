@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.request;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import leshan.core.response.ClientResponse;
+import leshan.server.client.Client;
+import leshan.server.request.BulkRequestExecutor.ResultListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The progress of a request sent to many clients by a {@link BulkRequestExecutor}.
+ */
+public class BulkOperation<T extends ClientResponse> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkOperation.class);
+
+    private final int total;
+    private final ResultListener<T> listener;
+
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger timedOut = new AtomicInteger();
+    private final AtomicInteger cancelled = new AtomicInteger();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile boolean cancelRequested;
+
+    // the requests in flight, cancelled with the operation
+    private final Set<ResponseFuture<T>> inFlight = Collections
+            .newSetFromMap(new ConcurrentHashMap<ResponseFuture<T>, Boolean>());
+
+    BulkOperation(int total, ResultListener<T> listener) {
+        this.total = total;
+        this.listener = listener;
+    }
+
+    /**
+     * Cancels the requests not completed yet, they are reported with a {@link CancellationException}.
+     */
+    public void cancel() {
+        cancelRequested = true;
+        for (ResponseFuture<T> future : inFlight) {
+            future.cancel(false);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelRequested;
+    }
+
+    /**
+     * Waits for the completion of all the requests.
+     * 
+     * @return <code>false</code> if the timeout elapsed before the completion
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * @return the number of targeted clients
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the number of completed requests, whatever their outcome
+     */
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of requests answered with a success response code
+     */
+    public int getSucceeded() {
+        return succeeded.get();
+    }
+
+    /**
+     * @return the number of requests answered with an error response code or failed for another reason than a timeout
+     *         or a cancellation
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public int getTimedOut() {
+        return timedOut.get();
+    }
+
+    public int getCancelled() {
+        return cancelled.get();
+    }
+
+    void started(ResponseFuture<T> future) {
+        inFlight.add(future);
+        if (cancelRequested) {
+            future.cancel(false);
+        }
+    }
+
+    void completed(Client client, ResponseFuture<T> future, T response, Exception e) {
+        if (future != null) {
+            inFlight.remove(future);
+        }
+        try {
+            if (e == null) {
+                if (isSuccess(response)) {
+                    succeeded.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+                listener.onResponse(client, response);
+            } else {
+                if (e instanceof RequestTimeoutException) {
+                    timedOut.incrementAndGet();
+                } else if (e instanceof CancellationException) {
+                    cancelled.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+                listener.onError(client, e);
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Bulk operation listener failed", ex);
+        }
+
+        if (completed.incrementAndGet() == total) {
+            complete();
+        }
+    }
+
+    void complete() {
+        inFlight.clear();
+        done.countDown();
+        try {
+            listener.onCompleted(this);
+        } catch (RuntimeException ex) {
+            LOG.warn("Bulk operation listener failed", ex);
+        }
+    }
+
+    private static boolean isSuccess(ClientResponse response) {
+        if (response == null) {
+            return false;
+        }
+        switch (response.getCode()) {
+        case CREATED:
+        case DELETED:
+        case CHANGED:
+        case CONTENT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BulkOperation [total=%s, completed=%s, succeeded=%s, failed=%s, timedOut=%s, cancelled=%s]",
+                total, completed, succeeded, failed, timedOut, cancelled);
+    }
+}
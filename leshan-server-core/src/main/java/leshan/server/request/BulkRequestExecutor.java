@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.request;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import leshan.core.response.ClientResponse;
+import leshan.core.response.ExceptionConsumer;
+import leshan.core.response.ResponseConsumer;
+import leshan.server.client.Client;
+import leshan.server.client.ClientRegistry;
+import leshan.util.Validate;
+
+/**
+ * Sends the same kind of request to all the registered clients matching a selector, e.g. to read a resource on a
+ * whole fleet of devices.
+ * <p>
+ * The requests are sent asynchronously, so no thread is blocked waiting for the clients. The number of requests in
+ * flight is limited globally (across all the operations run by this executor) and per type of client, the pending
+ * requests are sent as soon as the previous ones complete. The results are streamed to a {@link ResultListener} and
+ * the progress can be followed through the returned {@link BulkOperation}.
+ * </p>
+ */
+public class BulkRequestExecutor {
+
+    /**
+     * Selects the clients targeted by a bulk operation.
+     */
+    public interface ClientSelector {
+
+        boolean select(Client client);
+    }
+
+    /**
+     * Creates the request to send to a given client.
+     */
+    public interface RequestFactory<T extends ClientResponse> {
+
+        LwM2mRequest<T> create(Client client);
+    }
+
+    /**
+     * Gives the type of a client (e.g. its device model), the requests in flight are limited per type.
+     */
+    public interface ClientClassifier {
+
+        String classify(Client client);
+    }
+
+    /**
+     * Receives the results of a bulk operation as they complete. The callbacks may be invoked concurrently.
+     */
+    public interface ResultListener<T extends ClientResponse> {
+
+        void onResponse(Client client, T response);
+
+        /**
+         * @param e a {@link RequestTimeoutException} if the client did not respond in time, a
+         *        {@link CancellationException} if the operation was cancelled before the request completed
+         */
+        void onError(Client client, Exception e);
+
+        void onCompleted(BulkOperation<T> operation);
+    }
+
+    private static final String SINGLE_TYPE = "";
+
+    private final LwM2mRequestSender sender;
+    private final ClientRegistry registry;
+    private final int maxInFlight;
+    private final int maxInFlightPerType;
+    private final ClientClassifier classifier;
+    private final long timeoutMillis;
+
+    // the pending requests by client type, visited in round-robin order. Guarded by itself.
+    private final Map<String, TypeQueue> queues = new LinkedHashMap<>();
+    private int inFlight;
+
+    // the number of dispatch requests not processed yet, only one thread dispatches at a time
+    private final AtomicInteger dispatchRequests = new AtomicInteger();
+
+    private static class TypeQueue {
+        final String type;
+        final Queue<Task<?>> pending = new ArrayDeque<>();
+        int inFlight;
+
+        TypeQueue(String type) {
+            this.type = type;
+        }
+    }
+
+    /**
+     * Creates an executor which does not distinguish the client types.
+     * 
+     * @param maxInFlight the maximum number of requests in flight
+     * @param timeoutMillis the timeout of each request
+     */
+    public BulkRequestExecutor(LwM2mRequestSender sender, ClientRegistry registry, int maxInFlight, long timeoutMillis) {
+        this(sender, registry, maxInFlight, maxInFlight, null, timeoutMillis);
+    }
+
+    /**
+     * @param maxInFlight the maximum number of requests in flight
+     * @param maxInFlightPerType the maximum number of requests in flight for a given type of client
+     * @param classifier gives the type of the clients, <code>null</code> to consider all the clients of the same type
+     * @param timeoutMillis the timeout of each request
+     */
+    public BulkRequestExecutor(LwM2mRequestSender sender, ClientRegistry registry, int maxInFlight,
+            int maxInFlightPerType, ClientClassifier classifier, long timeoutMillis) {
+        Validate.notNull(sender);
+        Validate.notNull(registry);
+        Validate.isTrue(maxInFlight > 0, "the maximum number of requests in flight must be positive");
+        Validate.isTrue(maxInFlightPerType > 0, "the maximum number of requests in flight per type must be positive");
+        Validate.isTrue(timeoutMillis > 0, "timeout must be positive");
+
+        this.sender = sender;
+        this.registry = registry;
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerType = maxInFlightPerType;
+        this.classifier = classifier;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sends a request to all the registered clients matching the selector.
+     * 
+     * @param selector selects the targeted clients
+     * @param factory creates the request for each client
+     * @param listener notified of each result and of the completion of the operation
+     * @return the operation, to follow its progress or cancel it
+     */
+    public <T extends ClientResponse> BulkOperation<T> execute(ClientSelector selector, RequestFactory<T> factory,
+            ResultListener<T> listener) {
+        Validate.notNull(selector);
+        Validate.notNull(factory);
+        Validate.notNull(listener);
+
+        List<Client> clients = new ArrayList<>();
+        for (Client client : registry.allClients()) {
+            if (selector.select(client)) {
+                clients.add(client);
+            }
+        }
+
+        BulkOperation<T> operation = new BulkOperation<>(clients.size(), listener);
+        if (clients.isEmpty()) {
+            operation.complete();
+            return operation;
+        }
+
+        synchronized (queues) {
+            for (Client client : clients) {
+                String type = classifier == null ? SINGLE_TYPE : classifier.classify(client);
+                TypeQueue queue = queues.get(type);
+                if (queue == null) {
+                    queue = new TypeQueue(type);
+                    queues.put(type, queue);
+                }
+                queue.pending.add(new Task<>(operation, client, factory));
+            }
+        }
+        dispatch();
+        return operation;
+    }
+
+    /**
+     * @return the number of requests currently in flight
+     */
+    public int getInFlight() {
+        synchronized (queues) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * Sends the pending requests allowed by the limits. The requests completing synchronously dispatch again, so only
+     * one thread sends the requests at a time to avoid unbounded recursion.
+     */
+    private void dispatch() {
+        if (dispatchRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int requests = 1;
+        do {
+            Task<?> task;
+            while ((task = next()) != null) {
+                task.start();
+            }
+            requests = dispatchRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    /**
+     * @return the next request to send, accounted as in flight, or <code>null</code> if none is allowed
+     */
+    private Task<?> next() {
+        synchronized (queues) {
+            if (inFlight >= maxInFlight) {
+                return null;
+            }
+            Iterator<TypeQueue> it = queues.values().iterator();
+            while (it.hasNext()) {
+                TypeQueue queue = it.next();
+                if (queue.inFlight >= maxInFlightPerType || queue.pending.isEmpty()) {
+                    continue;
+                }
+                Task<?> task = queue.pending.poll();
+                task.queue = queue;
+                queue.inFlight++;
+                inFlight++;
+
+                // move the type at the end so that the types are served in turn
+                it.remove();
+                queues.put(queue.type, queue);
+                return task;
+            }
+            return null;
+        }
+    }
+
+    private void release(TypeQueue queue) {
+        synchronized (queues) {
+            inFlight--;
+            queue.inFlight--;
+            if (queue.inFlight == 0 && queue.pending.isEmpty()) {
+                queues.remove(queue.type);
+            }
+        }
+    }
+
+    private class Task<T extends ClientResponse> implements ResponseConsumer<T>, ExceptionConsumer {
+
+        final BulkOperation<T> operation;
+        final Client client;
+        final RequestFactory<T> factory;
+
+        // set when dispatched
+        TypeQueue queue;
+        ResponseFuture<T> future;
+
+        Task(BulkOperation<T> operation, Client client, RequestFactory<T> factory) {
+            this.operation = operation;
+            this.client = client;
+            this.factory = factory;
+        }
+
+        void start() {
+            try {
+                if (operation.isCancelled()) {
+                    throw new CancellationException();
+                }
+                future = sender.sendAsync(factory.create(client), timeoutMillis);
+            } catch (RuntimeException e) {
+                accept(e);
+                return;
+            }
+            operation.started(future);
+            future.addCallback(this, this);
+        }
+
+        @Override
+        public void accept(T response) {
+            release(queue);
+            operation.completed(client, future, response, null);
+            dispatch();
+        }
+
+        @Override
+        public void accept(Exception e) {
+            release(queue);
+            operation.completed(client, future, null, e);
+            dispatch();
+        }
+    }
+}
@@ -44,4 +44,13 @@ public interface LwM2mRequestSender {
      */
     <T extends ClientResponse> void send(LwM2mRequest<T> request, ResponseConsumer<T> responseCallback,
             ExceptionConsumer errorCallback);
+
+    /**
+     * Send a Lightweight M2M request asynchronously, without blocking any thread while waiting for the response.
+     * 
+     * @param timeoutMillis the time after which the future fails with a {@link RequestTimeoutException} and the request
+     *        is cancelled
+     * @return the future response, cancelling it cancels the request
+     */
+    <T extends ClientResponse> ResponseFuture<T> sendAsync(LwM2mRequest<T> request, long timeoutMillis);
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import leshan.core.response.ClientResponse;
+import leshan.core.response.ExceptionConsumer;
+import leshan.core.response.ResponseConsumer;
+import leshan.util.Validate;
+
+/**
+ * The pending response of a Lightweight M2M request sent asynchronously.
+ * <p>
+ * Callbacks can be registered at any time: they are invoked by the thread completing the future, or immediately by the
+ * registering thread if the future is already completed. Cancelling the future cancels the underlying request.
+ * </p>
+ */
+public class ResponseFuture<T extends ClientResponse> implements Future<T> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // guarded by this
+    private boolean completed;
+    private T response;
+    private Exception exception;
+    private List<Callback<T>> callbacks = new ArrayList<>(1);
+    private Runnable cancellationHandler;
+
+    private static class Callback<T extends ClientResponse> {
+        final ResponseConsumer<T> responseCallback;
+        final ExceptionConsumer errorCallback;
+
+        Callback(ResponseConsumer<T> responseCallback, ExceptionConsumer errorCallback) {
+            this.responseCallback = responseCallback;
+            this.errorCallback = errorCallback;
+        }
+    }
+
+    /**
+     * Registers the callbacks to invoke on completion.
+     * 
+     * @param responseCallback invoked with the response
+     * @param errorCallback invoked with the error, a {@link CancellationException} if the future was cancelled
+     * @return this future
+     */
+    public ResponseFuture<T> addCallback(ResponseConsumer<T> responseCallback, ExceptionConsumer errorCallback) {
+        Validate.notNull(responseCallback);
+        Validate.notNull(errorCallback);
+
+        Callback<T> callback = new Callback<>(responseCallback, errorCallback);
+        synchronized (this) {
+            if (!completed) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        invoke(callback);
+        return this;
+    }
+
+    /**
+     * Sets the action cancelling the underlying request, invoked if the future is cancelled.
+     */
+    public void setCancellationHandler(Runnable cancellationHandler) {
+        boolean cancelled;
+        synchronized (this) {
+            this.cancellationHandler = cancellationHandler;
+            cancelled = completed && exception instanceof CancellationException;
+        }
+        if (cancelled) {
+            cancellationHandler.run();
+        }
+    }
+
+    /**
+     * Completes the future with a response.
+     * 
+     * @return <code>false</code> if the future was already completed
+     */
+    public boolean complete(T response) {
+        return complete(response, null);
+    }
+
+    /**
+     * Completes the future with an error.
+     * 
+     * @return <code>false</code> if the future was already completed
+     */
+    public boolean fail(Exception exception) {
+        Validate.notNull(exception);
+        return complete(null, exception);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(null, new CancellationException())) {
+            return false;
+        }
+        Runnable handler;
+        synchronized (this) {
+            handler = cancellationHandler;
+        }
+        if (handler != null) {
+            handler.run();
+        }
+        return true;
+    }
+
+    private boolean complete(T response, Exception exception) {
+        List<Callback<T>> toInvoke;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            this.completed = true;
+            this.response = response;
+            this.exception = exception;
+            toInvoke = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        for (Callback<T> callback : toInvoke) {
+            invoke(callback);
+        }
+        return true;
+    }
+
+    private void invoke(Callback<T> callback) {
+        T response;
+        Exception exception;
+        synchronized (this) {
+            response = this.response;
+            exception = this.exception;
+        }
+        if (exception == null) {
+            callback.responseCallback.accept(response);
+        } else {
+            callback.errorCallback.accept(exception);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return completed && exception instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private synchronized T result() throws ExecutionException {
+        if (exception instanceof CancellationException) {
+            throw (CancellationException) exception;
+        } else if (exception != null) {
+            throw new ExecutionException(exception);
+        }
+        return response;
+    }
+}
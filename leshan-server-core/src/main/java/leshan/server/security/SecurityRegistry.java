@@ -51,6 +51,15 @@ public interface SecurityRegistry extends SecurityStore {
      */
     SecurityInfo add(SecurityInfo info) throws NonUniqueSecurityInfoException;
 
+    /**
+     * Registers the security information of many client end-points at once.
+     * 
+     * @param infos the new security information
+     * @throws NonUniqueSecurityInfoException if some identifiers are not unique among all end-points, in which case
+     *         none of the information is registered.
+     */
+    void addAll(Collection<SecurityInfo> infos) throws NonUniqueSecurityInfoException;
+
     /**
      * Removes the security information for a given end-point.
      * 
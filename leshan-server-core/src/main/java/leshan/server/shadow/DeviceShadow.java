@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.shadow;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import leshan.core.node.LwM2mNode;
+import leshan.core.node.LwM2mObject;
+import leshan.core.node.LwM2mObjectInstance;
+import leshan.core.node.LwM2mPath;
+import leshan.server.client.Client;
+import leshan.server.client.ClientRegistryListener;
+import leshan.util.Validate;
+
+/**
+ * The last known values of the clients resources, fed by the read responses and the observe notifications.
+ * <p>
+ * A value can be served from any fresh enough value of the same path or of an enclosing object instance or object.
+ * The values of a client are invalidated when it registers or de-registers, and the values of a path when it is
+ * written, created or deleted.
+ * </p>
+ * <p>
+ * The number of values is bounded: when it is exceeded, the values of the least recently used clients are evicted
+ * first. It must be registered as a listener of the client registry to be notified of the (de-)registrations.
+ * </p>
+ */
+public class DeviceShadow implements ClientRegistryListener {
+
+    public static final int DEFAULT_MAX_VALUES = 100_000;
+
+    private static final int SEGMENTS = 64;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final int maxValuesPerSegment;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Segment {
+        // the values by client, the least recently used client first
+        final LinkedHashMap<String, LinkedHashMap<LwM2mPath, ShadowValue>> clients = new LinkedHashMap<>(16, 0.75f,
+                true);
+        int size;
+    }
+
+    public DeviceShadow() {
+        this(DEFAULT_MAX_VALUES);
+    }
+
+    /**
+     * @param maxValues the maximum number of values kept for all the clients
+     */
+    public DeviceShadow(int maxValues) {
+        Validate.isTrue(maxValues > 0, "the maximum number of values must be positive");
+        this.maxValuesPerSegment = Math.max(1, maxValues / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Records a value received from a client.
+     */
+    public void update(String endpoint, LwM2mPath path, LwM2mNode node) {
+        Validate.notNull(endpoint);
+        Validate.notNull(path);
+        Validate.notNull(node);
+
+        ShadowValue value = new ShadowValue(node, System.currentTimeMillis());
+        Segment segment = segmentFor(endpoint);
+        synchronized (segment) {
+            LinkedHashMap<LwM2mPath, ShadowValue> values = segment.clients.get(endpoint);
+            if (values == null) {
+                values = new LinkedHashMap<>(8, 0.75f, true);
+                segment.clients.put(endpoint, values);
+            }
+            if (values.put(path, value) == null) {
+                segment.size++;
+            }
+            evict(segment, values);
+        }
+    }
+
+    /**
+     * Gets the last known value of a resource, object instance or object.
+     * 
+     * @param maxAgeMillis the maximum age of the value
+     * @return the value, or <code>null</code> if there is no value received within the maximum age
+     */
+    public ShadowValue get(String endpoint, LwM2mPath path, long maxAgeMillis) {
+        Validate.notNull(endpoint);
+        Validate.notNull(path);
+
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        ShadowValue best = null;
+        Segment segment = segmentFor(endpoint);
+        synchronized (segment) {
+            Map<LwM2mPath, ShadowValue> values = segment.clients.get(endpoint);
+            if (values != null) {
+                best = freshest(best, values.get(path), path, oldest);
+                if (!path.isObject()) {
+                    best = freshest(best, values.get(new LwM2mPath(path.getObjectId())), path, oldest);
+                }
+                if (path.isResource()) {
+                    best = freshest(best,
+                            values.get(new LwM2mPath(path.getObjectId(), path.getObjectInstanceId())), path, oldest);
+                }
+            }
+        }
+        (best == null ? misses : hits).incrementAndGet();
+        return best;
+    }
+
+    /**
+     * Removes all the values of a client.
+     */
+    public void invalidate(String endpoint) {
+        Segment segment = segmentFor(endpoint);
+        synchronized (segment) {
+            Map<LwM2mPath, ShadowValue> values = segment.clients.remove(endpoint);
+            if (values != null) {
+                segment.size -= values.size();
+            }
+        }
+    }
+
+    /**
+     * Removes the values of a path, of its enclosing object instance and object, and of its children.
+     */
+    public void invalidate(String endpoint, LwM2mPath path) {
+        Segment segment = segmentFor(endpoint);
+        synchronized (segment) {
+            Map<LwM2mPath, ShadowValue> values = segment.clients.get(endpoint);
+            if (values == null) {
+                return;
+            }
+            for (Iterator<LwM2mPath> it = values.keySet().iterator(); it.hasNext();) {
+                LwM2mPath p = it.next();
+                if (overlaps(p, path)) {
+                    it.remove();
+                    segment.size--;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of values kept
+     */
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public void registered(Client client) {
+        // the state of a new registration is unknown
+        invalidate(client.getEndpoint());
+    }
+
+    @Override
+    public void updated(Client clientUpdated) {
+    }
+
+    @Override
+    public void unregistered(Client client) {
+        invalidate(client.getEndpoint());
+    }
+
+    /**
+     * Evicts the least recently used clients, then the least recently used values of the current client.
+     */
+    private void evict(Segment segment, Map<LwM2mPath, ShadowValue> current) {
+        Iterator<LinkedHashMap<LwM2mPath, ShadowValue>> clients = segment.clients.values().iterator();
+        while (segment.size > maxValuesPerSegment && clients.hasNext()) {
+            Map<LwM2mPath, ShadowValue> values = clients.next();
+            if (values != current) {
+                segment.size -= values.size();
+                clients.remove();
+            }
+        }
+        Iterator<ShadowValue> it = current.values().iterator();
+        while (segment.size > maxValuesPerSegment && it.hasNext()) {
+            it.next();
+            it.remove();
+            segment.size--;
+        }
+    }
+
+    private static ShadowValue freshest(ShadowValue best, ShadowValue candidate, LwM2mPath path, long oldest) {
+        if (candidate == null || candidate.getTimestamp() < oldest
+                || (best != null && best.getTimestamp() >= candidate.getTimestamp())) {
+            return best;
+        }
+        LwM2mNode node = extract(candidate.getNode(), path);
+        if (node == null) {
+            // not part of the enclosing value
+            return best;
+        }
+        return node == candidate.getNode() ? candidate : new ShadowValue(node, candidate.getTimestamp());
+    }
+
+    /**
+     * Gets the node of a path from the node of the path or of an enclosing path.
+     */
+    private static LwM2mNode extract(LwM2mNode node, LwM2mPath path) {
+        if (node instanceof LwM2mObject && !path.isObject()) {
+            node = ((LwM2mObject) node).getInstances().get(path.getObjectInstanceId());
+        }
+        if (node instanceof LwM2mObjectInstance && path.isResource()) {
+            node = ((LwM2mObjectInstance) node).getResources().get(path.getResourceId());
+        }
+        return node;
+    }
+
+    /**
+     * @return whether <code>ancestor</code> is the same path as <code>path</code> or encloses it
+     */
+    /**
+     * @return <code>true</code> if one of the paths is the other one or encloses it, i.e. modifying the node at one
+     *         path changes the value at the other
+     */
+    public static boolean overlaps(LwM2mPath path, LwM2mPath other) {
+        return encloses(path, other) || encloses(other, path);
+    }
+
+    private static boolean encloses(LwM2mPath ancestor, LwM2mPath path) {
+        if (ancestor.getObjectId() != path.getObjectId()) {
+            return false;
+        }
+        if (ancestor.isObject()) {
+            return true;
+        }
+        if (!ancestor.getObjectInstanceId().equals(path.getObjectInstanceId())) {
+            return false;
+        }
+        return ancestor.isObjectInstance() || ancestor.getResourceId().equals(path.getResourceId());
+    }
+
+    private Segment segmentFor(String endpoint) {
+        return segments[(endpoint.hashCode() & 0x7fffffff) % SEGMENTS];
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientExpirationSchedulerTest {
+
+    ClientExpirationScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new ClientExpirationScheduler();
+    }
+
+    @Test
+    public void poll_only_expired_clients_in_expiration_order() throws UnknownHostException {
+        Client c1 = givenAClient("c1", 100L);
+        Client c2 = givenAClient("c2", 10L);
+        Client c3 = givenAClient("c3", 1000L);
+        scheduler.attach(c1);
+        scheduler.attach(c2);
+        scheduler.attach(c3);
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(Collections.emptyList(), scheduler.pollExpired(now, 10));
+        Assert.assertEquals(Arrays.asList(c2, c1), scheduler.pollExpired(now + 200 * 1000, 10));
+        Assert.assertEquals(Arrays.asList(c3), scheduler.pollExpired(now + 2000 * 1000, 10));
+    }
+
+    @Test
+    public void poll_at_most_max_clients() throws UnknownHostException {
+        for (int i = 0; i < 5; i++) {
+            scheduler.attach(givenAClient("c" + i, 0L));
+        }
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(3, scheduler.pollExpired(now, 3).size());
+        Assert.assertEquals(2, scheduler.pollExpired(now, 3).size());
+        Assert.assertEquals(0, scheduler.pollExpired(now, 3).size());
+    }
+
+    @Test
+    public void registration_update_reschedules_client() throws UnknownHostException {
+        Client client = givenAClient("c1", 0L);
+        scheduler.attach(client);
+
+        new ClientUpdate(client.getRegistrationId(), null, null, 1000L, null, null, null).apply(client);
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(Collections.emptyList(), scheduler.pollExpired(now, 10));
+        Assert.assertEquals(Arrays.asList(client), scheduler.pollExpired(now + 2000 * 1000, 10));
+    }
+
+    @Test
+    public void shortened_lifetime_reschedules_client() throws UnknownHostException {
+        Client client = givenAClient("c1", 1000L);
+        scheduler.attach(client);
+
+        new ClientUpdate(client.getRegistrationId(), null, null, 0L, null, null, null).apply(client);
+
+        Assert.assertEquals(Arrays.asList(client), scheduler.pollExpired(System.currentTimeMillis() + 1000, 10));
+    }
+
+    @Test
+    public void timed_out_client_expires_immediately() throws UnknownHostException {
+        Client client = givenAClient("c1", 1000L);
+        scheduler.attach(client);
+
+        client.markLastRequestTimedout();
+
+        Assert.assertEquals(Arrays.asList(client), scheduler.pollExpired(System.currentTimeMillis(), 10));
+    }
+
+    @Test
+    public void cancelled_client_is_not_polled() throws UnknownHostException {
+        Client client = givenAClient("c1", 0L);
+        scheduler.attach(client);
+        scheduler.cancel(client);
+
+        // updating a cancelled client does not re-schedule it
+        new ClientUpdate(client.getRegistrationId(), null, null).apply(client);
+
+        Assert.assertEquals(Collections.emptyList(), scheduler.pollExpired(Long.MAX_VALUE, 10));
+    }
+
+    @Test
+    public void cancelled_client_is_not_rescheduled() throws UnknownHostException {
+        Client client = givenAClient("c1", 0L);
+        scheduler.attach(client);
+        scheduler.cancel(client);
+
+        // a re-scheduling racing with the de-registration
+        scheduler.schedule(client);
+
+        Assert.assertFalse(scheduler.isScheduled(client));
+        Assert.assertEquals(Collections.emptyList(), scheduler.pollExpired(Long.MAX_VALUE, 10));
+    }
+
+    @Test
+    public void polled_client_is_rescheduled_while_attached() throws UnknownHostException {
+        Client client = givenAClient("c1", 0L);
+        scheduler.attach(client);
+        Assert.assertEquals(Arrays.asList(client), scheduler.pollExpired(Long.MAX_VALUE, 10));
+
+        scheduler.schedule(client);
+
+        Assert.assertTrue(scheduler.isScheduled(client));
+        Assert.assertEquals(Arrays.asList(client), scheduler.pollExpired(Long.MAX_VALUE, 10));
+    }
+
+    private Client givenAClient(String endpoint, Long lifetime) throws UnknownHostException {
+        return new Client("ID-" + endpoint, endpoint, InetAddress.getLocalHost(), 10000, null, lifetime, null, null,
+                null, null, InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+}
@@ -59,4 +59,26 @@ public class ClientSortObjectTest {
         Assert.assertEquals("/0/2", res[1].getPath());
         Assert.assertEquals("/0/1024/2", res[2].getPath());
     }
+
+    @Test
+    public void sort_link_object_once_on_set() throws UnknownHostException {
+        LinkObject[] objs = new LinkObject[] { new LinkObject("/3/0"), new LinkObject("/"), new LinkObject("/1/0"),
+                                new LinkObject("/1/1") };
+        Client c = new Client("registrationId", "endpoint", Inet4Address.getByName("127.0.0.1"), 1,
+                new InetSocketAddress(212));
+
+        c.setObjectLinks(objs);
+
+        LinkObject[] res = c.getObjectLinks();
+        Assert.assertEquals("/", res[0].getPath());
+        Assert.assertEquals("/1/0", res[1].getPath());
+        Assert.assertEquals("/3/0", res[3].getPath());
+        // the links are sorted once, not on each access
+        Assert.assertSame(res, c.getObjectLinks());
+
+        Assert.assertTrue(c.hasObject(1));
+        Assert.assertTrue(c.hasObject(3));
+        Assert.assertFalse(c.hasObject(0));
+        Assert.assertFalse(c.hasObject(2));
+    }
 }
@@ -31,11 +31,21 @@ package leshan.server.impl;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import leshan.LinkObject;
 import leshan.server.client.BindingMode;
 import leshan.server.client.Client;
 import leshan.server.client.ClientUpdate;
+import leshan.server.metrics.HistogramInstrumentation;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -92,6 +102,148 @@ public class ClientRegistryImplTest {
         Assert.assertTrue(client.isAlive());
     }
 
+    @Test
+    public void get_by_address_follows_address_changes() {
+        givenASimpleClient(lifetime);
+        registry.registerClient(client);
+        Assert.assertSame(client, registry.getByAddress(new InetSocketAddress(address, port)));
+
+        // NAT re-binding
+        registry.updateClient(new ClientUpdate(registrationId, address, port + 1));
+        Assert.assertNull(registry.getByAddress(new InetSocketAddress(address, port)));
+        Assert.assertSame(client, registry.getByAddress(new InetSocketAddress(address, port + 1)));
+
+        registry.deregisterClient(registrationId);
+        Assert.assertNull(registry.getByAddress(new InetSocketAddress(address, port + 1)));
+    }
+
+    @Test
+    public void get_by_address_returns_the_last_end_point_using_the_address() {
+        givenASimpleClient(lifetime);
+        registry.registerClient(client);
+
+        // another end-point behind the same NAT
+        Client other = new Client("4712", "otherEp", address, port, null, lifetime, sms, binding, objectLinks, null,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+        registry.registerClient(other);
+        Assert.assertSame(other, registry.getByAddress(new InetSocketAddress(address, port)));
+
+        // the address is not given back to the first end-point
+        registry.updateClient(new ClientUpdate("4712", address, port + 1));
+        Assert.assertNull(registry.getByAddress(new InetSocketAddress(address, port)));
+        Assert.assertSame(other, registry.getByAddress(new InetSocketAddress(address, port + 1)));
+
+        // until it updates its registration from it
+        registry.updateClient(new ClientUpdate(registrationId, address, port + 1));
+        Assert.assertSame(client, registry.getByAddress(new InetSocketAddress(address, port + 1)));
+        registry.deregisterClient("4712");
+        Assert.assertSame(client, registry.getByAddress(new InetSocketAddress(address, port + 1)));
+    }
+
+    @Test
+    public void stale_removal_does_not_remove_the_new_registration() {
+        givenASimpleClient(lifetime);
+        Client stale = client;
+        registry.registerClient(stale);
+
+        // the same end-point registers again before the de-registration (or expiration) of the first one is handled
+        Client current = new Client("4712", ep, address, port, null, lifetime, sms, binding, objectLinks, null,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+        Assert.assertSame(stale, registry.registerClient(current));
+        Assert.assertFalse(registry.remove(stale));
+
+        Assert.assertSame(current, registry.get(ep));
+        Assert.assertSame(current, registry.getByAddress(new InetSocketAddress(address, port)));
+        Assert.assertTrue(registry.isScheduled(current));
+        Assert.assertFalse(registry.isScheduled(stale));
+        Assert.assertNull(registry.deregisterClient(registrationId));
+        Assert.assertSame(current, registry.deregisterClient("4712"));
+
+        // all the indexes are now empty
+        Assert.assertNull(registry.get(ep));
+        Assert.assertNull(registry.getByAddress(new InetSocketAddress(address, port)));
+        Assert.assertFalse(registry.isScheduled(current));
+    }
+
+    @Test
+    public void instrumentation_counts_the_registered_clients() {
+        HistogramInstrumentation instrumentation = new HistogramInstrumentation();
+        registry = new ClientRegistryImpl(ClientRegistryImpl.DEFAULT_CLEANUP_BATCH_SIZE, instrumentation);
+
+        givenASimpleClient(lifetime);
+        registry.registerClient(client);
+        Assert.assertEquals(1, instrumentation.getRegisteredClients());
+
+        // a new registration of the same end-point replaces the previous one
+        registry.registerClient(new Client("4712", ep, address, port, null, lifetime, sms, binding, objectLinks, null,
+                InetSocketAddress.createUnresolved("localhost", 5683)));
+        Assert.assertEquals(1, instrumentation.getRegisteredClients());
+        Assert.assertEquals(2, instrumentation.getRegistrationCount());
+
+        registry.deregisterClient("4712");
+        Assert.assertEquals(0, instrumentation.getRegisteredClients());
+        Assert.assertEquals(2, instrumentation.getDeregistrationCount());
+    }
+
+    @Test
+    public void registration_id_index_stays_consistent_under_concurrent_registrations() throws Exception {
+        final int nbThreads = 8;
+        final int nbEndpoints = 200;
+        final int nbRounds = 20;
+
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < nbThreads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int round = 0; round < nbRounds; round++) {
+                        for (int i = 0; i < nbEndpoints; i++) {
+                            String regId = thread + "-" + round + "-" + i;
+                            // all the threads fight for the same end-points
+                            Client c = new Client(regId, ep + i, address, port, null, lifetime, null, null, null,
+                                    null, InetSocketAddress.createUnresolved("localhost", 5683));
+                            registry.registerClient(c);
+                            registry.updateClient(new ClientUpdate(regId, address, port));
+                            if (i % 3 == 0) {
+                                registry.deregisterClient(regId);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        // every registered client must be reachable by its registration id and every stale registration id must be
+        // gone from the index
+        Set<String> registered = new HashSet<>();
+        for (Client c : registry.allClients()) {
+            registered.add(c.getRegistrationId());
+            Assert.assertSame(c, registry.updateClient(new ClientUpdate(c.getRegistrationId(), address, port)));
+        }
+        for (int t = 0; t < nbThreads; t++) {
+            for (int round = 0; round < nbRounds; round++) {
+                for (int i = 0; i < nbEndpoints; i++) {
+                    String regId = t + "-" + round + "-" + i;
+                    if (!registered.contains(regId)) {
+                        Assert.assertNull(registry.updateClient(new ClientUpdate(regId, address, port)));
+                    }
+                }
+            }
+        }
+
+        for (String regId : registered) {
+            Assert.assertNotNull(registry.deregisterClient(regId));
+        }
+        Assert.assertTrue(registry.allClients().isEmpty());
+    }
+
     private void givenASimpleClient(Long lifetime) {
         client = new Client(registrationId, ep, address, port, null, lifetime, sms, binding, objectLinks, null,
                 InetSocketAddress.createUnresolved("localhost", 5683));
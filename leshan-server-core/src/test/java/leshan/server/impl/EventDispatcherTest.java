@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.impl;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import leshan.server.client.Client;
+import leshan.server.client.ClientRegistryListener;
+import leshan.server.impl.EventDispatcher.OverflowPolicy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EventDispatcherTest {
+
+    EventDispatcher dispatcher;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void events_of_a_client_are_delivered_in_order() throws Exception {
+        dispatcher = new EventDispatcher(4, 1000, OverflowPolicy.BLOCK);
+
+        final int nbClients = 20;
+        final int nbEvents = 500;
+        final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        final CountDownLatch latch = new CountDownLatch(nbClients * nbEvents);
+        ClientRegistryListener listener = dispatcher.async(new ClientRegistryListener() {
+
+            @Override
+            public void updated(Client clientUpdated) {
+                received.get(clientUpdated.getEndpoint()).add(clientUpdated.getPort());
+                latch.countDown();
+            }
+
+            @Override
+            public void unregistered(Client client) {
+            }
+
+            @Override
+            public void registered(Client client) {
+            }
+        });
+
+        for (int i = 0; i < nbClients; i++) {
+            received.put("ep" + i, new CopyOnWriteArrayList<Integer>());
+        }
+        for (int event = 0; event < nbEvents; event++) {
+            for (int i = 0; i < nbClients; i++) {
+                // the port is used as sequence number
+                listener.updated(givenAClient("ep" + i, event));
+            }
+        }
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (List<Integer> events : received.values()) {
+            List<Integer> expected = new ArrayList<>();
+            for (int event = 0; event < nbEvents; event++) {
+                expected.add(event);
+            }
+            Assert.assertEquals(expected, events);
+        }
+        Assert.assertEquals(0, dispatcher.getDiscardedCount());
+    }
+
+    @Test
+    public void events_are_discarded_when_queue_is_full() throws Exception {
+        dispatcher = new EventDispatcher(1, 2, OverflowPolicy.DISCARD_NEWEST);
+
+        // block the dispatching thread
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.dispatch("ep", new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch("ep", noop);
+        }
+        Assert.assertEquals(2, dispatcher.getQueueSize());
+        Assert.assertEquals(3, dispatcher.getDiscardedCount());
+
+        release.countDown();
+    }
+
+    private Client givenAClient(String endpoint, int port) throws UnknownHostException {
+        return new Client("ID-" + endpoint, endpoint, InetAddress.getLoopbackAddress(), port,
+                InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+}
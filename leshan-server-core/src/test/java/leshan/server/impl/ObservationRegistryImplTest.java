@@ -30,6 +30,21 @@
 package leshan.server.impl;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import leshan.core.node.LwM2mPath;
 import leshan.server.client.Client;
@@ -63,10 +78,89 @@ public class ObservationRegistryImplTest extends BasicTestSupport {
         Assert.assertSame(1, registry.cancelObservations(client));
     }
 
+    @Test
+    public void concurrent_observe_and_cancel_do_not_leak_observations() throws Exception {
+        final int nbThreads = 8;
+        final int nbClients = 50;
+        final int nbRounds = 200;
+
+        final Client[] clients = new Client[nbClients];
+        for (int i = 0; i < nbClients; i++) {
+            clients[i] = new Client("ID" + i, "urn:client" + i, InetAddress.getLocalHost(), 10000, "1.0", 10000L,
+                    null, null, null, new Date(), InetSocketAddress.createUnresolved("localhost", 5683));
+        }
+        final Queue<ObservationImpl> observations = new ConcurrentLinkedQueue<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < nbThreads; t++) {
+            final Random random = new Random(t);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int round = 0; round < nbRounds; round++) {
+                        Client c = clients[random.nextInt(nbClients)];
+                        LwM2mPath path = new LwM2mPath(3, 0, random.nextInt(5));
+                        switch (random.nextInt(4)) {
+                        case 0:
+                            // client de-registration
+                            registry.cancelObservations(c);
+                            break;
+                        case 1:
+                            registry.cancelObservation(c, path.toString());
+                            break;
+                        case 2:
+                            // canceled by the client (reset)
+                            for (Observation obs : registry.getObservations(c)) {
+                                obs.cancel();
+                            }
+                            break;
+                        default:
+                            ObservationImpl obs = new ObservationImpl(c, path);
+                            observations.add(obs);
+                            registry.addObservation(obs);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        // the observations still registered are the ones which were not canceled
+        int active = 0;
+        for (Client c : clients) {
+            for (Observation obs : registry.getObservations(c)) {
+                Assert.assertFalse(((ObservationImpl) obs).cancelled.get());
+                active++;
+            }
+        }
+        int notCancelled = 0;
+        for (ObservationImpl obs : observations) {
+            if (!obs.cancelled.get()) {
+                notCancelled++;
+            }
+        }
+        Assert.assertEquals(notCancelled, active);
+
+        for (Client c : clients) {
+            registry.cancelObservations(c);
+        }
+        Assert.assertEquals(0, registry.getObservedClientCount());
+        for (ObservationImpl obs : observations) {
+            Assert.assertTrue(obs.cancelled.get());
+        }
+    }
+
     private class ObservationImpl implements Observation {
 
         private Client client;
         private LwM2mPath path;
+        private final List<ObservationListener> listeners = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
 
         public ObservationImpl(Client client, LwM2mPath path) {
             this.client = client;
@@ -85,14 +179,21 @@ public class ObservationRegistryImplTest extends BasicTestSupport {
 
         @Override
         public void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                for (ObservationListener listener : listeners) {
+                    listener.cancelled(this);
+                }
+            }
         }
 
         @Override
         public void addListener(ObservationListener listener) {
+            listeners.add(listener);
         }
 
         @Override
         public void removeListener(ObservationListener listener) {
+            listeners.remove(listener);
         }
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Date;
+
+import leshan.LinkObject;
+import leshan.server.client.BindingMode;
+import leshan.server.client.Client;
+import leshan.server.client.ClientUpdate;
+import leshan.util.Charsets;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PersistentClientRegistryImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    PersistentClientRegistryImpl registry;
+    InetAddress address;
+    InetSocketAddress registrationEndpoint;
+
+    @Before
+    public void setUp() throws Exception {
+        address = InetAddress.getLoopbackAddress();
+        registrationEndpoint = new InetSocketAddress(InetAddress.getByName("0.0.0.0"), 5684);
+        registry = newRegistry(100000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registry.stop();
+    }
+
+    @Test
+    public void restore_registered_clients_after_restart() throws Exception {
+        LinkObject[] links = LinkObject.parse("</>;rt=\"oma.lwm2m\",</3/0>,</1/0>;ver=2".getBytes(Charsets.UTF_8));
+        Date registrationDate = new Date(System.currentTimeMillis() - 60000);
+        Client client = new Client("reg1", "urn:ep1", address, 5000, "1.0", 3600L, "0123", BindingMode.UQ, links,
+                registrationDate, registrationEndpoint);
+        registry.registerClient(client);
+
+        registry = restart();
+
+        Client restored = registry.get("urn:ep1");
+        Assert.assertNotNull(restored);
+        Assert.assertEquals("reg1", restored.getRegistrationId());
+        Assert.assertEquals(address, restored.getAddress());
+        Assert.assertEquals(5000, restored.getPort());
+        Assert.assertEquals(3600L, restored.getLifeTimeInSec());
+        Assert.assertEquals("0123", restored.getSmsNumber());
+        Assert.assertEquals(BindingMode.UQ, restored.getBindingMode());
+        Assert.assertEquals(registrationDate, restored.getRegistrationDate());
+        Assert.assertEquals(client.getLastUpdate(), restored.getLastUpdate());
+        Assert.assertEquals(registrationEndpoint, restored.getRegistrationEndpointAddress());
+        Assert.assertEquals("/", restored.getRootPath());
+        Assert.assertEquals(3, restored.getObjectLinks().length);
+        Assert.assertEquals("/1/0", restored.getObjectLinks()[1].getUrl());
+        Assert.assertEquals(2, restored.getObjectLinks()[1].getAttributes().get("ver"));
+        Assert.assertSame(restored, registry.getByAddress(new InetSocketAddress(address, 5000)));
+    }
+
+    @Test
+    public void replay_updates_and_deregistrations() throws Exception {
+        registry.registerClient(givenAClient("reg1", "urn:ep1", 5001));
+        registry.registerClient(givenAClient("reg2", "urn:ep2", 5002));
+        registry.registerClient(givenAClient("reg3", "urn:ep3", 5003));
+        // re-registration of ep3
+        registry.registerClient(givenAClient("reg4", "urn:ep3", 5004));
+        registry.updateClient(new ClientUpdate("reg1", address, 6001, 7200L, null, null, null));
+        registry.deregisterClient("reg2");
+
+        registry = restart();
+
+        Assert.assertEquals(2, registry.allClients().size());
+        Assert.assertEquals(6001, registry.get("urn:ep1").getPort());
+        Assert.assertEquals(7200L, registry.get("urn:ep1").getLifeTimeInSec());
+        Assert.assertNull(registry.get("urn:ep2"));
+        Assert.assertEquals("reg4", registry.get("urn:ep3").getRegistrationId());
+        Assert.assertNull(registry.deregisterClient("reg3"));
+    }
+
+    @Test
+    public void restore_after_compaction() throws Exception {
+        registry.stop();
+        registry = newRegistry(10);
+
+        for (int i = 0; i < 100; i++) {
+            registry.registerClient(givenAClient("reg" + i, "urn:ep" + i, 5000 + i));
+            if (i % 2 == 0) {
+                registry.deregisterClient("reg" + i);
+            }
+        }
+
+        registry = restart();
+
+        Assert.assertEquals(50, registry.allClients().size());
+        for (int i = 1; i < 100; i += 2) {
+            Assert.assertEquals("reg" + i, registry.get("urn:ep" + i).getRegistrationId());
+        }
+        // the compaction deleted the old journals
+        Assert.assertTrue(folder.getRoot().list().length <= 3);
+    }
+
+    @Test
+    public void ignore_truncated_journal_record() throws Exception {
+        registry.registerClient(givenAClient("reg1", "urn:ep1", 5001));
+        registry.stop();
+
+        // simulate a crash while writing a record
+        for (File file : folder.getRoot().listFiles()) {
+            if (file.getName().startsWith("clients.journal.")) {
+                try (FileOutputStream out = new FileOutputStream(file, true)) {
+                    out.write(new byte[] { 1, 0, 4, 'r' });
+                }
+            }
+        }
+
+        registry = newRegistry(100000);
+        Assert.assertNotNull(registry.get("urn:ep1"));
+        Assert.assertEquals(1, registry.allClients().size());
+    }
+
+    private PersistentClientRegistryImpl restart() throws InterruptedException {
+        registry.stop();
+        return newRegistry(100000);
+    }
+
+    private PersistentClientRegistryImpl newRegistry(int compactionThreshold) {
+        return new PersistentClientRegistryImpl(folder.getRoot().getAbsolutePath(), 1000, compactionThreshold);
+    }
+
+    private Client givenAClient(String registrationId, String endpoint, int port) {
+        return new Client(registrationId, endpoint, address, port, null, 3600L, null, null, null, null,
+                registrationEndpoint);
+    }
+}
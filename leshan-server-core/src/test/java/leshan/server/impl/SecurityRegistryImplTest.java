@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import leshan.server.security.NonUniqueSecurityInfoException;
+import leshan.server.security.SecurityInfo;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SecurityRegistryImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "security.data").getPath();
+    }
+
+    @Test
+    public void changes_are_restored() throws Exception {
+        SecurityRegistryImpl registry = new SecurityRegistryImpl(file);
+        registry.add(psk("ep1", "id1"));
+        registry.add(psk("ep2", "id2"));
+        registry.add(psk("ep2", "id2bis"));
+        registry.remove("ep1");
+        registry.stop();
+
+        SecurityRegistryImpl restored = new SecurityRegistryImpl(file);
+        Assert.assertNull(restored.getByEndpoint("ep1"));
+        Assert.assertEquals("id2bis", restored.getByEndpoint("ep2").getIdentity());
+        Assert.assertEquals("ep2", restored.getByIdentity("id2bis").getEndpoint());
+        Assert.assertNull(restored.getByIdentity("id2"));
+        restored.stop();
+    }
+
+    @Test
+    public void compaction_keeps_the_registry_content() throws Exception {
+        SecurityRegistryImpl registry = new SecurityRegistryImpl(file, 1000, 10);
+        List<SecurityInfo> infos = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            infos.add(psk("ep" + i, "id" + i));
+        }
+        registry.addAll(infos);
+        registry.compact();
+        registry.remove("ep0");
+        registry.stop();
+
+        SecurityRegistryImpl restored = new SecurityRegistryImpl(file);
+        Assert.assertEquals(99, restored.getAll().size());
+        Assert.assertNull(restored.getByEndpoint("ep0"));
+        Assert.assertEquals("ep99", restored.getByIdentity("id99").getEndpoint());
+        restored.stop();
+    }
+
+    @Test
+    public void addAll_with_a_duplicated_identity_adds_nothing() throws Exception {
+        SecurityRegistryImpl registry = new SecurityRegistryImpl(file);
+        registry.add(psk("ep1", "id1"));
+        try {
+            registry.addAll(Arrays.asList(psk("ep2", "id2"), psk("ep3", "id1")));
+            Assert.fail("identity id1 is already used");
+        } catch (NonUniqueSecurityInfoException e) {
+            // expected
+        }
+        Assert.assertNull(registry.getByEndpoint("ep2"));
+
+        try {
+            registry.addAll(Arrays.asList(psk("ep4", "id4"), psk("ep5", "id4")));
+            Assert.fail("identity id4 is used twice");
+        } catch (NonUniqueSecurityInfoException e) {
+            // expected
+        }
+        Assert.assertNull(registry.getByEndpoint("ep4"));
+        registry.stop();
+    }
+
+    @Test
+    public void former_serialized_file_is_loaded() throws Exception {
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
+            out.writeObject(new SecurityInfo[] { psk("ep1", "id1") });
+        }
+
+        SecurityRegistryImpl registry = new SecurityRegistryImpl(file);
+        Assert.assertEquals("id1", registry.getByEndpoint("ep1").getIdentity());
+        registry.stop();
+
+        // and converted to the new format
+        registry = new SecurityRegistryImpl(file);
+        Assert.assertEquals("id1", registry.getByEndpoint("ep1").getIdentity());
+        registry.stop();
+    }
+
+    private static SecurityInfo psk(String endpoint, String identity) {
+        return SecurityInfo.newPreSharedKeyInfo(endpoint, identity, new byte[] { 1, 2, 3 });
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import leshan.ResponseCode;
+import leshan.core.response.ClientResponse;
+import leshan.core.response.ExceptionConsumer;
+import leshan.core.response.ResponseConsumer;
+import leshan.server.client.Client;
+import leshan.server.impl.ClientRegistryImpl;
+import leshan.server.request.BulkRequestExecutor.ClientClassifier;
+import leshan.server.request.BulkRequestExecutor.ClientSelector;
+import leshan.server.request.BulkRequestExecutor.RequestFactory;
+import leshan.server.request.BulkRequestExecutor.ResultListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkRequestExecutorTest {
+
+    private final List<ResponseFuture<ClientResponse>> sent = new CopyOnWriteArrayList<>();
+
+    private final List<Object> results = new CopyOnWriteArrayList<>();
+
+    private final ClientRegistryImpl registry = new ClientRegistryImpl();
+
+    private final LwM2mRequestSender sender = new LwM2mRequestSender() {
+
+        @Override
+        public <T extends ClientResponse> T send(LwM2mRequest<T> request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T extends ClientResponse> void send(LwM2mRequest<T> request, ResponseConsumer<T> responseCallback,
+                ExceptionConsumer errorCallback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T extends ClientResponse> ResponseFuture<T> sendAsync(LwM2mRequest<T> request, long timeoutMillis) {
+            ResponseFuture<T> future = new ResponseFuture<>();
+            sent.add((ResponseFuture<ClientResponse>) future);
+            return future;
+        }
+    };
+
+    private final ClientSelector all = new ClientSelector() {
+        @Override
+        public boolean select(Client client) {
+            return true;
+        }
+    };
+
+    private final RequestFactory<ClientResponse> delete = new RequestFactory<ClientResponse>() {
+        @Override
+        public LwM2mRequest<ClientResponse> create(Client client) {
+            return new DeleteRequest(client, 3, 0);
+        }
+    };
+
+    private final ClientClassifier byPrefix = new ClientClassifier() {
+        @Override
+        public String classify(Client client) {
+            return client.getEndpoint().substring(0, client.getEndpoint().indexOf('-'));
+        }
+    };
+
+    private final ResultListener<ClientResponse> listener = new ResultListener<ClientResponse>() {
+        @Override
+        public void onResponse(Client client, ClientResponse response) {
+            results.add(response);
+        }
+
+        @Override
+        public void onError(Client client, Exception e) {
+            results.add(e);
+        }
+
+        @Override
+        public void onCompleted(BulkOperation<ClientResponse> operation) {
+            results.add(operation);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            register("sensor-" + i);
+            register("meter-" + i);
+        }
+    }
+
+    @Test
+    public void in_flight_requests_are_limited_per_type() throws Exception {
+        BulkRequestExecutor executor = new BulkRequestExecutor(sender, registry, 4, 1, byPrefix, 10_000);
+        BulkOperation<ClientResponse> operation = executor.execute(all, delete, listener);
+
+        // one request per type
+        assertEquals(10, operation.getTotal());
+        assertEquals(2, sent.size());
+        assertEquals(2, executor.getInFlight());
+
+        // the next request is sent on completion
+        sent.get(0).complete(new ClientResponse(ResponseCode.DELETED));
+        assertEquals(3, sent.size());
+        assertEquals(2, executor.getInFlight());
+        assertEquals(1, operation.getSucceeded());
+
+        for (int i = 1; i < 10; i++) {
+            sent.get(i).complete(new ClientResponse(ResponseCode.DELETED));
+        }
+        assertEquals(10, sent.size());
+        assertEquals(0, executor.getInFlight());
+        assertTrue(operation.await(1, TimeUnit.SECONDS));
+        assertEquals(10, operation.getSucceeded());
+        assertEquals(11, results.size());
+        assertTrue(results.get(10) instanceof BulkOperation);
+    }
+
+    @Test
+    public void in_flight_requests_are_limited_globally() throws Exception {
+        BulkRequestExecutor executor = new BulkRequestExecutor(sender, registry, 3, 10_000);
+        BulkOperation<ClientResponse> operation = executor.execute(all, delete, listener);
+        assertEquals(3, sent.size());
+
+        // errors and timeouts free the slots too
+        sent.get(0).fail(new RequestTimeoutException("/3/0", 10_000));
+        sent.get(1).complete(new ClientResponse(ResponseCode.NOT_FOUND));
+        assertEquals(5, sent.size());
+        assertEquals(3, executor.getInFlight());
+        assertEquals(1, operation.getTimedOut());
+        assertEquals(1, operation.getFailed());
+        assertEquals(2, operation.getCompleted());
+        assertFalse(operation.isDone());
+    }
+
+    @Test
+    public void cancel_stops_the_operation() throws Exception {
+        BulkRequestExecutor executor = new BulkRequestExecutor(sender, registry, 2, 10_000);
+        BulkOperation<ClientResponse> operation = executor.execute(all, delete, listener);
+        assertEquals(2, sent.size());
+
+        operation.cancel();
+        assertTrue(operation.await(1, TimeUnit.SECONDS));
+        assertEquals(2, sent.size());
+        assertTrue(sent.get(0).isCancelled());
+        assertEquals(10, operation.getCancelled());
+        assertEquals(0, executor.getInFlight());
+    }
+
+    @Test
+    public void empty_selection_completes_immediately() throws Exception {
+        BulkRequestExecutor executor = new BulkRequestExecutor(sender, registry, 2, 10_000);
+        BulkOperation<ClientResponse> operation = executor.execute(new ClientSelector() {
+            @Override
+            public boolean select(Client client) {
+                return false;
+            }
+        }, delete, listener);
+
+        assertTrue(operation.isDone());
+        assertEquals(0, operation.getTotal());
+        assertTrue(sent.isEmpty());
+    }
+
+    private void register(String endpoint) throws Exception {
+        registry.registerClient(new Client(endpoint + "-reg", endpoint, InetAddress.getLocalHost(), 5683,
+                InetSocketAddress.createUnresolved("localhost", 5683)));
+    }
+}
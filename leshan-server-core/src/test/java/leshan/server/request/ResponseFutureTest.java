@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import leshan.ResponseCode;
+import leshan.core.response.ClientResponse;
+import leshan.core.response.ExceptionConsumer;
+import leshan.core.response.ResponseConsumer;
+
+import org.junit.Test;
+
+public class ResponseFutureTest {
+
+    private final List<Object> results = new CopyOnWriteArrayList<>();
+
+    private final ResponseConsumer<ClientResponse> responseCallback = new ResponseConsumer<ClientResponse>() {
+        @Override
+        public void accept(ClientResponse response) {
+            results.add(response);
+        }
+    };
+
+    private final ExceptionConsumer errorCallback = new ExceptionConsumer() {
+        @Override
+        public void accept(Exception e) {
+            results.add(e);
+        }
+    };
+
+    @Test
+    public void callbacks_are_invoked_on_completion() throws Exception {
+        ResponseFuture<ClientResponse> future = new ResponseFuture<>();
+        future.addCallback(responseCallback, errorCallback);
+        assertTrue(results.isEmpty());
+
+        ClientResponse response = new ClientResponse(ResponseCode.DELETED);
+        assertTrue(future.complete(response));
+        assertEquals(1, results.size());
+        assertSame(response, results.get(0));
+        assertSame(response, future.get());
+
+        // callbacks added afterwards are invoked immediately
+        future.addCallback(responseCallback, errorCallback);
+        assertEquals(2, results.size());
+    }
+
+    @Test
+    public void only_the_first_completion_wins() throws Exception {
+        ResponseFuture<ClientResponse> future = new ResponseFuture<>();
+        future.addCallback(responseCallback, errorCallback);
+
+        RuntimeException error = new RuntimeException();
+        assertTrue(future.fail(error));
+        assertFalse(future.complete(new ClientResponse(ResponseCode.DELETED)));
+        assertFalse(future.cancel(false));
+
+        assertEquals(1, results.size());
+        assertSame(error, results.get(0));
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test
+    public void cancel_runs_the_cancellation_handler() throws Exception {
+        final AtomicBoolean requestCancelled = new AtomicBoolean();
+        ResponseFuture<ClientResponse> future = new ResponseFuture<>();
+        future.addCallback(responseCallback, errorCallback);
+        future.setCancellationHandler(new Runnable() {
+            @Override
+            public void run() {
+                requestCancelled.set(true);
+            }
+        });
+
+        assertTrue(future.cancel(true));
+        assertTrue(requestCancelled.get());
+        assertTrue(future.isCancelled());
+        assertTrue(results.get(0) instanceof CancellationException);
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void get_with_timeout_does_not_wait_forever() throws Exception {
+        new ResponseFuture<ClientResponse>().get(10, TimeUnit.MILLISECONDS);
+    }
+}
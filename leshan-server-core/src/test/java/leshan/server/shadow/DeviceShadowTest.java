@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014, Sierra Wireless
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of {{ project }} nor the names of its contributors
+ *       may be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package leshan.server.shadow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import leshan.core.node.LwM2mObjectInstance;
+import leshan.core.node.LwM2mPath;
+import leshan.core.node.LwM2mResource;
+import leshan.core.node.Value;
+import leshan.server.client.Client;
+
+import org.junit.Test;
+
+public class DeviceShadowTest {
+
+    private final LwM2mResource manufacturer = new LwM2mResource(0, Value.newStringValue("Leshan"));
+
+    private final LwM2mResource model = new LwM2mResource(1, Value.newStringValue("Demo"));
+
+    private final LwM2mObjectInstance device = new LwM2mObjectInstance(0, new LwM2mResource[] { manufacturer, model });
+
+    @Test
+    public void fresh_values_are_served() throws Exception {
+        DeviceShadow shadow = new DeviceShadow();
+        shadow.update("urn:client", new LwM2mPath(3, 0, 0), manufacturer);
+
+        assertSame(manufacturer, shadow.get("urn:client", new LwM2mPath(3, 0, 0), 60_000).getNode());
+        assertNull(shadow.get("urn:client", new LwM2mPath(3, 0, 1), 60_000));
+        assertNull(shadow.get("urn:other", new LwM2mPath(3, 0, 0), 60_000));
+        assertEquals(1, shadow.getHitCount());
+        assertEquals(2, shadow.getMissCount());
+    }
+
+    @Test
+    public void old_values_are_not_served() throws Exception {
+        DeviceShadow shadow = new DeviceShadow();
+        shadow.update("urn:client", new LwM2mPath(3, 0, 0), manufacturer);
+        Thread.sleep(20);
+
+        assertNull(shadow.get("urn:client", new LwM2mPath(3, 0, 0), 10));
+    }
+
+    @Test
+    public void resources_are_served_from_the_enclosing_instance() throws Exception {
+        DeviceShadow shadow = new DeviceShadow();
+        shadow.update("urn:client", new LwM2mPath(3, 0), device);
+
+        assertSame(model, shadow.get("urn:client", new LwM2mPath(3, 0, 1), 60_000).getNode());
+        assertNull(shadow.get("urn:client", new LwM2mPath(3, 0, 2), 60_000));
+    }
+
+    @Test
+    public void writes_invalidate_the_enclosing_and_enclosed_values() throws Exception {
+        DeviceShadow shadow = new DeviceShadow();
+        shadow.update("urn:client", new LwM2mPath(3, 0), device);
+        shadow.update("urn:client", new LwM2mPath(3, 0, 0), manufacturer);
+        shadow.update("urn:client", new LwM2mPath(4, 0), device);
+
+        shadow.invalidate("urn:client", new LwM2mPath(3, 0, 1));
+        assertNull(shadow.get("urn:client", new LwM2mPath(3, 0), 60_000));
+        assertNotNull(shadow.get("urn:client", new LwM2mPath(3, 0, 0), 60_000));
+        assertNotNull(shadow.get("urn:client", new LwM2mPath(4, 0), 60_000));
+
+        shadow.invalidate("urn:client", new LwM2mPath(3));
+        assertNull(shadow.get("urn:client", new LwM2mPath(3, 0, 0), 60_000));
+        assertEquals(1, shadow.getSize());
+    }
+
+    @Test
+    public void values_are_invalidated_on_deregistration() throws Exception {
+        DeviceShadow shadow = new DeviceShadow();
+        shadow.update("urn:client", new LwM2mPath(3, 0, 0), manufacturer);
+
+        shadow.unregistered(new Client("reg", "urn:client", InetAddress.getLocalHost(), 5683, InetSocketAddress
+                .createUnresolved("localhost", 5683)));
+        assertNull(shadow.get("urn:client", new LwM2mPath(3, 0, 0), 60_000));
+        assertEquals(0, shadow.getSize());
+    }
+
+    @Test
+    public void least_recently_used_clients_are_evicted() throws Exception {
+        // one value per segment
+        DeviceShadow shadow = new DeviceShadow(64);
+        for (int i = 0; i < 1000; i++) {
+            shadow.update("urn:client" + i, new LwM2mPath(3, 0, 0), manufacturer);
+            shadow.update("urn:client" + i, new LwM2mPath(3, 0, 1), model);
+        }
+
+        assertEquals(64, shadow.getSize());
+        assertNotNull(shadow.get("urn:client999", new LwM2mPath(3, 0, 1), 60_000));
+    }
+}
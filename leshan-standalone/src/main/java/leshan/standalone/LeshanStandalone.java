@@ -29,9 +29,13 @@
  */
 package leshan.standalone;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
 import leshan.server.californium.LeshanServer;
+import leshan.server.impl.EventDispatcher;
+import leshan.server.impl.EventDispatcher.OverflowPolicy;
+import leshan.server.shadow.DeviceShadow;
 import leshan.standalone.servlet.ClientServlet;
 import leshan.standalone.servlet.EventServlet;
 import leshan.standalone.servlet.ObjectSpecServlet;
@@ -49,6 +53,7 @@ public class LeshanStandalone {
 
     private Server server;
     private LeshanServer lwServer;
+    private EventDispatcher eventDispatcher;
 
     public void start() {
         // use those ENV variables for specifying the interface to be bound for coap and coaps
@@ -56,15 +61,27 @@ public class LeshanStandalone {
         String ifaces = System.getenv("COAPSIFACE");
 
         // LWM2M server
+        InetSocketAddress address;
+        InetSocketAddress addressSecure;
         if (iface == null || iface.isEmpty() || ifaces == null || ifaces.isEmpty()) {
-            lwServer = new LeshanServer();
+            address = new InetSocketAddress((InetAddress) null, LeshanServer.PORT);
+            addressSecure = new InetSocketAddress((InetAddress) null, LeshanServer.PORT_DTLS);
         } else {
             String[] add = iface.split(":");
             String[] adds = ifaces.split(":");
             // user specified the iface to be bound
-            lwServer = new LeshanServer(new InetSocketAddress(add[0], Integer.parseInt(add[1])), new InetSocketAddress(
-                    adds[0], Integer.parseInt(adds[1])));
+            address = new InetSocketAddress(add[0], Integer.parseInt(add[1]));
+            addressSecure = new InetSocketAddress(adds[0], Integer.parseInt(adds[1]));
         }
+
+        // set SHADOW to true to serve the recently read values to the client reads having a maxAge parameter
+        String shadowEnabled = System.getenv("SHADOW");
+        if (shadowEnabled == null || shadowEnabled.isEmpty()) {
+            shadowEnabled = System.getProperty("SHADOW");
+        }
+        DeviceShadow shadow = Boolean.parseBoolean(shadowEnabled) ? new DeviceShadow() : null;
+
+        lwServer = new LeshanServer(address, addressSecure, null, null, null, null, shadow);
         lwServer.start();
 
         // now prepare and start jetty
@@ -83,7 +100,10 @@ public class LeshanStandalone {
         server.setHandler(root);
 
         // Create Servlet
-        EventServlet eventServlet = new EventServlet(lwServer);
+        // server events are pushed to the web UI from dedicated threads, not from the CoAP ones
+        eventDispatcher = new EventDispatcher(Runtime.getRuntime().availableProcessors(), 10000,
+                OverflowPolicy.BLOCK);
+        EventServlet eventServlet = new EventServlet(lwServer, eventDispatcher);
         ServletHolder eventServletHolder = new ServletHolder(eventServlet);
         root.addServlet(eventServletHolder, "/event/*");
 
@@ -108,6 +128,7 @@ public class LeshanStandalone {
         try {
             lwServer.destroy();
             server.stop();
+            eventDispatcher.stop();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
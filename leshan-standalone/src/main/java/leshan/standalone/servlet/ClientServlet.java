@@ -135,12 +135,15 @@ public class ClientServlet extends HttpServlet {
         }
 
         // /clients/endPoint/LWRequest : do LightWeight M2M read request on a given client.
+        // the optional maxAge parameter (in milliseconds) allows to serve a value received recently, when the device
+        // shadow is enabled (SHADOW=true)
         try {
             String target = StringUtils.removeStart(req.getPathInfo(), "/" + clientEndpoint);
             Client client = server.getClientRegistry().get(clientEndpoint);
             if (client != null) {
                 ReadRequest request = new ReadRequest(client, target);
-                ValueResponse cResponse = server.send(request);
+                String maxAge = req.getParameter("maxAge");
+                ValueResponse cResponse = server.read(request, maxAge == null ? 0 : Long.parseLong(maxAge));
                 processDeviceResponse(resp, cResponse);
             } else {
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -44,6 +44,7 @@ import leshan.core.node.LwM2mNode;
 import leshan.server.LwM2mServer;
 import leshan.server.client.Client;
 import leshan.server.client.ClientRegistryListener;
+import leshan.server.impl.EventDispatcher;
 import leshan.server.observation.Observation;
 import leshan.server.observation.ObservationRegistryListener;
 import leshan.standalone.servlet.json.ClientSerializer;
@@ -133,8 +134,22 @@ public class EventServlet extends HttpServlet {
     };
 
     public EventServlet(LwM2mServer server) {
-        server.getClientRegistry().addListener(this.clientRegistryListener);
-        server.getObservationRegistry().addListener(this.observationRegistryListener);
+        this(server, null);
+    }
+
+    /**
+     * @param server the LWM2M server
+     * @param dispatcher the dispatcher used to deliver the server events asynchronously, if <code>null</code> the
+     *        events are handled by the thread which produced them
+     */
+    public EventServlet(LwM2mServer server, EventDispatcher dispatcher) {
+        if (dispatcher == null) {
+            server.getClientRegistry().addListener(this.clientRegistryListener);
+            server.getObservationRegistry().addListener(this.observationRegistryListener);
+        } else {
+            server.getClientRegistry().addListener(dispatcher.async(this.clientRegistryListener));
+            server.getObservationRegistry().addListener(dispatcher.async(this.observationRegistryListener));
+        }
 
         GsonBuilder gsonBuilder = new GsonBuilder();
         gsonBuilder.registerTypeHierarchyAdapter(Client.class, new ClientSerializer());
@@ -30,7 +30,7 @@
 package leshan.standalone.servlet;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Collection;
 
 import javax.servlet.ServletException;
@@ -44,6 +44,8 @@ import leshan.server.security.SecurityRegistry;
 import leshan.standalone.servlet.json.SecurityDeserializer;
 import leshan.standalone.servlet.json.SecuritySerializer;
 
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -90,10 +92,19 @@ public class SecurityServlet extends HttpServlet {
         }
 
         try {
-            SecurityInfo info = gsonDes.fromJson(new InputStreamReader(req.getInputStream()), SecurityInfo.class);
-            LOG.debug("New security info for end-point {}: {}", info.getEndpoint(), info);
-
-            registry.add(info);
+            String body = IOUtils.toString(req.getInputStream(), Charsets.UTF_8);
+            if (body.trim().startsWith("[")) {
+                // bulk provisioning
+                SecurityInfo[] infos = gsonDes.fromJson(body, SecurityInfo[].class);
+                LOG.debug("New security infos for {} end-points", infos.length);
+
+                registry.addAll(Arrays.asList(infos));
+            } else {
+                SecurityInfo info = gsonDes.fromJson(body, SecurityInfo.class);
+                LOG.debug("New security info for end-point {}: {}", info.getEndpoint(), info);
+
+                registry.add(info);
+            }
 
             resp.setStatus(HttpServletResponse.SC_OK);
 